@@ -33,11 +33,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.TargetApi;
-import android.os.Handler;
-import android.os.Message;
 import android.os.Process;
 
 import com.common.library.utils.DeviceUtils;
+import com.common.library.utils.ExecutorMetrics;
+import com.common.library.utils.MainThreadCoalescer;
+import com.common.library.utils.WorkStealingExecutor;
 
 /**
  * *************************************
@@ -47,11 +48,16 @@ import com.common.library.utils.DeviceUtils;
  * so that threading behavior on all OS versions is the same and we can tweak behavior by using
  * executeOnExecutor() if needed.
  *
- * There are 3 changes in this copy of AsyncTask:
+ * There are 7 changes in this copy of AsyncTask:
  *    -pre-HC a single thread executor is used for serial operation
  *    (Executors.newSingleThreadExecutor) and is the default
  *    -the default THREAD_POOL_EXECUTOR was changed to use DiscardOldestPolicy
  *    -a new fixed thread pool called DUAL_THREAD_EXECUTOR was added
+ *    -a WORK_STEALING_EXECUTOR with per-thread task deques was added
+ *    -setDefaultExecutor() is public
+ *    -results and progress are delivered through MainThreadCoalescer, one batch per frame,
+ *    instead of one message each
+ *    -the executors are instrumented by ExecutorMetrics
  * *************************************
  *
  * <p>AsyncTask enables proper and easy use of the UI thread. This class allows to
@@ -214,28 +220,35 @@ public abstract class AsyncTask<Params, Progress, Result> {
     private static final BlockingQueue<Runnable> sPoolWorkQueue =
             new LinkedBlockingQueue<Runnable>(10);
 
+    // The pool behind THREAD_POOL_EXECUTOR. SerialExecutor hands its tasks to the pool itself, as
+    // they are already recorded under SERIAL_EXECUTOR.
+    private static final ThreadPoolExecutor sThreadPool = new ThreadPoolExecutor(CORE_POOL_SIZE,
+            MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory,
+            new ThreadPoolExecutor.DiscardOldestPolicy());
+
     /**
      * An {@link java.util.concurrent.Executor} that can be used to execute tasks in parallel.
      */
-    public static final Executor THREAD_POOL_EXECUTOR
-            = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
-            TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory,
-            new ThreadPoolExecutor.DiscardOldestPolicy());
+    public static final Executor THREAD_POOL_EXECUTOR = ExecutorMetrics.instrument(
+            "AsyncTask.THREAD_POOL_EXECUTOR", sThreadPool);
 
     /**
      * An {@link java.util.concurrent.Executor} that executes tasks one at a time in serial
      * order.  This serialization is global to a particular process.
      */
-    public static final Executor SERIAL_EXECUTOR = DeviceUtils.hasHoneycomb() ? new SerialExecutor() :
-            Executors.newSingleThreadExecutor(sThreadFactory);
+    public static final Executor SERIAL_EXECUTOR = ExecutorMetrics.instrument(
+            "AsyncTask.SERIAL_EXECUTOR", DeviceUtils.hasHoneycomb() ? new SerialExecutor() :
+            Executors.newSingleThreadExecutor(sThreadFactory));
 
-    public static final Executor DUAL_THREAD_EXECUTOR =
-            Executors.newFixedThreadPool(2, sThreadFactory);
+    public static final Executor DUAL_THREAD_EXECUTOR = ExecutorMetrics.instrument(
+            "AsyncTask.DUAL_THREAD_EXECUTOR", Executors.newFixedThreadPool(2, sThreadFactory));
 
-    private static final int MESSAGE_POST_RESULT = 0x1;
-    private static final int MESSAGE_POST_PROGRESS = 0x2;
-
-    private static final InternalHandler sHandler = new InternalHandler();
+    /**
+     * An {@link Executor} with one task deque per worker thread, where idle workers steal queued
+     * tasks from busy ones. Unlike {@link #THREAD_POOL_EXECUTOR} it doesn't discard the oldest
+     * tasks when many are queued at once.
+     */
+    public static final Executor WORK_STEALING_EXECUTOR = WorkStealingExecutor.getDefault();
 
     private static volatile Executor sDefaultExecutor = SERIAL_EXECUTOR;
     private final WorkerRunnable<Params, Result> mWorker;
@@ -268,7 +281,7 @@ public abstract class AsyncTask<Params, Progress, Result> {
 
         protected synchronized void scheduleNext() {
             if ((mActive = mTasks.poll()) != null) {
-                THREAD_POOL_EXECUTOR.execute(mActive);
+                sThreadPool.execute(mActive);
             }
         }
     }
@@ -294,10 +307,13 @@ public abstract class AsyncTask<Params, Progress, Result> {
 
     /** @hide Used to force static handler to be created. */
     public static void init() {
-        sHandler.getLooper();
+        MainThreadCoalescer.getDefault();
     }
 
-    /** @hide */
+    /**
+     * Change the executor used by {@link #execute(Object[])} and {@link #execute(Runnable)}, e.g.
+     * to {@link #WORK_STEALING_EXECUTOR}.
+     */
     public static void setDefaultExecutor(Executor exec) {
         sDefaultExecutor = exec;
     }
@@ -340,11 +356,13 @@ public abstract class AsyncTask<Params, Progress, Result> {
         }
     }
 
-    private Result postResult(Result result) {
-        @SuppressWarnings("unchecked")
-        Message message = sHandler.obtainMessage(MESSAGE_POST_RESULT,
-                new AsyncTaskResult<Result>(this, result));
-        message.sendToTarget();
+    private Result postResult(final Result result) {
+        MainThreadCoalescer.getDefault().post(new Runnable() {
+            @Override
+            public void run() {
+                finish(result);
+            }
+        });
         return result;
     }
 
@@ -613,7 +631,12 @@ public abstract class AsyncTask<Params, Progress, Result> {
         onPreExecute();
 
         mWorker.mParams = params;
-        exec.execute(mFuture);
+        final Class<?> previous = ExecutorMetrics.beginSubmit(getClass());
+        try {
+            exec.execute(mFuture);
+        } finally {
+            ExecutorMetrics.endSubmit(previous);
+        }
 
         return this;
     }
@@ -644,15 +667,21 @@ public abstract class AsyncTask<Params, Progress, Result> {
      * @see #onProgressUpdate
      * @see #doInBackground
      */
-    protected final void publishProgress(Progress... values) {
+    protected final void publishProgress(final Progress... values) {
         if (!isCancelled()) {
-            sHandler.obtainMessage(MESSAGE_POST_PROGRESS,
-                    new AsyncTaskResult<Progress>(this, values)).sendToTarget();
+            // Replaces values still waiting for the main thread
+            MainThreadCoalescer.getDefault().postLatest(this, new Runnable() {
+                @Override
+                public void run() {
+                    onProgressUpdate(values);
+                }
+            });
         }
     }
 
     private void finish(Result result) {
-        if (isCancelled()) {
+        // The future is cancelled directly when an executor drops the task
+        if (isCancelled() || mFuture.isCancelled()) {
             onCancelled(result);
         } else {
             onPostExecute(result);
@@ -660,36 +689,7 @@ public abstract class AsyncTask<Params, Progress, Result> {
         mStatus = Status.FINISHED;
     }
 
-    private static class InternalHandler extends Handler {
-        @SuppressWarnings({"unchecked"})
-        @Override
-        public void handleMessage(Message msg) {
-            AsyncTaskResult<?> result = (AsyncTaskResult<?>) msg.obj;
-            switch (msg.what) {
-                case MESSAGE_POST_RESULT:
-                    // There is only one result
-                    result.mTask.finish(result.mData[0]);
-                    break;
-                case MESSAGE_POST_PROGRESS:
-                    result.mTask.onProgressUpdate(result.mData);
-                    break;
-            }
-        }
-    }
-
     private static abstract class WorkerRunnable<Params, Result> implements Callable<Result> {
         Params[] mParams;
     }
-
-    private static class AsyncTaskResult<Data> {
-        @SuppressWarnings("rawtypes")
-		final AsyncTask mTask;
-        final Data[] mData;
-
-        @SuppressWarnings("rawtypes")
-		AsyncTaskResult(AsyncTask task, Data... data) {
-            mTask = task;
-            mData = data;
-        }
-    }
 }
\ No newline at end of file
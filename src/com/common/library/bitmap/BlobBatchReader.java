@@ -0,0 +1,229 @@
+package com.common.library.bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.common.library.BuildConfig;
+
+/**
+ * Reads image BLOBs for {@link ImageDBFetcher} in batches. Threads asking for images within a few
+ * milliseconds of each other are served by a single {@code IN (...)} query, run by whichever of
+ * them gets there first. Small BLOBs come back in that query; big ones are then read in
+ * {@code substr} chunks so that no row has to fit in a CursorWindow whole.
+ */
+class BlobBatchReader {
+    private static final String TAG = "BlobBatchReader";
+
+    // How long the first caller waits for others to join its batch
+    private static final long BATCH_WINDOW_MS = 8;
+    // Well below SQLite's limit of 999 bound arguments
+    private static final int MAX_BATCH_SIZE = 64;
+    // BLOBs up to this size are read inline, bigger ones in chunks of this size
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private final ImageDBFetcher.BlobTable mTable;
+
+    // Requests not yet picked up by a batch, guarded by itself
+    private final List<Request> mPending = new ArrayList<Request>();
+    private boolean mBatchRunning;
+
+    private static class Request {
+        final String key;
+        final OutputStream out;
+        boolean done;
+        boolean success;
+
+        Request(String key, OutputStream out) {
+            this.key = key;
+            this.out = out;
+        }
+    }
+
+    BlobBatchReader(ImageDBFetcher.BlobTable table) {
+        mTable = table;
+    }
+
+    /**
+     * Write the BLOB stored under key to out, then close out.
+     *
+     * @return true if the BLOB was found and written
+     * @throws InterruptedException if the thread was interrupted before the read started
+     */
+    boolean read(String key, OutputStream out) throws InterruptedException {
+        final Request request = new Request(key, out);
+        synchronized (mPending) {
+            mPending.add(request);
+        }
+        while (true) {
+            synchronized (mPending) {
+                try {
+                    while (!request.done && mBatchRunning) {
+                        mPending.wait();
+                    }
+                } catch (InterruptedException e) {
+                    // Give up unless a batch already holds the request
+                    if (mPending.remove(request)) {
+                        throw e;
+                    }
+                    Thread.currentThread().interrupt();
+                    while (!request.done) {
+                        try {
+                            mPending.wait();
+                        } catch (InterruptedException ignored) {}
+                    }
+                }
+                if (request.done) {
+                    return request.success;
+                }
+                mBatchRunning = true;
+            }
+
+            // This thread runs the next batch, let the others catch up first
+            try {
+                Thread.sleep(BATCH_WINDOW_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            final List<Request> batch;
+            synchronized (mPending) {
+                final int size = Math.min(MAX_BATCH_SIZE, mPending.size());
+                batch = new ArrayList<Request>(mPending.subList(0, size));
+                mPending.subList(0, size).clear();
+            }
+            try {
+                runBatch(batch);
+            } finally {
+                synchronized (mPending) {
+                    for (Request r : batch) {
+                        r.done = true;
+                    }
+                    mBatchRunning = false;
+                    mPending.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void runBatch(List<Request> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final Map<String, List<Request>> byKey = new HashMap<String, List<Request>>();
+        for (Request request : batch) {
+            List<Request> requests = byKey.get(request.key);
+            if (requests == null) {
+                requests = new ArrayList<Request>(1);
+                byKey.put(request.key, requests);
+            }
+            requests.add(request);
+        }
+
+        final String[] keys = byKey.keySet().toArray(new String[byKey.size()]);
+        final StringBuilder sql = new StringBuilder("SELECT ")
+                .append(mTable.keyColumn).append(", length(").append(mTable.blobColumn)
+                .append("), CASE WHEN length(").append(mTable.blobColumn).append(") <= ")
+                .append(CHUNK_SIZE).append(" THEN ").append(mTable.blobColumn)
+                .append(" END FROM ").append(mTable.table)
+                .append(" WHERE ").append(mTable.keyColumn).append(" IN (");
+        for (int i = 0; i < keys.length; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(')');
+
+        final SQLiteDatabase db = mTable.database;
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql.toString(), keys);
+            while (cursor.moveToNext()) {
+                final List<Request> requests = byKey.remove(cursor.getString(0));
+                if (requests == null) {
+                    continue;
+                }
+                final long length = cursor.getLong(1);
+                if (!cursor.isNull(2)) {
+                    final byte[] data = cursor.getBlob(2);
+                    for (Request request : requests) {
+                        request.success = write(request, data);
+                    }
+                } else if (length > 0) {
+                    readChunked(requests, length);
+                }
+            }
+        } catch (RuntimeException e) {
+            // SQLiteException and friends
+            Log.e(TAG, "runBatch - " + e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        for (Request request : batch) {
+            closeQuietly(request.out);
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "runBatch - " + keys.length + " keys in one query, " + byKey.size()
+                    + " not found");
+        }
+    }
+
+    private void readChunked(List<Request> requests, long length) {
+        final String key = requests.get(0).key;
+        final String sql = "SELECT substr(" + mTable.blobColumn + ", ?, " + CHUNK_SIZE + ") FROM "
+                + mTable.table + " WHERE " + mTable.keyColumn + " = ?";
+        for (Request request : requests) {
+            request.success = true;
+        }
+        // substr() positions start at 1
+        for (long position = 1; position <= length; position += CHUNK_SIZE) {
+            final Cursor cursor = mTable.database.rawQuery(sql,
+                    new String[] { String.valueOf(position), key });
+            try {
+                if (!cursor.moveToFirst()) {
+                    // The row went away half way through
+                    for (Request request : requests) {
+                        request.success = false;
+                    }
+                    return;
+                }
+                final byte[] chunk = cursor.getBlob(0);
+                for (Request request : requests) {
+                    if (request.success) {
+                        request.success = write(request, chunk);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private static boolean write(Request request, byte[] data) {
+        if (data == null) {
+            return false;
+        }
+        try {
+            request.out.write(data);
+            return true;
+        } catch (IOException e) {
+            // e.g. the requesting task gave up and aborted its editor
+            Log.e(TAG, "write - " + request.key + ": " + e);
+            return false;
+        }
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {}
+    }
+}
@@ -76,6 +76,7 @@ public class ImageCache {
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
 
     private DiskLruCache mDiskLruCache;
+    private ImageMetadataIndex mMetadataIndex;
     private LruCache<String, BitmapDrawable> mMemoryCache;
     private ImageCacheParams mCacheParams;
     private final Object mDiskCacheLock = new Object();
@@ -209,6 +210,7 @@ public class ImageCache {
                     if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
                         try {
                             mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                            mMetadataIndex = openMetadataIndex(diskCacheDir);
                             if (BuildConfig.DEBUG) {
                                 Log.d(TAG, "Disk cache initialized");
                             }
@@ -256,9 +258,15 @@ public class ImageCache {
                         final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
                         if (editor != null) {
                             out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(mCacheParams.compressFormat, mCacheParams.compressQuality, out);
+                            final Bitmap bitmap = value.getBitmap();
+                            bitmap.compress(mCacheParams.compressFormat, mCacheParams.compressQuality, out);
                             editor.commit();
                             out.close();
+                            if (mMetadataIndex != null) {
+                                mMetadataIndex.put(key, bitmap.getWidth(), bitmap.getHeight(),
+                                        getMimeType(mCacheParams.compressFormat),
+                                        ImageHeaderParser.ORIENTATION_NORMAL);
+                            }
                         }
                     } else {
                         snapshot.getInputStream(DISK_CACHE_INDEX).close();
@@ -332,8 +340,8 @@ public class ImageCache {
 
                             // Decode bitmap, but we don't want to sample so give
                             // MAX_VALUE as the target dimensions
-                            bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
-                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
+                            bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(fd,
+                                    mMetadataIndex, key, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
                         }
                     }
                 } catch (final IOException e) {
@@ -351,6 +359,23 @@ public class ImageCache {
         //END_INCLUDE(get_bitmap_from_disk_cache)
     }
 
+    /**
+     * Offer a bitmap that is no longer displayed or cached for use with inBitmap. Before
+     * Honeycomb, where bitmaps can't be reused, it is recycled instead.
+     *
+     * @param bitmap A bitmap nothing else references any more
+     */
+    public void addToReusableSet(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (mReusableBitmaps != null && bitmap.isMutable()) {
+            mReusableBitmaps.add(new SoftReference<Bitmap>(bitmap));
+        } else {
+            bitmap.recycle();
+        }
+    }
+
     /**
      * @param options - BitmapFactory.Options with out* options populated
      * @return Bitmap that case be used for inBitmap
@@ -402,6 +427,11 @@ public class ImageCache {
 
         synchronized (mDiskCacheLock) {
             mDiskCacheStarting = true;
+            if (mMetadataIndex != null) {
+                // The index file goes with the rest of the cache directory
+                mMetadataIndex.close();
+                mMetadataIndex = null;
+            }
             if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
                 try {
                     mDiskLruCache.delete();
@@ -426,6 +456,9 @@ public class ImageCache {
             if (mDiskLruCache != null) {
                 try {
                     mDiskLruCache.flush();
+                    if (mMetadataIndex != null) {
+                        mMetadataIndex.flush();
+                    }
                     if (BuildConfig.DEBUG) {
                         Log.d(TAG, "Disk cache flushed");
                     }
@@ -442,6 +475,10 @@ public class ImageCache {
      */
     public void close() {
         synchronized (mDiskCacheLock) {
+            if (mMetadataIndex != null) {
+                mMetadataIndex.close();
+                mMetadataIndex = null;
+            }
             if (mDiskLruCache != null) {
                 try {
                     if (!mDiskLruCache.isClosed()) {
@@ -568,6 +605,43 @@ public class ImageCache {
         return new File(cachePath + File.separator + uniqueName);
     }
 
+    /**
+     * Open the {@link ImageMetadataIndex} kept next to a disk cache.
+     *
+     * @param diskCacheDir The directory of the disk cache
+     * @return The index, or null if it couldn't be opened
+     */
+    static ImageMetadataIndex openMetadataIndex(File diskCacheDir) {
+        try {
+            return ImageMetadataIndex.open(diskCacheDir);
+        } catch (IOException e) {
+            Log.e(TAG, "openMetadataIndex - " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Log how many bounds passes the metadata index saved since the last call, then start
+     * counting again.
+     */
+    public void logMetadataIndexStats() {
+        final ImageMetadataIndex index = mMetadataIndex;
+        if (index != null) {
+            Log.d(TAG, "Metadata index: " + index.getHitCount() + " decodes saved, "
+                    + index.getMissCount() + " bounds passes");
+            index.resetStats();
+        }
+    }
+
+    private static String getMimeType(CompressFormat format) {
+        if (format == CompressFormat.PNG) {
+            return ImageHeaderParser.MIME_PNG;
+        } else if (format == CompressFormat.JPEG) {
+            return ImageHeaderParser.MIME_JPEG;
+        }
+        return null;
+    }
+
     /**
      * A hashing method that changes a string (like a URL) into a hash suitable for using as a
      * disk filename.
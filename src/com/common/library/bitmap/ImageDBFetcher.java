@@ -21,8 +21,11 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.util.Log;
 
@@ -42,6 +45,10 @@ public abstract class ImageDBFetcher extends ImageResizer {
     private final Object mDbDiskCacheLock = new Object();
     private static final int DISK_CACHE_INDEX = 0;
 
+    // Hashed keys of the images being read right now, guarded by mDbDiskCacheLock
+    private final Set<String> mDbReads = new HashSet<String>();
+    private BlobBatchReader mBatchReader;
+
     /**
      * Initialize providing a target image width and height for the processing images.
      *
@@ -68,7 +75,8 @@ public abstract class ImageDBFetcher extends ImageResizer {
     }
     
 	/**
-	 * Query image from database and write to outputStream
+	 * Query image from database and write to outputStream. Used when {@link #getBlobTable()}
+	 * returns null.
 	 * 
 	 * @param key
 	 *            identifier used to query image
@@ -76,7 +84,38 @@ public abstract class ImageDBFetcher extends ImageResizer {
 	 *            outputStream from DiskCache
 	 * @return true if successfully, otherwise return false
 	 */
-    public abstract boolean queryAndWriteToStream(String key, OutputStream outputStream);
+    public boolean queryAndWriteToStream(String key, OutputStream outputStream) {
+        return false;
+    }
+
+    /**
+     * Describe the table the images are stored in. Images requested at about the same time are
+     * then read with a single {@code IN (...)} query instead of one
+     * {@link #queryAndWriteToStream(String, OutputStream)} call each.
+     *
+     * @return The table, or null to use queryAndWriteToStream
+     */
+    protected BlobTable getBlobTable() {
+        return null;
+    }
+
+    /**
+     * A table holding one image BLOB per row, looked up by the data passed to
+     * {@link #loadImage(Object, android.widget.ImageView)}.
+     */
+    public static class BlobTable {
+        public final SQLiteDatabase database;
+        public final String table;
+        public final String keyColumn;
+        public final String blobColumn;
+
+        public BlobTable(SQLiteDatabase database, String table, String keyColumn, String blobColumn) {
+            this.database = database;
+            this.table = table;
+            this.keyColumn = keyColumn;
+            this.blobColumn = blobColumn;
+        }
+    }
 
     private void init(Context context) {
         mDbCacheDir = ImageCache.getDiskCacheDir(context, DB_CACHE_DIR);
@@ -180,7 +219,8 @@ public abstract class ImageDBFetcher extends ImageResizer {
         final String key = ImageCache.hashKeyForDisk(data);
         FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
-        DiskLruCache.Snapshot snapshot;
+        DiskLruCache.Snapshot snapshot = null;
+        DiskLruCache.Editor editor = null;
         synchronized (mDbDiskCacheLock) {
             // Wait for disk cache to initialize
             while (mDbDiskCacheStarting) {
@@ -189,21 +229,66 @@ public abstract class ImageDBFetcher extends ImageResizer {
                 } catch (InterruptedException e) {}
             }
 
+            // Wait for another task that is already reading the same image
+            while (mDbDiskCache != null && mDbReads.contains(key)) {
+                try {
+                    mDbDiskCacheLock.wait();
+                } catch (InterruptedException e) {}
+            }
+
             if (mDbDiskCache != null) {
                 try {
                     snapshot = mDbDiskCache.get(key);
                     if (snapshot == null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "processBitmap, not found in http cache, downloading...");
-                        }
-                        DiskLruCache.Editor editor = mDbDiskCache.edit(key);
+                        editor = mDbDiskCache.edit(key);
                         if (editor != null) {
-                            if (queryAndWriteToStream(data, editor.newOutputStream(DISK_CACHE_INDEX))) {
-                                editor.commit();
-                            } else {
-                                editor.abort();
-                            }
+                            mDbReads.add(key);
                         }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "processBitmap - " + e);
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "processBitmap - " + e);
+                }
+            }
+        }
+
+        // The database read runs outside of the cache lock so that reads of different images
+        // can be batched together
+        if (editor != null) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "processBitmap, not found in db cache, querying...");
+            }
+            try {
+                final BlobBatchReader batchReader = getBatchReader();
+                final boolean written = batchReader != null
+                        ? batchReader.read(data, editor.newOutputStream(DISK_CACHE_INDEX))
+                        : queryAndWriteToStream(data, editor.newOutputStream(DISK_CACHE_INDEX));
+                if (written) {
+                    editor.commit();
+                } else {
+                    editor.abort();
+                }
+            } catch (InterruptedException e) {
+                abortQuietly(editor);
+            } catch (IOException e) {
+                Log.e(TAG, "processBitmap - " + e);
+                abortQuietly(editor);
+            } catch (IllegalStateException e) {
+                // The cache was closed while reading
+                Log.e(TAG, "processBitmap - " + e);
+            } finally {
+                synchronized (mDbDiskCacheLock) {
+                    mDbReads.remove(key);
+                    mDbDiskCacheLock.notifyAll();
+                }
+            }
+        }
+
+        synchronized (mDbDiskCacheLock) {
+            if (mDbDiskCache != null) {
+                try {
+                    if (snapshot == null) {
                         snapshot = mDbDiskCache.get(key);
                     }
                     if (snapshot != null) {
@@ -236,6 +321,23 @@ public abstract class ImageDBFetcher extends ImageResizer {
         return bitmap;
     }
 
+    private synchronized BlobBatchReader getBatchReader() {
+        if (mBatchReader == null) {
+            final BlobTable table = getBlobTable();
+            if (table != null) {
+                mBatchReader = new BlobBatchReader(table);
+            }
+        }
+        return mBatchReader;
+    }
+
+    private static void abortQuietly(DiskLruCache.Editor editor) {
+        try {
+            editor.abort();
+        } catch (IOException e) {
+        } catch (IllegalStateException e) {}
+    }
+
     @Override
     protected Bitmap processBitmap(Object data) {
         return processBitmap(String.valueOf(data));
@@ -0,0 +1,245 @@
+package com.common.library.bitmap;
+
+/**
+ * A small parser that reads image headers (dimensions, MIME type, EXIF orientation and the
+ * location of an embedded EXIF thumbnail) from the first bytes of an encoded image, without
+ * running a decoder. JPEG, PNG and GIF are supported; other formats return null so that the
+ * caller can fall back to an {@code inJustDecodeBounds} pass.
+ */
+public class ImageHeaderParser {
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_PNG = "image/png";
+    public static final String MIME_GIF = "image/gif";
+
+    // EXIF orientation values, same as android.media.ExifInterface
+    public static final int ORIENTATION_NORMAL = 1;
+
+    private static final int EXIF_TAG_ORIENTATION = 0x0112;
+    private static final int EXIF_TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int EXIF_TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    /**
+     * Header values read from an encoded image.
+     */
+    public static class ImageHeader {
+        public int width;
+        public int height;
+        public String mimeType;
+        public int orientation = ORIENTATION_NORMAL;
+        /** True for progressive (multi-scan) JPEG streams */
+        public boolean progressive;
+        /** Absolute offset of the embedded EXIF JPEG thumbnail, or -1 if there is none */
+        public int thumbnailOffset = -1;
+        public int thumbnailLength;
+        /** Number of bytes that had to be read to fill in this header */
+        public int headerLength;
+
+        public boolean hasThumbnail() {
+            return thumbnailOffset >= 0 && thumbnailLength > 0;
+        }
+    }
+
+    private ImageHeaderParser() {}
+
+    /**
+     * Parse an image header from the first {@code length} bytes of {@code data}.
+     *
+     * @param data The encoded image bytes received so far
+     * @param length The number of valid bytes in data
+     * @return The header, or null if more bytes are needed or the format is unsupported
+     */
+    public static ImageHeader parse(byte[] data, int length) {
+        if (length < 4) {
+            return null;
+        }
+        if ((data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8) {
+            return parseJpeg(data, length);
+        }
+        if ((data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+            return parsePng(data, length);
+        }
+        if (data[0] == 'G' && data[1] == 'I' && data[2] == 'F') {
+            return parseGif(data, length);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the bytes start with a signature this parser recognises
+     */
+    public static boolean isSupported(byte[] data, int length) {
+        if (length < 4) {
+            return false;
+        }
+        return ((data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8)
+                || ((data[0] & 0xFF) == 0x89 && data[1] == 'P')
+                || (data[0] == 'G' && data[1] == 'I' && data[2] == 'F');
+    }
+
+    private static ImageHeader parsePng(byte[] data, int length) {
+        // 8 byte signature, then the IHDR chunk: length(4) type(4) width(4) height(4)
+        if (length < 24) {
+            return null;
+        }
+        final ImageHeader header = new ImageHeader();
+        header.mimeType = MIME_PNG;
+        header.width = readInt(data, 16, false);
+        header.height = readInt(data, 20, false);
+        header.headerLength = 24;
+        return header;
+    }
+
+    private static ImageHeader parseGif(byte[] data, int length) {
+        // "GIF87a"/"GIF89a" followed by the logical screen width and height (little endian)
+        if (length < 10) {
+            return null;
+        }
+        final ImageHeader header = new ImageHeader();
+        header.mimeType = MIME_GIF;
+        header.width = readShort(data, 6, true);
+        header.height = readShort(data, 8, true);
+        header.headerLength = 10;
+        return header;
+    }
+
+    private static ImageHeader parseJpeg(byte[] data, int length) {
+        final ImageHeader header = new ImageHeader();
+        header.mimeType = MIME_JPEG;
+
+        int pos = 2;
+        while (pos + 4 <= length) {
+            if ((data[pos] & 0xFF) != 0xFF) {
+                // Not positioned on a marker, the stream is corrupt
+                return null;
+            }
+            final int marker = data[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                pos++;
+                continue;
+            }
+            if (marker == 0xD8 || (marker >= 0xD0 && marker <= 0xD7) || marker == 0x01) {
+                // Stand-alone markers without a length
+                pos += 2;
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                // Start of scan (or end of image) before a frame header
+                return null;
+            }
+
+            final int segmentLength = readShort(data, pos + 2, false);
+            final int segmentStart = pos + 4;
+            final int segmentEnd = pos + 2 + segmentLength;
+
+            if (marker == 0xE1) {
+                if (segmentEnd > length) {
+                    return null;
+                }
+                parseExif(data, segmentStart, segmentEnd, header);
+            } else if (isStartOfFrame(marker)) {
+                if (segmentStart + 5 > length) {
+                    return null;
+                }
+                header.progressive = marker == 0xC2 || marker == 0xC6
+                        || marker == 0xCA || marker == 0xCE;
+                header.height = readShort(data, segmentStart + 1, false);
+                header.width = readShort(data, segmentStart + 3, false);
+                header.headerLength = segmentEnd;
+                return header;
+            }
+            pos = segmentEnd;
+        }
+        return null;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF
+                && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /**
+     * Read orientation and the thumbnail location out of an APP1 "Exif" segment.
+     */
+    private static void parseExif(byte[] data, int start, int end, ImageHeader header) {
+        if (end - start < 14 || data[start] != 'E' || data[start + 1] != 'x'
+                || data[start + 2] != 'i' || data[start + 3] != 'f') {
+            return;
+        }
+        final int tiff = start + 6;
+        final boolean littleEndian;
+        if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return;
+        }
+
+        // IFD0 carries the orientation, IFD1 (if any) describes the thumbnail
+        final int ifd1Offset = readIfd(data, tiff, readInt(data, tiff + 4, littleEndian), end,
+                littleEndian, header);
+        if (ifd1Offset > 0) {
+            readIfd(data, tiff, ifd1Offset, end, littleEndian, header);
+        }
+    }
+
+    /**
+     * Offsets read from the file are only compared against the bytes left, never added to a
+     * position before they are known to be in bounds, as a sum could overflow.
+     *
+     * @param ifdOffset The offset of the IFD relative to the TIFF header, as read from the file
+     * @return The offset of the next IFD relative to the TIFF header, or 0 at the end of the
+     *         chain or if the directory is out of bounds.
+     */
+    private static int readIfd(byte[] data, int tiff, int ifdOffset, int end,
+            boolean littleEndian, ImageHeader header) {
+        if (ifdOffset < 0 || ifdOffset > end - tiff - 2) {
+            return 0;
+        }
+        final int ifd = tiff + ifdOffset;
+        final int count = readShort(data, ifd, littleEndian);
+        int entry = ifd + 2;
+        int thumbnailOffset = -1;
+        int thumbnailLength = 0;
+        for (int i = 0; i < count && end - entry >= 12; i++, entry += 12) {
+            final int tag = readShort(data, entry, littleEndian);
+            final int type = readShort(data, entry + 2, littleEndian);
+            // SHORT values are left aligned in the 4 byte value field, LONG values fill it
+            final int value = type == 3 ? readShort(data, entry + 8, littleEndian)
+                    : readInt(data, entry + 8, littleEndian);
+            if (tag == EXIF_TAG_ORIENTATION) {
+                header.orientation = value;
+            } else if (tag == EXIF_TAG_THUMBNAIL_OFFSET) {
+                thumbnailOffset = value;
+            } else if (tag == EXIF_TAG_THUMBNAIL_LENGTH) {
+                thumbnailLength = value;
+            }
+        }
+        if (thumbnailOffset > 0 && thumbnailLength > 0 && thumbnailOffset <= end - tiff
+                && thumbnailLength <= end - tiff - thumbnailOffset) {
+            header.thumbnailOffset = tiff + thumbnailOffset;
+            header.thumbnailLength = thumbnailLength;
+        }
+        if (end - entry < 4) {
+            return 0;
+        }
+        return readInt(data, entry, littleEndian);
+    }
+
+    private static int readShort(byte[] data, int pos, boolean littleEndian) {
+        if (littleEndian) {
+            return (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8;
+        }
+        return (data[pos] & 0xFF) << 8 | (data[pos + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int pos, boolean littleEndian) {
+        if (littleEndian) {
+            return (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8
+                    | (data[pos + 2] & 0xFF) << 16 | (data[pos + 3] & 0xFF) << 24;
+        }
+        return (data[pos] & 0xFF) << 24 | (data[pos + 1] & 0xFF) << 16
+                | (data[pos + 2] & 0xFF) << 8 | (data[pos + 3] & 0xFF);
+    }
+}
@@ -24,7 +24,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -36,6 +37,10 @@ import android.widget.Toast;
 
 import com.common.library.BuildConfig;
 import com.common.library.R;
+import com.common.library.download.BandwidthEstimator;
+import com.common.library.download.FetchGate;
+import com.common.library.download.MeteredInputStream;
+import com.common.library.download.RequestPolicy;
 
 /**
  * A simple subclass of {@link ImageResizer} that fetches and resizes images
@@ -98,8 +103,42 @@ public class ImageHttpFetcher extends ImageResizer {
     private File mHttpCacheDir;
     private boolean mHttpDiskCacheStarting = true;
     private final Object mHttpDiskCacheLock = new Object();
+    // Dimensions of the downloaded images, guarded by mHttpDiskCacheLock
+    private ImageMetadataIndex mHttpMetadataIndex;
     private static final int DISK_CACHE_INDEX = 0;
 
+    private boolean mProgressiveDecode = false;
+    private RequestPolicy mRequestPolicy = RequestPolicy.getDefault();
+    private final BandwidthEstimator mBandwidthEstimator = BandwidthEstimator.getDefault();
+    private final FetchGate mFetchGate = FetchGate.getDefault();
+    private UrlRewriter mUrlRewriter;
+    private Context mAppContext;
+
+    // Hashed keys of the URLs being downloaded right now, guarded by mHttpDiskCacheLock
+    private final Set<String> mHttpDownloads = new HashSet<String>();
+
+    /**
+     * Strategy hook to fetch a smaller variant of an image on slow networks, for example by
+     * adding a width or quality parameter understood by the image server.
+     */
+    public interface UrlRewriter {
+        /**
+         * @param url The URL passed to {@link #loadImage(Object, android.widget.ImageView)}
+         * @param quality The current network quality estimated from recent downloads
+         * @param width The target image width
+         * @param height The target image height
+         * @return The URL to download, or url itself to download the original
+         */
+        String rewriteUrl(String url, BandwidthEstimator.Quality quality, int width, int height);
+    }
+    private final ProgressiveDecoder.OnPreviewListener mPreviewListener =
+            new ProgressiveDecoder.OnPreviewListener() {
+        @Override
+        public void onPreview(Bitmap preview) {
+            publishPreview(preview);
+        }
+    };
+
     /**
      * Initialize providing a target image width and height for the processing images.
      *
@@ -123,11 +162,37 @@ public class ImageHttpFetcher extends ImageResizer {
         init(context);
     }
 
+    /**
+     * Set the hook used to pick a smaller image variant when the network is slow.
+     */
+    public void setUrlRewriter(UrlRewriter urlRewriter) {
+        mUrlRewriter = urlRewriter;
+    }
+
     private void init(Context context) {
         checkConnection(context);
+        mAppContext = context.getApplicationContext();
+        mBandwidthEstimator.updateNetworkType(mAppContext);
         mHttpCacheDir = ImageCache.getDiskCacheDir(context, HTTP_CACHE_DIR);
     }
 
+    /**
+     * If set to true, downloads are streamed into the HTTP cache and a {@link ProgressiveDecoder}
+     * at the same time: the sample size is decided from the first bytes, a preview is shown
+     * while large images are still downloading, and the final bitmap is decoded from memory.
+     */
+    public void setProgressiveDecode(boolean progressiveDecode) {
+        mProgressiveDecode = progressiveDecode;
+    }
+
+    /**
+     * Set the {@link RequestPolicy} (retries, adaptive timeouts, hedging) used for downloads,
+     * by default {@link RequestPolicy#getDefault()}.
+     */
+    public void setRequestPolicy(RequestPolicy requestPolicy) {
+        mRequestPolicy = requestPolicy;
+    }
+
     @Override
     protected void initDiskCacheInternal() {
         super.initDiskCacheInternal();
@@ -142,6 +207,7 @@ public class ImageHttpFetcher extends ImageResizer {
             if (ImageCache.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
                 try {
                     mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, 1, 1, HTTP_CACHE_SIZE);
+                    mHttpMetadataIndex = ImageCache.openMetadataIndex(mHttpCacheDir);
                     if (BuildConfig.DEBUG) {
                         Log.d(TAG, "HTTP cache initialized");
                     }
@@ -158,6 +224,10 @@ public class ImageHttpFetcher extends ImageResizer {
     protected void clearCacheInternal() {
         super.clearCacheInternal();
         synchronized (mHttpDiskCacheLock) {
+            if (mHttpMetadataIndex != null) {
+                mHttpMetadataIndex.close();
+                mHttpMetadataIndex = null;
+            }
             if (mHttpDiskCache != null && !mHttpDiskCache.isClosed()) {
                 try {
                     mHttpDiskCache.delete();
@@ -181,6 +251,9 @@ public class ImageHttpFetcher extends ImageResizer {
             if (mHttpDiskCache != null) {
                 try {
                     mHttpDiskCache.flush();
+                    if (mHttpMetadataIndex != null) {
+                        mHttpMetadataIndex.flush();
+                    }
                     if (BuildConfig.DEBUG) {
                         Log.d(TAG, "HTTP cache flushed");
                     }
@@ -195,6 +268,10 @@ public class ImageHttpFetcher extends ImageResizer {
     protected void closeCacheInternal() {
         super.closeCacheInternal();
         synchronized (mHttpDiskCacheLock) {
+            if (mHttpMetadataIndex != null) {
+                mHttpMetadataIndex.close();
+                mHttpMetadataIndex = null;
+            }
             if (mHttpDiskCache != null) {
                 try {
                     if (!mHttpDiskCache.isClosed()) {
@@ -238,10 +315,20 @@ public class ImageHttpFetcher extends ImageResizer {
             Log.d(TAG, "processBitmap - " + data);
         }
 
-        final String key = ImageCache.hashKeyForDisk(data);
+        // The network may have changed since the last fetch, which resets the bandwidth estimate
+        mBandwidthEstimator.updateNetworkTypeIfStale(mAppContext);
+
+        // Ask for a smaller variant of the image when the link is slow. The HTTP cache is keyed
+        // by the URL actually fetched so that variants don't overwrite each other.
+        final String url = mUrlRewriter != null ? mUrlRewriter.rewriteUrl(data,
+                mBandwidthEstimator.getQuality(), mImageWidth, mImageHeight) : data;
+        final String key = ImageCache.hashKeyForDisk(url);
         FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
-        DiskLruCache.Snapshot snapshot;
+        DiskLruCache.Snapshot snapshot = null;
+        DiskLruCache.Editor editor = null;
+        ProgressiveDecoder decoder = null;
+        ImageMetadataIndex metadataIndex = null;
         synchronized (mHttpDiskCacheLock) {
             // Wait for disk cache to initialize
             while (mHttpDiskCacheStarting) {
@@ -250,46 +337,121 @@ public class ImageHttpFetcher extends ImageResizer {
                 } catch (InterruptedException e) {}
             }
 
+            // Wait for another task that is already downloading the same URL
+            while (mHttpDiskCache != null && mHttpDownloads.contains(key)) {
+                try {
+                    mHttpDiskCacheLock.wait();
+                } catch (InterruptedException e) {}
+            }
+
+            metadataIndex = mHttpMetadataIndex;
             if (mHttpDiskCache != null) {
                 try {
                     snapshot = mHttpDiskCache.get(key);
                     if (snapshot == null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "processBitmap, not found in http cache, downloading...");
-                        }
-                        DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
+                        editor = mHttpDiskCache.edit(key);
                         if (editor != null) {
-                            if (downloadUrlToStream(data,
-                                    editor.newOutputStream(DISK_CACHE_INDEX))) {
-                                editor.commit();
-                            } else {
-                                editor.abort();
-                            }
+                            mHttpDownloads.add(key);
                         }
-                        snapshot = mHttpDiskCache.get(key);
-                    }
-                    if (snapshot != null) {
-                        fileInputStream = (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                        fileDescriptor = fileInputStream.getFD();
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "processBitmap - " + e);
                 } catch (IllegalStateException e) {
                     Log.e(TAG, "processBitmap - " + e);
+                }
+            }
+        }
+
+        // The network transfer runs outside of the cache lock so that several images can be
+        // fetched at once, as many as the FetchGate allows on the estimated bandwidth.
+        if (editor != null) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "processBitmap, not found in http cache, downloading...");
+            }
+            try {
+                if (mProgressiveDecode) {
+                    decoder = new ProgressiveDecoder(mImageWidth, mImageHeight,
+                            mPreviewListener);
+                }
+                final HeaderProbe probe = decoder == null && metadataIndex != null
+                        ? new HeaderProbe() : null;
+                mFetchGate.acquire();
+                boolean downloaded;
+                try {
+                    downloaded = downloadUrlToStream(url,
+                            editor.newOutputStream(DISK_CACHE_INDEX), decoder, probe);
                 } finally {
-                    if (fileDescriptor == null && fileInputStream != null) {
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException e) {}
+                    mFetchGate.release();
+                }
+                if (downloaded) {
+                    editor.commit();
+                    // Record the dimensions now so that decoding never needs a bounds pass
+                    final ImageHeaderParser.ImageHeader header = decoder != null
+                            ? decoder.getHeader() : probe != null ? probe.parse() : null;
+                    if (header != null && metadataIndex != null) {
+                        metadataIndex.put(key, header.width, header.height, header.mimeType,
+                                header.orientation);
+                    }
+                } else {
+                    editor.abort();
+                    decoder = null;
+                }
+            } catch (InterruptedException e) {
+                // The task was cancelled while waiting for a download slot
+                decoder = null;
+                abortQuietly(editor);
+            } catch (IOException e) {
+                Log.e(TAG, "processBitmap - " + e);
+                decoder = null;
+                abortQuietly(editor);
+            } catch (IllegalStateException e) {
+                // The cache was closed while downloading
+                Log.e(TAG, "processBitmap - " + e);
+                decoder = null;
+            } finally {
+                synchronized (mHttpDiskCacheLock) {
+                    mHttpDownloads.remove(key);
+                    mHttpDiskCacheLock.notifyAll();
+                }
+            }
+        }
+
+        if (decoder == null || !decoder.canDecode()) {
+            synchronized (mHttpDiskCacheLock) {
+                if (mHttpDiskCache != null) {
+                    try {
+                        if (snapshot == null) {
+                            snapshot = mHttpDiskCache.get(key);
+                        }
+                        if (snapshot != null) {
+                            fileInputStream = (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
+                            fileDescriptor = fileInputStream.getFD();
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "processBitmap - " + e);
+                    } catch (IllegalStateException e) {
+                        Log.e(TAG, "processBitmap - " + e);
+                    } finally {
+                        if (fileDescriptor == null && fileInputStream != null) {
+                            try {
+                                fileInputStream.close();
+                            } catch (IOException e) {}
+                        }
                     }
                 }
             }
+        } else if (snapshot != null) {
+            snapshot.close();
         }
 
         Bitmap bitmap = null;
-        if (fileDescriptor != null) {
-            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth,
-                    mImageHeight, getImageCache());
+        if (decoder != null && decoder.canDecode()) {
+            // The whole image is already in memory, skip re-reading the cache file
+            bitmap = decoder.decode(getImageCache());
+        }
+        if (bitmap == null && fileDescriptor != null) {
+            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, metadataIndex, key,
+                    mImageWidth, mImageHeight, getImageCache());
         }
         if (fileInputStream != null) {
             try {
@@ -299,6 +461,24 @@ public class ImageHttpFetcher extends ImageResizer {
         return bitmap;
     }
 
+    private static void abortQuietly(DiskLruCache.Editor editor) {
+        try {
+            editor.abort();
+        } catch (IOException e) {
+        } catch (IllegalStateException e) {}
+    }
+
+    @Override
+    protected void logDecodeStats() {
+        super.logDecodeStats();
+        final ImageMetadataIndex index = mHttpMetadataIndex;
+        if (index != null) {
+            Log.d(TAG, "HTTP metadata index: " + index.getHitCount() + " decodes saved, "
+                    + index.getMissCount() + " bounds passes");
+            index.resetStats();
+        }
+    }
+
     @Override
     protected Bitmap processBitmap(Object data) {
         return processBitmap(String.valueOf(data));
@@ -311,23 +491,44 @@ public class ImageHttpFetcher extends ImageResizer {
      * @return true if successful, false otherwise
      */
     public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
+        return downloadUrlToStream(urlString, outputStream, null, null);
+    }
+
+    /**
+     * Download a bitmap from a URL and write the content to an output stream, teeing every
+     * chunk to a {@link ProgressiveDecoder} as it arrives.
+     *
+     * @param urlString The URL to fetch
+     * @param decoder The decoder that also receives the bytes, can be null
+     * @param probe Keeps the first bytes to read the image header from, can be null
+     * @return true if successful, false otherwise
+     */
+    private boolean downloadUrlToStream(String urlString, OutputStream outputStream,
+            ProgressiveDecoder decoder, HeaderProbe probe) {
         disableConnectionReuseIfNecessary();
         HttpURLConnection urlConnection = null;
         BufferedOutputStream out = null;
         BufferedInputStream in = null;
 
         try {
-            final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setConnectTimeout(3000);
-            urlConnection.setReadTimeout(3000);
-            
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
+            urlConnection = mRequestPolicy.connect(urlString, null);
+            in = new BufferedInputStream(new MeteredInputStream(urlConnection.getInputStream(),
+                    mBandwidthEstimator), IO_BUFFER_SIZE);
             out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
 
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            final byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                if (decoder != null) {
+                    decoder.write(buffer, 0, count);
+                }
+                if (probe != null) {
+                    probe.write(buffer, count);
+                }
+            }
+            if (decoder != null) {
+                decoder.close();
             }
             return true;
         } catch (final IOException e) {
@@ -348,6 +549,29 @@ public class ImageHttpFetcher extends ImageResizer {
         return false;
     }
 
+    /**
+     * Holds on to the start of a download, where the image header is.
+     */
+    private static class HeaderProbe {
+        // Enough for the EXIF block of most camera JPEGs
+        private static final int PROBE_SIZE = 64 * 1024;
+
+        private final byte[] mData = new byte[PROBE_SIZE];
+        private int mLength;
+
+        void write(byte[] buffer, int count) {
+            final int n = Math.min(count, PROBE_SIZE - mLength);
+            if (n > 0) {
+                System.arraycopy(buffer, 0, mData, mLength, n);
+                mLength += n;
+            }
+        }
+
+        ImageHeaderParser.ImageHeader parse() {
+            return ImageHeaderParser.parse(mData, mLength);
+        }
+    }
+
     /**
      * Workaround for bug pre-Froyo, see here for more info:
      * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
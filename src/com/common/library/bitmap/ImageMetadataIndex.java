@@ -0,0 +1,335 @@
+package com.common.library.bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.common.library.BuildConfig;
+
+/**
+ * Remembers the width, height, MIME type and EXIF orientation of the images in a
+ * {@link DiskLruCache}, so that loading an image again can go straight to a correctly sampled
+ * decode instead of running an {@code inJustDecodeBounds} pass first.
+ *
+ * <p>The index lives in a small append-only file next to the cache journal. Each record is a
+ * key followed by 10 bytes of metadata; a later record for the same key replaces the earlier one,
+ * and the file is rewritten when it has grown well beyond the live entries. A damaged or
+ * truncated file only loses the records after the damage: the index is a hint, and a missing
+ * entry just means a bounds pass.
+ *
+ * <p>Entries of images the cache evicted are dropped when the index is opened, and again each time
+ * the number of entries has doubled, so the index stays about as big as the cache.
+ */
+public class ImageMetadataIndex {
+    private static final String TAG = "ImageMetadataIndex";
+
+    static final String INDEX_FILE = "image-metadata.idx";
+    private static final String INDEX_FILE_TMP = "image-metadata.idx.tmp";
+    private static final int MAGIC = 0x494D4931; // "IMI1"
+    // The value of a cached image, as written by ImageCache and ImageHttpFetcher
+    private static final int DISK_CACHE_INDEX = 0;
+
+    /** Orientation when it is not known, e.g. the entry was recorded from a bounds pass */
+    public static final int ORIENTATION_UNKNOWN = 0;
+
+    private static final String[] MIME_TYPES = {
+        null,
+        ImageHeaderParser.MIME_JPEG,
+        ImageHeaderParser.MIME_PNG,
+        ImageHeaderParser.MIME_GIF,
+        "image/webp",
+    };
+
+    private final File mDirectory;
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private DataOutputStream mWriter;
+    private int mRecordCount;
+    // Number of entries at which the next prune() runs
+    private int mPruneThreshold;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Metadata of one cached image.
+     */
+    public static class Entry {
+        public final int width;
+        public final int height;
+        /** The MIME type, or null if unknown */
+        public final String mimeType;
+        /** The EXIF orientation, or {@link #ORIENTATION_UNKNOWN} */
+        public final int orientation;
+
+        public Entry(int width, int height, String mimeType, int orientation) {
+            this.width = width;
+            this.height = height;
+            this.mimeType = mimeType;
+            this.orientation = orientation;
+        }
+    }
+
+    private ImageMetadataIndex(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Open the index in a cache directory, creating it if needed. This includes disk access so it
+     * should not be executed on the main/UI thread.
+     *
+     * @param directory The directory of the DiskLruCache
+     */
+    public static ImageMetadataIndex open(File directory) throws IOException {
+        final ImageMetadataIndex index = new ImageMetadataIndex(directory);
+        index.readIndex();
+        index.removeEvicted();
+        if (index.mRecordCount > 2 * index.mEntries.size() + 64) {
+            index.rebuildIndex();
+        } else {
+            index.openWriter(true);
+        }
+        return index;
+    }
+
+    private void readIndex() {
+        final File file = new File(mDirectory, INDEX_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                Log.e(TAG, "readIndex - bad magic, starting over");
+                mEntries.clear();
+                mRecordCount = Integer.MAX_VALUE;
+                return;
+            }
+            while (true) {
+                final String key = in.readUTF();
+                final int width = in.readInt();
+                final int height = in.readInt();
+                final int mime = in.readByte();
+                final int orientation = in.readByte();
+                mRecordCount++;
+                if (width <= 0 || height <= 0) {
+                    mEntries.remove(key);
+                } else {
+                    mEntries.put(key, new Entry(width, height,
+                            mime > 0 && mime < MIME_TYPES.length ? MIME_TYPES[mime] : null,
+                            orientation));
+                }
+            }
+        } catch (EOFException e) {
+            // End of the index, possibly in the middle of a record written when the process died
+        } catch (IOException e) {
+            Log.e(TAG, "readIndex - " + e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "readIndex - " + mEntries.size() + " entries, " + mRecordCount + " records");
+        }
+    }
+
+    /**
+     * Drop the entries of images no longer in the cache. The cache file of a key is checked
+     * directly rather than through {@link DiskLruCache#get}, which would journal a read.
+     *
+     * @return true if any entry was dropped
+     */
+    private boolean removeEvicted() {
+        boolean removed = false;
+        final Iterator<String> keys = mEntries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (!new File(mDirectory, keys.next() + "." + DISK_CACHE_INDEX).exists()) {
+                keys.remove();
+                removed = true;
+            }
+        }
+        mPruneThreshold = 2 * mEntries.size() + 64;
+        return removed;
+    }
+
+    private void openWriter(boolean append) throws IOException {
+        final File file = new File(mDirectory, INDEX_FILE);
+        final boolean isNew = !append || !file.exists() || file.length() == 0;
+        mWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !isNew)));
+        if (isNew) {
+            mWriter.writeInt(MAGIC);
+        }
+    }
+
+    /**
+     * Write the live entries to a new file and swap it in.
+     */
+    private void rebuildIndex() throws IOException {
+        if (mWriter != null) {
+            mWriter.close();
+        }
+        final File tmp = new File(mDirectory, INDEX_FILE_TMP);
+        final DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                writeRecord(out, e.getKey(), e.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        final File file = new File(mDirectory, INDEX_FILE);
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rebuildIndex - cannot rename " + tmp);
+            }
+        }
+        mRecordCount = mEntries.size();
+        openWriter(true);
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, Entry entry)
+            throws IOException {
+        out.writeUTF(key);
+        out.writeInt(entry != null ? entry.width : 0);
+        out.writeInt(entry != null ? entry.height : 0);
+        out.writeByte(entry != null ? mimeCode(entry.mimeType) : 0);
+        out.writeByte(entry != null ? entry.orientation : 0);
+    }
+
+    private static int mimeCode(String mimeType) {
+        if (mimeType != null) {
+            for (int i = 1; i < MIME_TYPES.length; i++) {
+                if (MIME_TYPES[i].equals(mimeType)) {
+                    return i;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param key The disk cache key
+     * @return The metadata of the image, or null if it isn't indexed
+     */
+    public synchronized Entry get(String key) {
+        final Entry entry = mEntries.get(key);
+        if (entry != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return entry;
+    }
+
+    /**
+     * Record the metadata of an image written to the disk cache under key.
+     */
+    public synchronized void put(String key, int width, int height, String mimeType,
+            int orientation) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        final Entry entry = new Entry(width, height, mimeType, orientation);
+        final Entry old = mEntries.put(key, entry);
+        if (old != null && old.width == width && old.height == height
+                && old.orientation == orientation && mimeCode(old.mimeType) == mimeCode(mimeType)) {
+            return;
+        }
+        append(key, entry);
+        if (mEntries.size() > mPruneThreshold && removeEvicted()) {
+            try {
+                rebuildIndex();
+            } catch (IOException e) {
+                Log.e(TAG, "put - " + e);
+            }
+        }
+    }
+
+    /**
+     * Forget an entry whose metadata turned out to be wrong.
+     */
+    public synchronized void remove(String key) {
+        if (mEntries.remove(key) != null) {
+            append(key, null);
+        }
+    }
+
+    private void append(String key, Entry entry) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            writeRecord(mWriter, key, entry);
+            mRecordCount++;
+        } catch (IOException e) {
+            Log.e(TAG, "append - " + e);
+        }
+    }
+
+    /**
+     * Drop all the entries, e.g. after the disk cache was cleared.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        try {
+            rebuildIndex();
+        } catch (IOException e) {
+            Log.e(TAG, "clear - " + e);
+        }
+    }
+
+    public synchronized void flush() {
+        if (mWriter != null) {
+            try {
+                mWriter.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "flush - " + e);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close - " + e);
+            }
+            mWriter = null;
+        }
+    }
+
+    /**
+     * @return The number of lookups that found an entry, i.e. bounds passes saved, since the last
+     *         {@link #resetStats()}.
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized void resetStats() {
+        mHitCount = 0;
+        mMissCount = 0;
+    }
+}
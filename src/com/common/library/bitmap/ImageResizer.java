@@ -18,6 +18,7 @@ package com.common.library.bitmap;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
 
 import android.annotation.TargetApi;
@@ -26,6 +27,7 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
+import android.media.ExifInterface;
 import android.os.Build;
 import android.util.Log;
 
@@ -39,6 +41,10 @@ import com.common.library.utils.DeviceUtils;
  */
 public class ImageResizer extends ImageWorker {
     private static final String TAG = "ImageResizer";
+    // Below this JPEG artifacts cost more than a smaller image does
+    private static final int MIN_COMPRESS_QUALITY = 20;
+    // How much of a file is read looking for the EXIF block and its thumbnail
+    private static final int EXIF_PROBE_SIZE = 64 * 1024;
     protected int mImageWidth;
     protected int mImageHeight;
 
@@ -212,12 +218,43 @@ public class ImageResizer extends ImageWorker {
      */
     public static Bitmap decodeSampledBitmapFromDescriptor(
             FileDescriptor fileDescriptor, int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeSampledBitmapFromDescriptor(fileDescriptor, null, null, reqWidth, reqHeight,
+                cache);
+    }
+
+    /**
+     * Decode and sample down a bitmap from a file input stream to the requested width and height,
+     * taking the image dimensions from a metadata index when it has them instead of running a
+     * bounds pass. Dimensions found by a bounds pass are added to the index.
+     *
+     * @param fileDescriptor The file descriptor to read from
+     * @param index The metadata index of the cache the file belongs to, may be null
+     * @param key The key of the file in the index
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor,
+            ImageMetadataIndex index, String key, int reqWidth, int reqHeight, ImageCache cache) {
 
-        // First decode with inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
-        
+        final ImageMetadataIndex.Entry entry = index != null ? index.get(key) : null;
+        if (entry != null) {
+            options.outWidth = entry.width;
+            options.outHeight = entry.height;
+            options.outMimeType = entry.mimeType;
+        } else {
+            // First decode with inJustDecodeBounds=true to check dimensions
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+            if (index != null) {
+                index.put(key, options.outWidth, options.outHeight, options.outMimeType,
+                        ImageMetadataIndex.ORIENTATION_UNKNOWN);
+            }
+        }
+
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
 
@@ -229,7 +266,25 @@ public class ImageResizer extends ImageWorker {
             addInBitmapOptions(options, cache);
         }
         
-        Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        } catch (IllegalArgumentException e) {
+            if (entry == null) {
+                throw e;
+            }
+            // The indexed dimensions were stale and picked an unusable inBitmap, forget them
+            Log.e(TAG, "decodeSampledBitmapFromDescriptor - " + e);
+            index.remove(key);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        }
+        if (bitmap == null) {
+            if (entry != null) {
+                index.remove(key);
+            }
+            return null;
+        }
         
         // if reqWidth and reqHeight is Integer.MAX_VALUE we just don't need to scale again.
         if(reqWidth == Integer.MAX_VALUE && reqHeight == Integer.MAX_VALUE){
@@ -247,6 +302,77 @@ public class ImageResizer extends ImageWorker {
 		return Bitmap.createBitmap(bitmap, 0, 0, orgionalWidth, orgionalHeight, matrix, true);
     }
 
+    /**
+     * Decode and sample down a bitmap from a byte array to the requested width and height.
+     *
+     * @param data The encoded image
+     * @param offset The offset of the image in data
+     * @param length The length of the image in data
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, int offset, int length,
+            int reqWidth, int reqHeight, ImageCache cache) {
+
+        // First decode with inJustDecodeBounds=true to check dimensions
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+
+        return decodeSampledBitmapFromByteArray(data, offset, length,
+                options.outWidth, options.outHeight, reqWidth, reqHeight, cache);
+    }
+
+    /**
+     * Decode and sample down a bitmap from a byte array whose dimensions are already known,
+     * for example from {@link ImageHeaderParser}, so the bounds pass can be skipped.
+     *
+     * @param data The encoded image
+     * @param offset The offset of the image in data
+     * @param length The length of the image in data
+     * @param outWidth The raw width of the encoded image
+     * @param outHeight The raw height of the encoded image
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap
+     * @return A bitmap sampled down from the original
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, int offset, int length,
+            int outWidth, int outHeight, int reqWidth, int reqHeight, ImageCache cache) {
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = outWidth;
+        options.outHeight = outHeight;
+
+        // Calculate inSampleSize
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+
+        // If we're running on Honeycomb or newer, try to use inBitmap
+        if (DeviceUtils.hasHoneycomb()) {
+            addInBitmapOptions(options, cache);
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+
+        // if reqWidth and reqHeight is Integer.MAX_VALUE we just don't need to scale again.
+        if (bitmap == null || (reqWidth == Integer.MAX_VALUE && reqHeight == Integer.MAX_VALUE)) {
+            return bitmap;
+        }
+
+        // Scale the image to the proportion specified by reqHeight and reqWidth
+        int orgionalWidth = bitmap.getWidth();
+        int orgionalHeight = bitmap.getHeight();
+
+        Matrix matrix = new Matrix();
+        float scaleWidth = reqWidth / (float) orgionalWidth;
+        float scaleHeight = reqHeight / (float) orgionalHeight;
+        matrix.postScale(scaleWidth, scaleHeight);
+        return Bitmap.createBitmap(bitmap, 0, 0, orgionalWidth, orgionalHeight, matrix, true);
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     private static void addInBitmapOptions(BitmapFactory.Options options, ImageCache cache) {
         //BEGIN_INCLUDE(add_bitmap_options)
@@ -317,115 +443,431 @@ public class ImageResizer extends ImageWorker {
         // END_INCLUDE (calculate_sample_size)
     }
     
-    private static byte[] decodeThumbnailAsBytes(String imageFilePath, int reqWidth, int reqHeitht, int maxFileSize) {
-		// decode down bitmap
-		final BitmapFactory.Options options = new BitmapFactory.Options();
+    /**
+     * Source of encoded image data for {@link #decodeThumbnail}.
+     */
+    private interface ThumbnailSource {
+        Bitmap decode(BitmapFactory.Options options);
+    }
+
+    private static ThumbnailSource fileSource(final String imageFilePath) {
+        return new ThumbnailSource() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFile(imageFilePath, options);
+            }
+        };
+    }
+
+    private static ThumbnailSource resourceSource(final Resources resources, final int resId) {
+        return new ThumbnailSource() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeResource(resources, resId, options);
+            }
+        };
+    }
+
+    /**
+     * Decode a thumbnail of exactly reqWidth x reqHeight. inSampleSize does the coarse power of 2
+     * reduction and, from KitKat on, inDensity/inTargetDensity make the decoder scale the rest of
+     * the way in the same pass, into a bitmap from the reusable set when there is one. A second
+     * scaled copy is only made when the aspect ratio of the image differs from the requested one
+     * (or before KitKat, where density scaling is done by a copy after decoding anyway).
+     * A rotation or flip for the EXIF orientation is applied by that same copy.
+     *
+     * @param orientation The EXIF orientation of the source, reqWidth and reqHeight are the size
+     *            after it is applied
+     */
+    private static Bitmap decodeThumbnail(ThumbnailSource source, int reqWidth, int reqHeight,
+            ImageCache cache, int orientation) {
+        final long startTime = BuildConfig.DEBUG ? System.currentTimeMillis() : 0;
+        if (isTransposed(orientation)) {
+            // Decode to the size before the quarter turn
+            final int width = reqWidth;
+            reqWidth = reqHeight;
+            reqHeight = width;
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
-	    BitmapFactory.decodeFile(imageFilePath, options);
-	    options.inSampleSize = calculateInSampleSize(options, reqWidth, reqWidth);
-	    options.inJustDecodeBounds = false;
-	    Bitmap bitmap = BitmapFactory.decodeFile(imageFilePath, options);
-	    
-	    // raw width and height
-	 	int width = bitmap.getWidth();
-	 	int height = bitmap.getHeight();
-	    
-	 	float scaleWidth;
-	 	float scaleHeight;
-	 	
-	 	Matrix matrix = new Matrix();
-	 	scaleWidth = reqWidth / (float)width;
-		scaleHeight = reqWidth / (float)height;
-	 	matrix.postScale(scaleWidth, scaleHeight);
-		Bitmap newbmp = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
+        // Raw pixel dimensions, not scaled for the density of a resource
+        options.inScaled = false;
+        source.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
 
-		return compressBitmapQuality(newbmp, maxFileSize);
-	}
-    
+        final int sampledWidth = options.outWidth / options.inSampleSize;
+        final int sampledHeight = options.outHeight / options.inSampleSize;
+        int decodedWidth = sampledWidth;
+        int decodedHeight = sampledHeight;
+        if (DeviceUtils.hasKitKat() && sampledWidth > reqWidth) {
+            options.inScaled = true;
+            options.inDensity = sampledWidth;
+            options.inTargetDensity = reqWidth;
+            decodedWidth = reqWidth;
+            decodedHeight = (int) (sampledHeight * reqWidth / (float) sampledWidth + 0.5f);
+        }
+
+        if (DeviceUtils.hasHoneycomb()) {
+            // The reusable set is matched against outWidth/outHeight divided by inSampleSize,
+            // so describe the size the decoder will really produce
+            final int outWidth = options.outWidth;
+            final int outHeight = options.outHeight;
+            options.outWidth = decodedWidth * options.inSampleSize;
+            options.outHeight = decodedHeight * options.inSampleSize;
+            addInBitmapOptions(options, cache);
+            options.outWidth = outWidth;
+            options.outHeight = outHeight;
+        }
+
+        Bitmap bitmap = source.decode(options);
+        if (bitmap == null) {
+            return null;
+        }
+        final boolean reused = options.inBitmap != null;
+
+        boolean copied = false;
+        final boolean oriented = orientation > ImageHeaderParser.ORIENTATION_NORMAL;
+        if (oriented || Math.abs(bitmap.getWidth() - reqWidth) > 1
+                || Math.abs(bitmap.getHeight() - reqHeight) > 1) {
+            final Bitmap scaled;
+            if (oriented) {
+                final Matrix matrix = new Matrix();
+                matrix.postScale(reqWidth / (float) bitmap.getWidth(),
+                        reqHeight / (float) bitmap.getHeight());
+                postOrientation(matrix, orientation);
+                scaled = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
+                        matrix, true);
+            } else {
+                scaled = Bitmap.createScaledBitmap(bitmap, reqWidth, reqHeight, true);
+            }
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+                copied = true;
+            }
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "decodeThumbnail - " + options.outWidth + "x" + options.outHeight
+                    + " -> " + bitmap.getWidth() + "x" + bitmap.getHeight()
+                    + ", orientation " + orientation + ", sample " + options.inSampleSize
+                    + ", " + ((reused ? 0 : 1) + (copied ? 1 : 0)) + " bitmap allocations, "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return true if the EXIF orientation includes a quarter turn, swapping width and height
+     */
+    private static boolean isTransposed(int orientation) {
+        return orientation >= 5 && orientation <= 8;
+    }
+
+    /**
+     * Post the transform that displays an image with the given EXIF orientation upright.
+     */
+    private static void postOrientation(Matrix matrix, int orientation) {
+        switch (orientation) {
+            case 2: // flip horizontal
+                matrix.postScale(-1, 1);
+                break;
+            case 3: // rotate 180
+                matrix.postRotate(180);
+                break;
+            case 4: // flip vertical
+                matrix.postScale(1, -1);
+                break;
+            case 5: // transpose
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case 6: // rotate 90
+                matrix.postRotate(90);
+                break;
+            case 7: // transverse
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case 8: // rotate 270
+                matrix.postRotate(-90);
+                break;
+        }
+    }
+
+    /**
+     * Decode a thumbnail of an image file, the right way up. Camera photos usually embed a small
+     * JPEG thumbnail in their EXIF data; when it is big enough for the requested size and has the
+     * same aspect ratio as the photo, it is decoded instead of the photo, which is much faster.
+     * Otherwise the photo itself is decoded with {@link #decodeThumbnail}.
+     */
+    private static Bitmap decodeFileThumbnail(String imageFilePath, int reqWidth, int reqHeight,
+            ImageCache cache) {
+        final long startTime = BuildConfig.DEBUG ? System.currentTimeMillis() : 0;
+
+        final byte[] head = new byte[EXIF_PROBE_SIZE];
+        final int headLength = readHead(imageFilePath, head);
+        final ImageHeaderParser.ImageHeader header = ImageHeaderParser.parse(head, headLength);
+        final int orientation = header != null ? header.orientation : readOrientation(imageFilePath);
+
+        Bitmap bitmap = null;
+        if (header != null && header.hasThumbnail()
+                && header.thumbnailLength <= headLength - header.thumbnailOffset) {
+            final byte[] thumbnail = new byte[header.thumbnailLength];
+            System.arraycopy(head, header.thumbnailOffset, thumbnail, 0, header.thumbnailLength);
+            final ImageHeaderParser.ImageHeader thumbnailHeader =
+                    ImageHeaderParser.parse(thumbnail, thumbnail.length);
+            if (isUsableThumbnail(header, thumbnailHeader, reqWidth, reqHeight)) {
+                bitmap = decodeThumbnail(byteArraySource(thumbnail), reqWidth, reqHeight, cache,
+                        orientation);
+            }
+        }
+        final boolean fromExif = bitmap != null;
+        if (bitmap == null) {
+            bitmap = decodeThumbnail(fileSource(imageFilePath), reqWidth, reqHeight, cache,
+                    orientation);
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "decodeFileThumbnail - " + (fromExif ? "EXIF thumbnail, " : "full image, ")
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return true if the embedded thumbnail covers the requested size without upscaling and shows
+     *         the whole photo, not a letterboxed version of it
+     */
+    private static boolean isUsableThumbnail(ImageHeaderParser.ImageHeader image,
+            ImageHeaderParser.ImageHeader thumbnail, int reqWidth, int reqHeight) {
+        if (thumbnail == null || thumbnail.width <= 0 || thumbnail.height <= 0
+                || image.width <= 0 || image.height <= 0) {
+            return false;
+        }
+        // The thumbnail is stored the same way up as the photo
+        final int width = isTransposed(image.orientation) ? reqHeight : reqWidth;
+        final int height = isTransposed(image.orientation) ? reqWidth : reqHeight;
+        if (thumbnail.width < width || thumbnail.height < height) {
+            return false;
+        }
+        final float imageAspect = image.width / (float) image.height;
+        final float thumbnailAspect = thumbnail.width / (float) thumbnail.height;
+        return Math.abs(imageAspect - thumbnailAspect) <= imageAspect * 0.02f;
+    }
+
+    /**
+     * Fallback for files whose header doesn't fit in {@link #EXIF_PROBE_SIZE}, e.g. because of a
+     * large ICC profile.
+     */
+    private static int readOrientation(String path) {
+        try {
+            return new ExifInterface(path).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.e(TAG, "readOrientation - " + e);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Read up to buffer.length bytes from the start of a file.
+     *
+     * @return The number of bytes read
+     */
+    private static int readHead(String path, byte[] buffer) {
+        FileInputStream in = null;
+        int length = 0;
+        try {
+            in = new FileInputStream(path);
+            int count;
+            while (length < buffer.length
+                    && (count = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += count;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "readHead - " + e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+        }
+        return length;
+    }
+
+    private static ThumbnailSource byteArraySource(final byte[] data) {
+        return new ThumbnailSource() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+        };
+    }
+
+    private static byte[] compressThumbnail(Bitmap bitmap, int maxFileSize) {
+        if (bitmap == null) {
+            return null;
+        }
+        try {
+            return compressBitmapQuality(bitmap, maxFileSize);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private static byte[] decodeThumbnailAsBytes(String imageFilePath, int reqWidth, int reqHeight, int maxFileSize) {
+        return compressThumbnail(
+                decodeFileThumbnail(imageFilePath, reqWidth, reqHeight, null), maxFileSize);
+    }
+
+    /**
+     * Decode a reqWidth x reqHeight thumbnail of an image file in a single decode.
+     *
+     * @param maxFileSize Unused, the bitmap is no longer round-tripped through JPEG. Kept for
+     *            compatibility.
+     */
     public static Bitmap decodeThumbnailAsBitmap(String imageFilePath, int reqWidth, int reqHeight, int maxFileSize) {
-    	byte[] bitmapBytes = decodeThumbnailAsBytes(imageFilePath, reqWidth, reqHeight, maxFileSize);
-    	if(bitmapBytes != null){
-    		return BitmapFactory.decodeByteArray(bitmapBytes, 0, bitmapBytes.length);
-    	}
-    	return null;
+        return decodeThumbnailAsBitmap(imageFilePath, reqWidth, reqHeight, (ImageCache) null);
     }
-    
+
+    /**
+     * Decode a reqWidth x reqHeight thumbnail of an image file in a single decode.
+     *
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap, may be null
+     */
+    public static Bitmap decodeThumbnailAsBitmap(String imageFilePath, int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeFileThumbnail(imageFilePath, reqWidth, reqHeight, cache);
+    }
+
     public static byte[] decodeSquareThumbnailAsBytes(String imageFilePath, int maxLen, int maxSize){
-    	return decodeThumbnailAsBytes(imageFilePath, maxLen, maxLen, maxSize);
+        return decodeThumbnailAsBytes(imageFilePath, maxLen, maxLen, maxSize);
     }
-    
+
     public static Bitmap decodeSquareThumbnailAsBitmap(String imageFilePath, int maxLen, int maxFileSize) {
-		byte[] bitmapBytes = decodeSquareThumbnailAsBytes(imageFilePath, maxLen, maxFileSize);
-		if(bitmapBytes != null){
-			return BitmapFactory.decodeByteArray(bitmapBytes, 0, bitmapBytes.length);
-		}
-		return null;
+        return decodeThumbnailAsBitmap(imageFilePath, maxLen, maxLen, (ImageCache) null);
     }
-    
-    private static byte[] decodeThumbnailAsBytes(Resources resouces, int resId, int reqWidth, int reqHeight, int maxFileSize) {
-		// decode down bitmap
-		final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-	    BitmapFactory.decodeResource(resouces, resId, options);
-	    options.inSampleSize = calculateInSampleSize(options, reqWidth, reqWidth);
-	    options.inJustDecodeBounds = false;
-	    Bitmap bitmap = BitmapFactory.decodeResource(resouces, resId, options);
-	    
-	    // Scale the image to the proportion specified by reqHeight and reqWidth
-        int orgionalWidth = bitmap.getWidth();
-        int orgionalHeight = bitmap.getHeight();
-        
-        Matrix matrix = new Matrix();
-	 	float scaleWidth = reqWidth / (float)orgionalWidth;
-	 	float scaleHeight = reqHeight / (float)orgionalHeight;
-	 	matrix.postScale(scaleWidth, scaleHeight);
-		Bitmap scaledBitmap = Bitmap.createBitmap(bitmap, 0, 0, orgionalWidth, orgionalHeight, matrix, true);
 
-		return compressBitmapQuality(scaledBitmap, maxFileSize);
-	}
-    
+    private static byte[] decodeThumbnailAsBytes(Resources resources, int resId, int reqWidth, int reqHeight, int maxFileSize) {
+        return compressThumbnail(
+                decodeThumbnail(resourceSource(resources, resId), reqWidth, reqHeight, null,
+                        ImageHeaderParser.ORIENTATION_NORMAL), maxFileSize);
+    }
+
+    /**
+     * Decode a reqWidth x reqHeight thumbnail of a resource in a single decode.
+     *
+     * @param maxFileSize Unused, the bitmap is no longer round-tripped through JPEG. Kept for
+     *            compatibility.
+     */
     public static Bitmap decodeThumbnailAsBitmap(Resources resources, int resid, int reqWidth, int reqHeight, int maxFileSize) {
-    	byte[] bitmapBytes = decodeThumbnailAsBytes(resources, resid, reqWidth, reqHeight, maxFileSize);
-    	if(bitmapBytes != null){
-    		return BitmapFactory.decodeByteArray(bitmapBytes, 0, bitmapBytes.length);
-    	}
-    	return null;
+        return decodeThumbnailAsBitmap(resources, resid, reqWidth, reqHeight, (ImageCache) null);
     }
-    
+
+    /**
+     * Decode a reqWidth x reqHeight thumbnail of a resource in a single decode.
+     *
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap, may be null
+     */
+    public static Bitmap decodeThumbnailAsBitmap(Resources resources, int resid, int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeThumbnail(resourceSource(resources, resid), reqWidth, reqHeight, cache,
+                ImageHeaderParser.ORIENTATION_NORMAL);
+    }
+
     public static byte[] decodeSquareThumbnailAsBytes(Resources resources, int resid, int maxLen, int maxSize){
-    	return decodeThumbnailAsBytes(resources, resid, maxLen, maxLen, maxSize);
+        return decodeThumbnailAsBytes(resources, resid, maxLen, maxLen, maxSize);
     }
-    
+
     public static Bitmap decodeSquareThumbnailAsBitmap(Resources resources, int resid, int maxLen, int maxFileSize) {
-		byte[] bitmapBytes = decodeSquareThumbnailAsBytes(resources, resid, maxLen, maxFileSize);
-		if(bitmapBytes != null){
-			return BitmapFactory.decodeByteArray(bitmapBytes, 0, bitmapBytes.length);
-		}
-		return null;
+        return decodeThumbnailAsBitmap(resources, resid, maxLen, maxLen, (ImageCache) null);
     }
-    
+
+    /**
+     * Encode a bitmap as JPEG no bigger than maxSize kilobytes, at the highest quality that fits.
+     * The quality is found by binary search, so it takes at most eight encodes (one at 100,
+     * seven over the qualities below) instead of one per quality step. If even
+     * {@link #MIN_COMPRESS_QUALITY} is too big, the bitmap is scaled down until it fits.
+     *
+     * @param bitmap The bitmap to encode, it is not recycled
+     * @param maxSize The maximum size of the encoded image in kilobytes
+     * @return The JPEG data
+     */
     private static byte[] compressBitmapQuality(Bitmap bitmap, int maxSize) {
-    	ByteArrayOutputStream outputStream = null;
-    	try{
-    		outputStream = new ByteArrayOutputStream();
-    		bitmap.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-    		
-    		int options = 100;
-    		while (outputStream.toByteArray().length / 1024 > maxSize) {
-    			outputStream.reset();
-    			bitmap.compress(Bitmap.CompressFormat.JPEG, options, outputStream);
-    			options -= 1;
-    			if (options < 0) {
-    				break;
-    			}
-    		}
-    		return outputStream.toByteArray();
-    	}finally{
-    		try {
-				outputStream.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-    	}
-	}
+        final long startTime = BuildConfig.DEBUG ? System.currentTimeMillis() : 0;
+        final int maxBytes = maxSize * 1024;
+        // One buffer for every attempt, reset() keeps its capacity. A second one holds the best
+        // fit so far, the two are swapped rather than copied when an attempt fits.
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(maxBytes + 1024);
+        ByteArrayOutputStream bestStream = null;
+        int encodeCount = 0;
+        Bitmap source = bitmap;
+        try {
+            while (true) {
+                outputStream.reset();
+                source.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
+                encodeCount++;
+                if (outputStream.size() <= maxBytes) {
+                    return outputStream.toByteArray();
+                }
+
+                // Invariant: bestStream fits (if hasBest), everything above high does not fit
+                int low = MIN_COMPRESS_QUALITY;
+                int high = 99;
+                boolean hasBest = false;
+                int lastSize = outputStream.size();
+                while (low <= high) {
+                    final int quality = (low + high) >>> 1;
+                    outputStream.reset();
+                    source.compress(Bitmap.CompressFormat.JPEG, quality, outputStream);
+                    encodeCount++;
+                    lastSize = outputStream.size();
+                    if (lastSize <= maxBytes) {
+                        // Kept so the best quality doesn't have to be encoded again at the end
+                        final ByteArrayOutputStream fit = outputStream;
+                        outputStream = bestStream != null ? bestStream
+                                : new ByteArrayOutputStream(maxBytes + 1024);
+                        bestStream = fit;
+                        hasBest = true;
+                        low = quality + 1;
+                    } else {
+                        high = quality - 1;
+                    }
+                }
+
+                if (hasBest) {
+                    return bestStream.toByteArray();
+                }
+
+                // Quality alone can't get there, shrink the pixel count in proportion to the
+                // overshoot at the lowest quality, with some margin
+                final float scale = Math.min(0.9f,
+                        (float) Math.sqrt((double) maxBytes / lastSize) * 0.95f);
+                final int width = Math.max(1, (int) (source.getWidth() * scale));
+                final int height = Math.max(1, (int) (source.getHeight() * scale));
+                if (width == source.getWidth() && height == source.getHeight()) {
+                    // 1x1 and still too big, nothing more to do
+                    return outputStream.toByteArray();
+                }
+                final Bitmap scaled = Bitmap.createScaledBitmap(source, width, height, true);
+                if (source != bitmap) {
+                    source.recycle();
+                }
+                source = scaled;
+            }
+        } finally {
+            if (source != bitmap) {
+                source.recycle();
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "compressBitmapQuality - " + encodeCount + " encodes, "
+                        + (System.currentTimeMillis() - startTime) + "ms");
+            }
+        }
+    }
 }
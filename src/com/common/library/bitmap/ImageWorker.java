@@ -51,6 +51,9 @@ public abstract class ImageWorker {
     protected boolean mPauseWork = false;
     private final Object mPauseWorkLock = new Object();
 
+    // The task running processBitmap() on the current thread, used to publish previews
+    private final ThreadLocal<BitmapWorkerTask> mCurrentTask = new ThreadLocal<BitmapWorkerTask>();
+
     protected Resources mResources;
 
     private static final int MESSAGE_CLEAR = 0;
@@ -193,6 +196,20 @@ public abstract class ImageWorker {
      */
     protected abstract Bitmap processBitmap(Object data);
 
+    /**
+     * Show a low resolution preview while {@link #processBitmap(Object)} is still running,
+     * for example an embedded thumbnail or a partially downloaded image. Must be called from
+     * within processBitmap(). The preview is not cached and is replaced by the final bitmap.
+     *
+     * @param preview The preview bitmap
+     */
+    protected void publishPreview(Bitmap preview) {
+        final BitmapWorkerTask task = mCurrentTask.get();
+        if (task != null && preview != null && !task.isCancelled()) {
+            task.publishProgress(preview);
+        }
+    }
+
     /**
      * @return The {@link ImageCache} object currently being used by this ImageWorker.
      */
@@ -260,7 +277,7 @@ public abstract class ImageWorker {
     /**
      * The actual AsyncTask that will asynchronously process the image.
      */
-    private class BitmapWorkerTask extends AsyncTask<Void, Void, BitmapDrawable> {
+    private class BitmapWorkerTask extends AsyncTask<Void, Bitmap, BitmapDrawable> {
         private Object mData;
         private final WeakReference<ImageView> imageViewReference;
 
@@ -307,7 +324,12 @@ public abstract class ImageWorker {
             // process method (as implemented by a subclass)
             if (bitmap == null && !isCancelled() && getAttachedImageView() != null
                     && !mTaskWorkPaused) {
-                bitmap = processBitmap(mData);
+                mCurrentTask.set(this);
+                try {
+                    bitmap = processBitmap(mData);
+                } finally {
+                    mCurrentTask.remove();
+                }
             }
 
             // If the bitmap was processed and the image cache is available, then add the processed
@@ -321,7 +343,7 @@ public abstract class ImageWorker {
                 } else {
                     // Running on Gingerbread or older, so wrap in a RecyclingBitmapDrawable
                     // which will recycle automagically
-                    drawable = new RecyclingBitmapDrawable(mResources, bitmap);
+                    drawable = new RecyclingBitmapDrawable(mResources, bitmap, mImageCache);
                 }
 
                 if (mImageCache != null) {
@@ -363,6 +385,21 @@ public abstract class ImageWorker {
             //END_INCLUDE(complete_background_work)
         }
 
+        /**
+         * Shows a preview published by {@link ImageWorker#publishPreview(Bitmap)}. The preview
+         * is wrapped in a new AsyncDrawable so the ImageView stays bound to this task.
+         */
+        @Override
+        protected void onProgressUpdate(Bitmap... values) {
+            if (isCancelled() || mTaskWorkPaused) {
+                return;
+            }
+            final ImageView imageView = getAttachedImageView();
+            if (imageView != null && values != null && values.length > 0) {
+                imageView.setImageDrawable(new AsyncDrawable(mResources, values[0], this));
+            }
+        }
+
         @Override
         protected void onCancelled(BitmapDrawable value) {
             super.onCancelled(value);
@@ -449,6 +486,19 @@ public abstract class ImageWorker {
                 mPauseWorkLock.notifyAll();
             }
         }
+        if (pauseWork && BuildConfig.DEBUG) {
+            // A new scroll starts, report on the previous one
+            logDecodeStats();
+        }
+    }
+
+    /**
+     * Log decode statistics gathered since the previous call, once per scroll in debug builds.
+     */
+    protected void logDecodeStats() {
+        if (mImageCache != null) {
+            mImageCache.logMetadataIndexStats();
+        }
     }
 
     protected class CacheAsyncTask extends AsyncTask<Object, Void, Void> {
@@ -0,0 +1,246 @@
+package com.common.library.bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.common.library.BuildConfig;
+
+/**
+ * Receives the bytes of an image while it is being downloaded. The bytes are teed to the
+ * disk cache editor by {@link ImageHttpFetcher} and copied into an in-memory buffer here so
+ * that:
+ * <ul>
+ *     <li>the image bounds are read from the first bytes and the sample size is decided
+ *     before the body has arrived,</li>
+ *     <li>a low resolution preview (the embedded EXIF thumbnail, or the first scan of a
+ *     progressive JPEG) can be shown before the download finishes,</li>
+ *     <li>the final decode can run straight from memory with the precomputed sample size,
+ *     without a second bounds pass over the cache file.</li>
+ * </ul>
+ * Images larger than the buffer limit are only used for bounds and previews; the final decode
+ * then falls back to the disk cache file.
+ */
+public class ProgressiveDecoder extends OutputStream {
+    private static final String TAG = "ProgressiveDecoder";
+
+    // Stop buffering in memory once the encoded image grows past this size
+    private static final int DEFAULT_MAX_BUFFER_SIZE = 8 * 1024 * 1024; // 8MB
+    private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+
+    // Previews are decoded at this many times the final sample size
+    private static final int PREVIEW_SAMPLE_FACTOR = 4;
+
+    /**
+     * Callback for previews decoded while the image is still downloading. Called on the
+     * downloading thread.
+     */
+    public interface OnPreviewListener {
+        void onPreview(Bitmap preview);
+    }
+
+    private final int mReqWidth;
+    private final int mReqHeight;
+    private final int mMaxBufferSize;
+    private final OnPreviewListener mPreviewListener;
+
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int mCount;
+    private boolean mOverflowed;
+    private boolean mComplete;
+
+    private ImageHeaderParser.ImageHeader mHeader;
+    private boolean mHeaderUnsupported;
+    private int mSampleSize = 1;
+    private boolean mPreviewDelivered;
+    // Each kind of preview is decoded at most once, a failed decode isn't worth repeating on
+    // every chunk
+    private boolean mThumbnailTried;
+    private boolean mScanPreviewTried;
+
+    // Position of the progressive JPEG scan detector
+    private int mScanPos = -1;
+
+    public ProgressiveDecoder(int reqWidth, int reqHeight, OnPreviewListener previewListener) {
+        this(reqWidth, reqHeight, DEFAULT_MAX_BUFFER_SIZE, previewListener);
+    }
+
+    public ProgressiveDecoder(int reqWidth, int reqHeight, int maxBufferSize,
+            OnPreviewListener previewListener) {
+        mReqWidth = reqWidth;
+        mReqHeight = reqHeight;
+        mMaxBufferSize = maxBufferSize;
+        mPreviewListener = previewListener;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        write(new byte[] { (byte) oneByte }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mOverflowed || len <= 0) {
+            return;
+        }
+        if (mCount + len > mMaxBufferSize) {
+            // Too large to keep in memory, the final decode will go through the cache file
+            mOverflowed = true;
+            return;
+        }
+        ensureCapacity(mCount + len);
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+
+        if (mHeader == null && !mHeaderUnsupported) {
+            readHeader();
+        }
+        if (mHeader != null && !mPreviewDelivered && mPreviewListener != null) {
+            checkPreview();
+        }
+    }
+
+    /**
+     * Marks the download as finished. Only a complete image is decoded by {@link #decode}.
+     */
+    @Override
+    public void close() {
+        mComplete = true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            final int newLength = Math.min(mMaxBufferSize, Math.max(capacity, mBuffer.length * 2));
+            final byte[] buffer = new byte[newLength];
+            System.arraycopy(mBuffer, 0, buffer, 0, mCount);
+            mBuffer = buffer;
+        }
+    }
+
+    private void readHeader() {
+        if (mCount >= 4 && !ImageHeaderParser.isSupported(mBuffer, mCount)) {
+            mHeaderUnsupported = true;
+            return;
+        }
+        mHeader = ImageHeaderParser.parse(mBuffer, mCount);
+        if (mHeader != null) {
+            mSampleSize = calculateInSampleSize(mHeader.width, mHeader.height);
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "header read after " + mCount + " bytes: " + mHeader.width + "x"
+                        + mHeader.height + " " + mHeader.mimeType + ", inSampleSize="
+                        + mSampleSize);
+            }
+        }
+    }
+
+    private int calculateInSampleSize(int width, int height) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = width;
+        options.outHeight = height;
+        return ImageResizer.calculateInSampleSize(options, mReqWidth, mReqHeight);
+    }
+
+    private void checkPreview() {
+        if (!mThumbnailTried && mHeader.hasThumbnail()
+                && mHeader.thumbnailLength <= mCount - mHeader.thumbnailOffset) {
+            mThumbnailTried = true;
+            // The EXIF thumbnail lives in the APP1 segment, ahead of the image data
+            final Bitmap thumbnail = BitmapFactory.decodeByteArray(mBuffer,
+                    mHeader.thumbnailOffset, mHeader.thumbnailLength);
+            if (thumbnail != null) {
+                deliverPreview(thumbnail);
+                return;
+            }
+        }
+        if (!mScanPreviewTried && mHeader.progressive && isFirstScanComplete()) {
+            mScanPreviewTried = true;
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = mSampleSize * PREVIEW_SAMPLE_FACTOR;
+            final Bitmap preview = BitmapFactory.decodeByteArray(mBuffer, 0, mCount, options);
+            if (preview != null) {
+                deliverPreview(preview);
+            }
+        }
+    }
+
+    /**
+     * Scans the entropy coded data for a marker that ends the first scan. Inside scan data a
+     * 0xFF byte is always followed by a 0x00 stuffing byte or a restart marker, so any other
+     * marker (DHT, SOS, EOI...) means the first scan is complete.
+     */
+    private boolean isFirstScanComplete() {
+        if (mScanPos < 0) {
+            mScanPos = findStartOfScan();
+            if (mScanPos < 0) {
+                return false;
+            }
+        }
+        for (; mScanPos + 1 < mCount; mScanPos++) {
+            if ((mBuffer[mScanPos] & 0xFF) == 0xFF) {
+                final int next = mBuffer[mScanPos + 1] & 0xFF;
+                if (next != 0x00 && next != 0xFF && (next < 0xD0 || next > 0xD7)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int findStartOfScan() {
+        int pos = mHeader.headerLength;
+        while (pos + 4 <= mCount) {
+            if ((mBuffer[pos] & 0xFF) != 0xFF) {
+                return -1;
+            }
+            final int marker = mBuffer[pos + 1] & 0xFF;
+            final int length = (mBuffer[pos + 2] & 0xFF) << 8 | (mBuffer[pos + 3] & 0xFF);
+            if (marker == 0xDA) {
+                return pos + 2 + length;
+            }
+            pos += 2 + length;
+        }
+        return -1;
+    }
+
+    private void deliverPreview(Bitmap preview) {
+        mPreviewDelivered = true;
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "preview " + preview.getWidth() + "x" + preview.getHeight()
+                    + " after " + mCount + " bytes");
+        }
+        mPreviewListener.onPreview(preview);
+    }
+
+    /**
+     * @return The image header, or null if it has not been received or could not be parsed
+     */
+    public ImageHeaderParser.ImageHeader getHeader() {
+        return mHeader;
+    }
+
+    /**
+     * @return true if the whole image was received and is held in memory
+     */
+    public boolean canDecode() {
+        return mComplete && !mOverflowed && mCount > 0;
+    }
+
+    /**
+     * Decode the complete image from memory. Should only be called if {@link #canDecode()}.
+     *
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap
+     * @return The decoded bitmap, sampled and scaled as by
+     *         {@link ImageResizer#decodeSampledBitmapFromDescriptor}
+     */
+    public Bitmap decode(ImageCache cache) {
+        if (mHeader != null) {
+            return ImageResizer.decodeSampledBitmapFromByteArray(mBuffer, 0, mCount,
+                    mHeader.width, mHeader.height, mReqWidth, mReqHeight, cache);
+        }
+        return ImageResizer.decodeSampledBitmapFromByteArray(mBuffer, 0, mCount,
+                mReqWidth, mReqHeight, cache);
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.common.library.bitmap;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
@@ -25,20 +27,39 @@ import com.common.library.BuildConfig;
 
 /**
  * A BitmapDrawable that keeps track of whether it is being displayed or cached.
- * When the drawable is no longer being displayed or cached,
- * {@link android.graphics.Bitmap#recycle() recycle()} will be called on this drawable's bitmap.
+ * When the drawable is no longer being displayed or cached, its bitmap is handed to the
+ * reusable set of an {@link ImageCache} for inBitmap, or
+ * {@link android.graphics.Bitmap#recycle() recycle()} is called on it if there is none.
  */
 public class RecyclingBitmapDrawable extends BitmapDrawable {
 
     static final String TAG = "CountingBitmapDrawable";
 
-    private int mCacheRefCount = 0;
-    private int mDisplayRefCount = 0;
+    // Both counts, the displayed flag and the released flag are packed into one int so that
+    // every transition is a single compare-and-set and exactly one thread sees the counts drop
+    // to zero and releases the bitmap:
+    //   bits 0-14 cache count, bits 15-29 display count, bit 30 displayed, bit 31 released
+    private static final int COUNT_BITS = 15;
+    private static final int COUNT_MASK = (1 << COUNT_BITS) - 1;
+    private static final int CACHE_SHIFT = 0;
+    private static final int DISPLAY_SHIFT = COUNT_BITS;
+    private static final int HAS_BEEN_DISPLAYED = 1 << 30;
+    private static final int RELEASED = 1 << 31;
 
-    private boolean mHasBeenDisplayed;
+    private final AtomicInteger mState = new AtomicInteger();
+    private final ImageCache mReusePool;
 
     public RecyclingBitmapDrawable(Resources res, Bitmap bitmap) {
+        this(res, bitmap, null);
+    }
+
+    /**
+     * @param reusePool The cache whose reusable set receives the bitmap once it is no longer
+     *            used, may be null
+     */
+    public RecyclingBitmapDrawable(Resources res, Bitmap bitmap, ImageCache reusePool) {
         super(res, bitmap);
+        mReusePool = reusePool;
     }
 
     /**
@@ -50,17 +71,7 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
      */
     public void setIsDisplayed(boolean isDisplayed) {
         //BEGIN_INCLUDE(set_is_displayed)
-        synchronized (this) {
-            if (isDisplayed) {
-                mDisplayRefCount++;
-                mHasBeenDisplayed = true;
-            } else {
-                mDisplayRefCount--;
-            }
-        }
-
-        // Check to see if recycle() can be called
-        checkState();
+        update(DISPLAY_SHIFT, isDisplayed ? 1 : -1);
         //END_INCLUDE(set_is_displayed)
     }
 
@@ -72,38 +83,58 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
      */
     public void setIsCached(boolean isCached) {
         //BEGIN_INCLUDE(set_is_cached)
-        synchronized (this) {
-            if (isCached) {
-                mCacheRefCount++;
-            } else {
-                mCacheRefCount--;
-            }
-        }
-
-        // Check to see if recycle() can be called
-        checkState();
+        update(CACHE_SHIFT, isCached ? 1 : -1);
         //END_INCLUDE(set_is_cached)
     }
 
-    private synchronized void checkState() {
+    private void update(int shift, int delta) {
         //BEGIN_INCLUDE(check_state)
-        // If the drawable cache and display ref counts = 0, and this drawable
-        // has been displayed, then recycle
-        if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mHasBeenDisplayed
-                && hasValidBitmap()) {
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "No longer being used or cached so recycling. "
-                        + toString());
+        int state;
+        int next;
+        do {
+            state = mState.get();
+            if ((state & RELEASED) != 0) {
+                if (BuildConfig.DEBUG && delta > 0) {
+                    Log.w(TAG, "Used again after its bitmap was released. " + toString());
+                }
+                return;
+            }
+            final int count = Math.max(0, ((state >>> shift) & COUNT_MASK) + delta);
+            if (count > COUNT_MASK) {
+                throw new IllegalStateException("Too many references to " + toString());
+            }
+            next = (state & ~(COUNT_MASK << shift)) | (count << shift);
+            if (shift == DISPLAY_SHIFT && delta > 0) {
+                next |= HAS_BEEN_DISPLAYED;
             }
+            // If the drawable cache and display ref counts = 0, and this drawable
+            // has been displayed, then release the bitmap
+            if ((next & HAS_BEEN_DISPLAYED) != 0
+                    && ((next >>> CACHE_SHIFT) & COUNT_MASK) == 0
+                    && ((next >>> DISPLAY_SHIFT) & COUNT_MASK) == 0) {
+                next |= RELEASED;
+            }
+        } while (!mState.compareAndSet(state, next));
 
-            getBitmap().recycle();
+        if ((next & RELEASED) != 0) {
+            releaseBitmap();
         }
         //END_INCLUDE(check_state)
     }
 
-    private synchronized boolean hasValidBitmap() {
-        Bitmap bitmap = getBitmap();
-        return bitmap != null && !bitmap.isRecycled();
+    private void releaseBitmap() {
+        final Bitmap bitmap = getBitmap();
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "No longer being used or cached so releasing. " + toString());
+        }
+        if (mReusePool != null) {
+            mReusePool.addToReusableSet(bitmap);
+        } else {
+            bitmap.recycle();
+        }
     }
 
 }
@@ -0,0 +1,415 @@
+package com.common.library.bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.common.library.BuildConfig;
+import com.common.library.utils.DeviceUtils;
+
+/**
+ * Generates square thumbnails for a list of image files, e.g. a whole gallery being imported, and
+ * stores them as JPEG in a {@link DiskLruCache}.
+ *
+ * <p>The files are spread over one worker per CPU core, run on a pool of their own so that a long
+ * import doesn't hold up other background work. Before decoding, a worker reserves the memory the decode
+ * will need from a shared budget and waits while the budget is used up, so a batch of large
+ * photos doesn't run out of memory however many cores there are.
+ *
+ * <p>A thumbnail already in the cache is not generated again, so running the same batch again
+ * after it was cancelled or the process died resumes where it stopped.
+ *
+ * <pre>
+ * ThumbnailBatch batch = ThumbnailBatch.open(cacheDir, 200, 30);
+ * batch.start(paths, listener);
+ * ...
+ * Bitmap thumbnail = batch.getThumbnail(path);
+ * </pre>
+ */
+public class ThumbnailBatch {
+    private static final String TAG = "ThumbnailBatch";
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int DISK_CACHE_INDEX = 0;
+    private static final long DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 50; // 50MB
+    private static final long DEFAULT_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "ThumbnailBatch #" + mCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+    // Workers of all batches. The queue holds the workers of a few batches started while the
+    // previous ones finish their current thumbnail.
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(CPU_COUNT, CPU_COUNT,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(CPU_COUNT * 4), sThreadFactory);
+
+    static {
+        if (DeviceUtils.hasGingerbread()) {
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private final DiskLruCache mDiskCache;
+    private final int mMaxLen;
+    private final int mMaxFileSize;
+    private final long mMemoryBudget;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Object mMemoryLock = new Object();
+    private long mMemoryInUse;
+
+    private volatile Run mCurrentRun;
+    // Runs whose workers haven't all finished, and whether close() was called, guarded by this
+    private int mActiveRuns;
+    private boolean mClosed;
+
+    /**
+     * Receives the progress of a batch on the main thread.
+     */
+    public interface OnBatchProgressListener {
+        /**
+         * @param path The file just processed
+         * @param done The number of files processed so far, including the ones that were
+         *            already in the cache and the ones that failed
+         * @param total The number of files in the batch
+         */
+        void onProgress(String path, int done, int total);
+
+        /**
+         * @param failed The files that couldn't be decoded
+         * @param cancelled true if {@link ThumbnailBatch#cancel()} stopped the batch
+         */
+        void onFinished(List<String> failed, boolean cancelled);
+    }
+
+    /**
+     * Open a batch thumbnail generator. This includes disk access so it should not be executed on
+     * the main/UI thread.
+     *
+     * @param cacheDir The directory of the thumbnail cache
+     * @param maxLen The width and height of the thumbnails
+     * @param maxFileSize The maximum size of a thumbnail file in kilobytes
+     */
+    public static ThumbnailBatch open(File cacheDir, int maxLen, int maxFileSize)
+            throws IOException {
+        return open(cacheDir, maxLen, maxFileSize, DEFAULT_DISK_CACHE_SIZE, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * @param diskCacheSize The maximum size of the thumbnail cache in bytes
+     * @param memoryBudget The bytes of bitmap memory all workers together may use
+     */
+    public static ThumbnailBatch open(File cacheDir, int maxLen, int maxFileSize,
+            long diskCacheSize, long memoryBudget) throws IOException {
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+        return new ThumbnailBatch(DiskLruCache.open(cacheDir, 1, 1, diskCacheSize), maxLen,
+                maxFileSize, memoryBudget);
+    }
+
+    private ThumbnailBatch(DiskLruCache diskCache, int maxLen, int maxFileSize, long memoryBudget) {
+        mDiskCache = diskCache;
+        mMaxLen = maxLen;
+        mMaxFileSize = maxFileSize;
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Generate the thumbnails of paths that aren't in the cache yet. A batch already running is
+     * cancelled first.
+     *
+     * @throws IllegalStateException if the batch generator was closed
+     * @throws RejectedExecutionException if too many batches were started in a row for any of
+     *             their workers to be queued
+     */
+    public void start(List<String> paths, OnBatchProgressListener listener) {
+        cancel();
+        final Run run = new Run(new ArrayList<String>(paths), listener);
+        final int workers = Math.max(1, Math.min(CPU_COUNT, paths.size()));
+        run.mRunningWorkers.set(workers);
+        synchronized (this) {
+            if (mClosed) {
+                throw new IllegalStateException("ThumbnailBatch is closed");
+            }
+            mActiveRuns++;
+            mCurrentRun = run;
+        }
+        int started = 0;
+        try {
+            for (; started < workers; started++) {
+                sExecutor.execute(run);
+            }
+        } catch (RejectedExecutionException e) {
+            if (started > 0) {
+                // Those started do the whole batch, the last of them finishes it
+                Log.w(TAG, "start - " + started + " of " + workers + " workers queued");
+                if (run.mRunningWorkers.addAndGet(started - workers) == 0) {
+                    run.finish();
+                }
+                return;
+            }
+            final boolean closeCache;
+            synchronized (this) {
+                if (mCurrentRun == run) {
+                    mCurrentRun = null;
+                }
+                closeCache = --mActiveRuns == 0 && mClosed;
+            }
+            if (closeCache) {
+                closeCache();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the running batch. Thumbnails being generated are finished, the others are left for the
+     * next run.
+     */
+    public void cancel() {
+        final Run run = mCurrentRun;
+        if (run != null) {
+            run.mCancelled = true;
+        }
+        synchronized (mMemoryLock) {
+            mMemoryLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return The thumbnail of path from the cache, or null if it hasn't been generated.
+     */
+    public Bitmap getThumbnail(String path) {
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mDiskCache.get(ImageCache.hashKeyForDisk(keyFor(path)));
+            if (snapshot == null) {
+                return null;
+            }
+            final InputStream in = snapshot.getInputStream(DISK_CACHE_INDEX);
+            return BitmapFactory.decodeStream(in);
+        } catch (IOException e) {
+            Log.e(TAG, "getThumbnail - " + e);
+            return null;
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+    }
+
+    /**
+     * Cancel the running batch and close the cache. Workers still generating a thumbnail finish it
+     * first, the cache is closed by the last of them, so this doesn't block.
+     */
+    public void close() {
+        cancel();
+        synchronized (this) {
+            mClosed = true;
+            if (mActiveRuns > 0) {
+                return;
+            }
+        }
+        closeCache();
+    }
+
+    private void closeCache() {
+        try {
+            mDiskCache.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close - " + e);
+        }
+    }
+
+    private String keyFor(String path) {
+        return path + "#" + mMaxLen;
+    }
+
+    private class Run implements Runnable {
+        private final List<String> mPaths;
+        private final OnBatchProgressListener mListener;
+        private final AtomicInteger mNext = new AtomicInteger();
+        private final AtomicInteger mDone = new AtomicInteger();
+        private final AtomicInteger mRunningWorkers = new AtomicInteger();
+        private final List<String> mFailed = new ArrayList<String>();
+        private final long mStartTime = System.currentTimeMillis();
+        private int mGenerated;
+        private volatile boolean mCancelled;
+
+        Run(List<String> paths, OnBatchProgressListener listener) {
+            mPaths = paths;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            int index;
+            while (!mCancelled && (index = mNext.getAndIncrement()) < mPaths.size()) {
+                final String path = mPaths.get(index);
+                try {
+                    process(path);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException e) {
+                    Log.e(TAG, "run - " + path + ": " + e);
+                    fail(path);
+                } catch (OutOfMemoryError e) {
+                    Log.e(TAG, "run - " + path + ": " + e);
+                    fail(path);
+                } catch (IllegalStateException e) {
+                    // The cache can't be used any more, e.g. closed elsewhere
+                    Log.e(TAG, "run - " + path + ": " + e);
+                    break;
+                }
+                final int done = mDone.incrementAndGet();
+                if (mListener != null) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mListener.onProgress(path, done, mPaths.size());
+                        }
+                    });
+                }
+            }
+            if (mRunningWorkers.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        private void process(String path) throws IOException, InterruptedException {
+            final String key = ImageCache.hashKeyForDisk(keyFor(path));
+            final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
+            if (snapshot != null) {
+                // Generated by an earlier run
+                snapshot.close();
+                return;
+            }
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                fail(path);
+                return;
+            }
+            final int sampleSize = ImageResizer.calculateInSampleSize(options, mMaxLen, mMaxLen);
+            // The sampled decode plus the thumbnail, both ARGB_8888
+            final long needed = 4L * (options.outWidth / sampleSize) * (options.outHeight / sampleSize)
+                    + 4L * mMaxLen * mMaxLen;
+
+            reserveMemory(needed);
+            try {
+                if (mCancelled) {
+                    return;
+                }
+                final byte[] data = ImageResizer.decodeSquareThumbnailAsBytes(path, mMaxLen, mMaxFileSize);
+                if (data == null) {
+                    fail(path);
+                    return;
+                }
+                final DiskLruCache.Editor editor = mDiskCache.edit(key);
+                if (editor == null) {
+                    // Another worker has the same file in its list twice
+                    return;
+                }
+                OutputStream out = null;
+                try {
+                    out = editor.newOutputStream(DISK_CACHE_INDEX);
+                    out.write(data);
+                    out.close();
+                    out = null;
+                    editor.commit();
+                    synchronized (this) {
+                        mGenerated++;
+                    }
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {}
+                        editor.abort();
+                    }
+                }
+            } finally {
+                releaseMemory(needed);
+            }
+        }
+
+        private void fail(String path) {
+            synchronized (mFailed) {
+                mFailed.add(path);
+            }
+        }
+
+        private void finish() {
+            try {
+                mDiskCache.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "finish - " + e);
+            } catch (IllegalStateException e) {
+                // Closed while running
+            }
+            final boolean closeCache;
+            synchronized (ThumbnailBatch.this) {
+                closeCache = --mActiveRuns == 0 && mClosed;
+            }
+            if (closeCache) {
+                closeCache();
+            }
+            if (BuildConfig.DEBUG) {
+                final long elapsed = Math.max(1, System.currentTimeMillis() - mStartTime);
+                Log.d(TAG, "finish - " + mGenerated + " thumbnails generated, " + mDone.get()
+                        + " of " + mPaths.size() + " files in " + elapsed + "ms, "
+                        + (mGenerated * 1000L / elapsed) + " thumbnails/s");
+            }
+            if (mListener != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onFinished(mFailed, mCancelled);
+                    }
+                });
+            }
+        }
+
+        private void reserveMemory(long bytes) throws InterruptedException {
+            synchronized (mMemoryLock) {
+                // A decode bigger than the whole budget still runs, alone
+                while (!mCancelled && mMemoryInUse > 0 && mMemoryInUse + bytes > mMemoryBudget) {
+                    mMemoryLock.wait();
+                }
+                mMemoryInUse += bytes;
+            }
+        }
+
+        private void releaseMemory(long bytes) {
+            synchronized (mMemoryLock) {
+                mMemoryInUse -= bytes;
+                mMemoryLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.common.library.bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.v4.util.LruCache;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import com.common.library.BuildConfig;
+
+/**
+ * Memory cache for the tiles decoded by {@link TiledBitmapDecoder}, keyed by (source, level, column,
+ * row). Every tile bitmap is {@link #TILE_SIZE} pixels square, so the cache holds a fixed number
+ * of tiles whatever the size of the source images, and bitmaps of evicted tiles go to a small pool
+ * to be decoded into again.
+ *
+ * <p>The cache itself must only be used from the main thread, where tiles are drawn; the bitmap
+ * pool can be used from any thread.
+ */
+public class TileCache {
+    private static final String TAG = "TileCache";
+
+    /** Width and height of a tile bitmap in pixels */
+    public static final int TILE_SIZE = 256;
+
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    // Smallest default cache size, 32 ARGB_8888 tiles
+    private static final int MIN_DEFAULT_MAX_SIZE = 32 * TILE_BYTES;
+
+    // Screen pixels a tile covers at least, TiledBitmapDecoder picks the sample size so that it
+    // covers between half and all of TILE_SIZE
+    private static final int MIN_TILE_SCREEN_SIZE = TILE_SIZE / 2;
+
+    private static final int MAX_POOL_SIZE = 4;
+
+    private final LruCache<TileKey, Tile> mCache;
+    private final LinkedList<Bitmap> mPool = new LinkedList<Bitmap>();
+
+    /**
+     * Identifies a tile: the source image, the sample size it was decoded at and its position in
+     * the grid of tiles at that sample size.
+     */
+    public static final class TileKey {
+        public final String source;
+        public final int level;
+        public final int column;
+        public final int row;
+
+        public TileKey(String source, int level, int column, int row) {
+            this.source = source;
+            this.level = level;
+            this.column = column;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            final TileKey other = (TileKey) o;
+            return level == other.level && column == other.column && row == other.row
+                    && source.equals(other.source);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = source.hashCode();
+            result = 31 * result + level;
+            result = 31 * result + column;
+            result = 31 * result + row;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return source + "@" + level + "[" + column + "," + row + "]";
+        }
+    }
+
+    /**
+     * A decoded tile. Only the top left {@link #width} x {@link #height} pixels of the bitmap are
+     * valid, tiles on the right and bottom edges of an image are smaller than the bitmap.
+     */
+    public static final class Tile {
+        public final TileKey key;
+        public final Bitmap bitmap;
+        /** The area of the source image this tile covers, in source pixels */
+        public final Rect imageRect;
+        public final int width;
+        public final int height;
+
+        public Tile(TileKey key, Bitmap bitmap, Rect imageRect, int width, int height) {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.imageRect = imageRect;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Create a cache of {@link #getDefaultMaxSize()}.
+     */
+    public TileCache() {
+        this(getDefaultMaxSize());
+    }
+
+    /**
+     * @return Room for the tiles of two screens, counted at the most a screen can need, so that
+     *         the tiles of the viewport are never evicted while it decodes. Bounded to a quarter
+     *         of the heap.
+     */
+    public static int getDefaultMaxSize() {
+        final DisplayMetrics metrics = Resources.getSystem().getDisplayMetrics();
+        // A viewport not aligned on tiles shows part of one more column and row
+        final long columns = (metrics.widthPixels + MIN_TILE_SCREEN_SIZE - 1)
+                / MIN_TILE_SCREEN_SIZE + 1;
+        final long rows = (metrics.heightPixels + MIN_TILE_SCREEN_SIZE - 1)
+                / MIN_TILE_SCREEN_SIZE + 1;
+        final long size = Math.min(2 * columns * rows * TILE_BYTES,
+                Runtime.getRuntime().maxMemory() / 4);
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_DEFAULT_MAX_SIZE, size));
+    }
+
+    /**
+     * @param maxSize The maximum size of the cache in bytes
+     */
+    public TileCache(int maxSize) {
+        mCache = new LruCache<TileKey, Tile>(Math.max(maxSize, TILE_BYTES)) {
+            @Override
+            protected int sizeOf(TileKey key, Tile value) {
+                return TILE_BYTES;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, TileKey key, Tile oldValue, Tile newValue) {
+                if (oldValue != newValue) {
+                    releaseBitmap(oldValue.bitmap);
+                }
+            }
+        };
+    }
+
+    public Tile get(TileKey key) {
+        return mCache.get(key);
+    }
+
+    public void put(Tile tile) {
+        mCache.put(tile.key, tile);
+    }
+
+    /**
+     * Drop all the tiles of one source image, e.g. when it is closed.
+     */
+    public void evictSource(String source) {
+        final Map<TileKey, Tile> snapshot = mCache.snapshot();
+        for (TileKey key : snapshot.keySet()) {
+            if (key.source.equals(source)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    public void evictAll() {
+        mCache.evictAll();
+        synchronized (mPool) {
+            final Iterator<Bitmap> iterator = mPool.iterator();
+            while (iterator.hasNext()) {
+                iterator.next().recycle();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return A tile sized bitmap to decode into, or null if the pool is empty.
+     */
+    public Bitmap obtainBitmap() {
+        synchronized (mPool) {
+            return mPool.poll();
+        }
+    }
+
+    /**
+     * Give back a tile bitmap that is no longer drawn.
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (bitmap.isMutable() && bitmap.getWidth() == TILE_SIZE && bitmap.getHeight() == TILE_SIZE) {
+            synchronized (mPool) {
+                if (mPool.size() < MAX_POOL_SIZE) {
+                    mPool.add(bitmap);
+                    return;
+                }
+            }
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "releaseBitmap - pool full, recycling");
+        }
+        bitmap.recycle();
+    }
+}
@@ -0,0 +1,381 @@
+package com.common.library.bitmap;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.common.library.BuildConfig;
+import com.common.library.bitmap.TileCache.Tile;
+import com.common.library.bitmap.TileCache.TileKey;
+import com.common.library.utils.DeviceUtils;
+
+/**
+ * Displays images far bigger than the screen, such as a 40 megapixel photo, by decoding only the
+ * visible part of the image with {@link BitmapRegionDecoder}, in {@link TileCache#TILE_SIZE} tiles
+ * at the power of 2 sample size matching the zoom level. A low resolution copy of the whole image
+ * is drawn under the tiles while they load. Memory use depends on the viewport and the
+ * {@link TileCache} size, not on the size of the image.
+ *
+ * <p>Typical use from a custom View:
+ * <pre>
+ * decoder = TiledBitmapDecoder.newInstance(path, path, tileCache);
+ * decoder.setOnTileDecodedListener(...); // invalidate()
+ *
+ * // when the visible area or the zoom changes
+ * decoder.setViewport(visibleImageRect, scale);
+ *
+ * // in onDraw, with the canvas transformed to image coordinates
+ * decoder.draw(canvas, paint);
+ * </pre>
+ *
+ * All methods must be called from the main thread.
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+public class TiledBitmapDecoder {
+    private static final String TAG = "TiledBitmapDecoder";
+
+    // Longest side of the low resolution copy of the whole image
+    private static final int BASE_MAX_SIZE = 1024;
+
+    private final String mSource;
+    private final TileCache mCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final int mWidth;
+    private final int mHeight;
+
+    // Guarded by mDecoderLock, null once closed
+    private BitmapRegionDecoder mDecoder;
+    private final Object mDecoderLock = new Object();
+
+    // Tiles still to decode for the current viewport, most important first. Guarded by itself.
+    private final List<TileKey> mPending = new ArrayList<TileKey>();
+    private boolean mDraining;
+    private boolean mBaseRequested;
+
+    private final Rect mViewport = new Rect();
+    private int mLevel = 1;
+    private Bitmap mBaseBitmap;
+    private OnTileDecodedListener mListener;
+
+    /**
+     * Called on the main thread when a tile of the current viewport is ready to draw.
+     */
+    public interface OnTileDecodedListener {
+        void onTileDecoded(TiledBitmapDecoder decoder);
+    }
+
+    /**
+     * Open an image file for tiled display.
+     *
+     * @param source A key identifying the image in the tile cache, e.g. the file path or URL
+     * @param path The image file, JPEG or PNG
+     * @param cache The tile cache, can be shared between decoders
+     * @return The decoder, or null before Gingerbread MR1 where region decoding isn't available
+     */
+    public static TiledBitmapDecoder newInstance(String source, String path, TileCache cache)
+            throws IOException {
+        if (!DeviceUtils.hasGingerbreadMR1()) {
+            return null;
+        }
+        return new TiledBitmapDecoder(source, BitmapRegionDecoder.newInstance(path, false), cache);
+    }
+
+    /**
+     * Same as {@link #newInstance(String, String, TileCache)} for an open file, such as a
+     * {@link DiskLruCache} snapshot.
+     */
+    public static TiledBitmapDecoder newInstance(String source, FileDescriptor fd, TileCache cache)
+            throws IOException {
+        if (!DeviceUtils.hasGingerbreadMR1()) {
+            return null;
+        }
+        return new TiledBitmapDecoder(source, BitmapRegionDecoder.newInstance(fd, false), cache);
+    }
+
+    private TiledBitmapDecoder(String source, BitmapRegionDecoder decoder, TileCache cache) {
+        mSource = source;
+        mDecoder = decoder;
+        mCache = cache;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void setOnTileDecodedListener(OnTileDecodedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Choose the tiles to decode. Tiles requested for an earlier viewport that haven't been
+     * started yet are dropped, and the visible tiles closest to the center go first.
+     *
+     * @param viewport The visible part of the image, in image pixels
+     * @param scale Screen pixels per image pixel
+     */
+    public void setViewport(Rect viewport, float scale) {
+        mViewport.set(Math.max(0, viewport.left), Math.max(0, viewport.top),
+                Math.min(mWidth, viewport.right), Math.min(mHeight, viewport.bottom));
+        mLevel = levelForScale(scale);
+
+        final int span = TileCache.TILE_SIZE * mLevel;
+        final int firstColumn = mViewport.left / span;
+        final int firstRow = mViewport.top / span;
+        final int lastColumn = (Math.max(mViewport.right, 1) - 1) / span;
+        final int lastRow = (Math.max(mViewport.bottom, 1) - 1) / span;
+
+        final List<TileKey> wanted = new ArrayList<TileKey>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                final TileKey key = new TileKey(mSource, mLevel, column, row);
+                if (mCache.get(key) == null) {
+                    wanted.add(key);
+                }
+            }
+        }
+
+        final int centerX = mViewport.centerX();
+        final int centerY = mViewport.centerY();
+        Collections.sort(wanted, new Comparator<TileKey>() {
+            @Override
+            public int compare(TileKey lhs, TileKey rhs) {
+                final long l = distanceSquared(lhs, span, centerX, centerY);
+                final long r = distanceSquared(rhs, span, centerX, centerY);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        synchronized (mPending) {
+            mPending.clear();
+            mPending.addAll(wanted);
+        }
+        scheduleDecode();
+    }
+
+    private static long distanceSquared(TileKey key, int span, int x, int y) {
+        final long dx = key.column * span + span / 2 - x;
+        final long dy = key.row * span + span / 2 - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * @return The power of 2 sample size at which image pixels are at least as dense as screen
+     *         pixels.
+     */
+    private static int levelForScale(float scale) {
+        int level = 1;
+        if (scale > 0) {
+            while (level * 2 * scale <= 1f) {
+                level *= 2;
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Draw the image on a canvas set up so that one unit is one image pixel. Tiles that aren't
+     * decoded yet show the low resolution copy.
+     */
+    public void draw(Canvas canvas, Paint paint) {
+        final Rect dst = new Rect();
+        if (mBaseBitmap != null) {
+            dst.set(0, 0, mWidth, mHeight);
+            canvas.drawBitmap(mBaseBitmap, null, dst, paint);
+        }
+
+        final int span = TileCache.TILE_SIZE * mLevel;
+        final int lastColumn = (Math.max(mViewport.right, 1) - 1) / span;
+        final int lastRow = (Math.max(mViewport.bottom, 1) - 1) / span;
+        final Rect src = new Rect();
+        for (int row = mViewport.top / span; row <= lastRow; row++) {
+            for (int column = mViewport.left / span; column <= lastColumn; column++) {
+                final Tile tile = mCache.get(new TileKey(mSource, mLevel, column, row));
+                if (tile != null) {
+                    src.set(0, 0, tile.width, tile.height);
+                    canvas.drawBitmap(tile.bitmap, src, tile.imageRect, paint);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop decoding and free the native decoder, the low resolution copy and the cached tiles of
+     * this image.
+     */
+    public void close() {
+        synchronized (mPending) {
+            mPending.clear();
+        }
+        synchronized (mDecoderLock) {
+            if (mDecoder != null) {
+                mDecoder.recycle();
+                mDecoder = null;
+            }
+        }
+        mCache.evictSource(mSource);
+        if (mBaseBitmap != null) {
+            mBaseBitmap.recycle();
+            mBaseBitmap = null;
+        }
+    }
+
+    private void scheduleDecode() {
+        synchronized (mPending) {
+            if (mDraining || (mPending.isEmpty() && mBaseRequested)) {
+                return;
+            }
+            mDraining = true;
+        }
+        // Same executor as the BitmapWorkerTasks, its queue is unbounded so nothing is dropped
+        AsyncTask.DUAL_THREAD_EXECUTOR.execute(mDecodeRunnable);
+    }
+
+    private final Runnable mDecodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final boolean decodeBase;
+            synchronized (mPending) {
+                decodeBase = !mBaseRequested;
+                mBaseRequested = true;
+            }
+            if (decodeBase) {
+                decodeBase();
+            }
+            while (true) {
+                final TileKey key;
+                synchronized (mPending) {
+                    if (mPending.isEmpty()) {
+                        mDraining = false;
+                        return;
+                    }
+                    key = mPending.remove(0);
+                }
+                decodeTile(key);
+            }
+        }
+    };
+
+    private void decodeBase() {
+        int sampleSize = 1;
+        while (Math.max(mWidth, mHeight) / sampleSize > BASE_MAX_SIZE) {
+            sampleSize *= 2;
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        final Bitmap bitmap;
+        synchronized (mDecoderLock) {
+            if (mDecoder == null) {
+                return;
+            }
+            bitmap = mDecoder.decodeRegion(new Rect(0, 0, mWidth, mHeight), options);
+        }
+        if (bitmap == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isClosed()) {
+                    bitmap.recycle();
+                    return;
+                }
+                mBaseBitmap = bitmap;
+                if (mListener != null) {
+                    mListener.onTileDecoded(TiledBitmapDecoder.this);
+                }
+            }
+        });
+    }
+
+    private void decodeTile(final TileKey key) {
+        final int span = TileCache.TILE_SIZE * key.level;
+        final Rect region = new Rect(key.column * span, key.row * span,
+                Math.min(mWidth, (key.column + 1) * span), Math.min(mHeight, (key.row + 1) * span));
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = key.level;
+        if (DeviceUtils.hasHoneycomb()) {
+            // Mutable so that the bitmap can be pooled once the tile is evicted
+            options.inMutable = true;
+        }
+        if (DeviceUtils.hasJellyBean()) {
+            // Region decoding can reuse a bitmap at least as big as the region
+            options.inBitmap = mCache.obtainBitmap();
+        }
+
+        Bitmap bitmap;
+        synchronized (mDecoderLock) {
+            if (mDecoder == null) {
+                mCache.releaseBitmap(options.inBitmap);
+                return;
+            }
+            try {
+                bitmap = mDecoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap couldn't be used, decode into a new one
+                mCache.releaseBitmap(options.inBitmap);
+                options.inBitmap = null;
+                bitmap = mDecoder.decodeRegion(region, options);
+            }
+        }
+        if (bitmap == null) {
+            Log.e(TAG, "decodeTile - failed to decode " + key);
+            return;
+        }
+        if (bitmap.getWidth() != TileCache.TILE_SIZE || bitmap.getHeight() != TileCache.TILE_SIZE) {
+            // Edge tiles come out smaller unless decoded into a pooled bitmap. Copy them into a
+            // full size mutable bitmap so that they can go back to the pool afterwards.
+            final Bitmap tileBitmap = Bitmap.createBitmap(TileCache.TILE_SIZE, TileCache.TILE_SIZE,
+                    Bitmap.Config.ARGB_8888);
+            new Canvas(tileBitmap).drawBitmap(bitmap, 0, 0, null);
+            bitmap.recycle();
+            bitmap = tileBitmap;
+        }
+
+        final Tile tile = new Tile(key, bitmap, region,
+                (region.width() + key.level - 1) / key.level,
+                (region.height() + key.level - 1) / key.level);
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "decodeTile - " + key + (options.inBitmap != null ? " (reused)" : ""));
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isClosed()) {
+                    mCache.releaseBitmap(tile.bitmap);
+                    return;
+                }
+                mCache.put(tile);
+                if (mListener != null && key.level == mLevel) {
+                    mListener.onTileDecoded(TiledBitmapDecoder.this);
+                }
+            }
+        });
+    }
+
+    private boolean isClosed() {
+        synchronized (mDecoderLock) {
+            return mDecoder == null;
+        }
+    }
+}
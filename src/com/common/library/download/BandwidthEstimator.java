@@ -0,0 +1,232 @@
+package com.common.library.download;
+
+import java.util.Locale;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.common.library.BuildConfig;
+import com.common.library.utils.NetworkStatus;
+
+/**
+ * Estimates the downstream bandwidth from the throughput of real downloads. The bytes of all the
+ * bodies being read through {@link MeteredInputStream}s are added up, and each window of time in
+ * which any was open gives a sample of the link rate: streams read in parallel share the link, so
+ * the rate of one of them would understate it. The estimate is an exponentially weighted moving
+ * average, seeded from the connection type ({@link NetworkStatus#getAPNType}) until the first
+ * samples arrive.
+ */
+public class BandwidthEstimator {
+	private static final String TAG = BandwidthEstimator.class.getSimpleName();
+
+	/**
+	 * Coarse network quality derived from the estimated bandwidth.
+	 */
+	public enum Quality {
+		/** Below 150 kbps, typically GPRS/EDGE or CMWAP */
+		POOR,
+		/** 150 to 550 kbps */
+		MODERATE,
+		/** 550 to 2000 kbps */
+		GOOD,
+		/** Above 2000 kbps */
+		EXCELLENT
+	}
+
+	private static final long POOR_KBPS = 150;
+	private static final long MODERATE_KBPS = 550;
+	private static final long GOOD_KBPS = 2000;
+
+	// Priors used before any download has been measured
+	private static final long PRIOR_WIFI_KBPS = 2000;
+	private static final long PRIOR_MOBILE_KBPS = 400;
+	private static final long PRIOR_SLOW_MOBILE_KBPS = 80;
+
+	// Transfers smaller or shorter than this are dominated by latency, not bandwidth
+	private static final long MIN_SAMPLE_BYTES = 8 * 1024;
+	private static final long MIN_SAMPLE_MILLIS = 20;
+
+	// Length of the windows the bytes of all open streams are summed over
+	private static final long SAMPLE_WINDOW_MILLIS = 1000;
+	// How long updateNetworkTypeIfStale() trusts the last check
+	private static final long NETWORK_CHECK_INTERVAL = 5000;
+
+	private static final double SMOOTHING = 0.3;
+
+	private static BandwidthEstimator sDefault;
+
+	private double mEstimateKbps = PRIOR_MOBILE_KBPS;
+	private int mSampleCount;
+	private int mNetworkType = -1;
+	private long mLastNetworkCheck;
+
+	// Streams open, and the bytes they read since mWindowStart
+	private int mActiveStreams;
+	private long mWindowStart;
+	private long mWindowBytes;
+
+	/**
+	 * @return the process wide estimator fed by all downloads.
+	 */
+	public static synchronized BandwidthEstimator getDefault() {
+		if (sDefault == null) {
+			sDefault = new BandwidthEstimator();
+		}
+		return sDefault;
+	}
+
+	/**
+	 * Check the active connection and, if it changed since the last call, forget the samples
+	 * and start again from a prior for the new connection type.
+	 * @param context application context
+	 */
+	public synchronized void updateNetworkType(Context context) {
+		mLastNetworkCheck = System.currentTimeMillis();
+		NetworkInfo info = NetworkStatus.getActiveNetworkInfo(context);
+		if (info == null) {
+			return;
+		}
+		int type = info.getType() == ConnectivityManager.TYPE_MOBILE
+				? (isSlowMobile(info) ? NetworkStatus.CMWAP : NetworkStatus.CMNET)
+				: NetworkStatus.WIFI;
+		if (type != mNetworkType) {
+			mNetworkType = type;
+			mSampleCount = 0;
+			mEstimateKbps = type == NetworkStatus.WIFI ? PRIOR_WIFI_KBPS
+					: type == NetworkStatus.CMNET ? PRIOR_MOBILE_KBPS : PRIOR_SLOW_MOBILE_KBPS;
+			if (BuildConfig.DEBUG) {
+				Log.d(TAG, "network type " + type + ", prior " + mEstimateKbps + "kbps");
+			}
+		}
+	}
+
+	/**
+	 * {@link #updateNetworkType(Context)} unless it was called in the last few seconds, for
+	 * callers that check before every download.
+	 */
+	public void updateNetworkTypeIfStale(Context context) {
+		synchronized (this) {
+			if (System.currentTimeMillis() - mLastNetworkCheck < NETWORK_CHECK_INTERVAL) {
+				return;
+			}
+		}
+		updateNetworkType(context);
+	}
+
+	private static boolean isSlowMobile(NetworkInfo info) {
+		String extraInfo = info.getExtraInfo();
+		if (extraInfo != null && extraInfo.toLowerCase(Locale.US).endsWith("wap")) {
+			return true;
+		}
+		switch (info.getSubtype()) {
+			case TelephonyManager.NETWORK_TYPE_GPRS:
+			case TelephonyManager.NETWORK_TYPE_EDGE:
+			case TelephonyManager.NETWORK_TYPE_CDMA:
+			case TelephonyManager.NETWORK_TYPE_1xRTT:
+			case TelephonyManager.NETWORK_TYPE_IDEN:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Add a throughput sample of the whole link, e.g. measured by a caller that doesn't read
+	 * through a {@link MeteredInputStream}.
+	 * @param bytes bytes received
+	 * @param millis time spent receiving them
+	 */
+	public synchronized void addSample(long bytes, long millis) {
+		if (bytes < MIN_SAMPLE_BYTES || millis < MIN_SAMPLE_MILLIS) {
+			return;
+		}
+		// bytes per millisecond * 8 == kilobits per second
+		double kbps = bytes * 8.0 / millis;
+		if (mSampleCount == 0) {
+			mEstimateKbps = kbps;
+		} else {
+			mEstimateKbps = SMOOTHING * kbps + (1 - SMOOTHING) * mEstimateKbps;
+		}
+		mSampleCount++;
+	}
+
+	/**
+	 * A body starts to be read, called by {@link MeteredInputStream}.
+	 */
+	synchronized void onStreamOpened() {
+		if (mActiveStreams++ == 0) {
+			// Time without any stream open says nothing about the link
+			mWindowStart = System.currentTimeMillis();
+			mWindowBytes = 0;
+		}
+	}
+
+	/**
+	 * Bytes of a body were read, called by {@link MeteredInputStream}.
+	 */
+	synchronized void onBytesRead(long bytes) {
+		mWindowBytes += bytes;
+		final long now = System.currentTimeMillis();
+		if (now - mWindowStart >= SAMPLE_WINDOW_MILLIS) {
+			addSample(mWindowBytes, now - mWindowStart);
+			mWindowStart = now;
+			mWindowBytes = 0;
+		}
+	}
+
+	/**
+	 * A body was read to the end or closed, called by {@link MeteredInputStream}.
+	 */
+	synchronized void onStreamClosed() {
+		if (mActiveStreams > 0 && --mActiveStreams == 0) {
+			addSample(mWindowBytes, System.currentTimeMillis() - mWindowStart);
+			mWindowBytes = 0;
+		}
+	}
+
+	/**
+	 * @return estimated bandwidth in kilobits per second.
+	 */
+	public synchronized long getEstimateKbps() {
+		return (long) mEstimateKbps;
+	}
+
+	/**
+	 * @return true once at least one real download has been measured.
+	 */
+	public synchronized boolean hasSamples() {
+		return mSampleCount > 0;
+	}
+
+	public Quality getQuality() {
+		long kbps = getEstimateKbps();
+		if (kbps < POOR_KBPS) {
+			return Quality.POOR;
+		} else if (kbps < MODERATE_KBPS) {
+			return Quality.MODERATE;
+		} else if (kbps < GOOD_KBPS) {
+			return Quality.GOOD;
+		}
+		return Quality.EXCELLENT;
+	}
+
+	/**
+	 * @return how many downloads should run at the same time on the estimated bandwidth.
+	 *         Slow links do better finishing one image at a time than sharing the pipe.
+	 */
+	public int getRecommendedParallelism() {
+		switch (getQuality()) {
+			case POOR:
+				return 1;
+			case MODERATE:
+				return 2;
+			case GOOD:
+				return 4;
+			default:
+				return 6;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.common.library.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream that feeds every byte read through it to a {@link ResumableDigest}, so that the
+ * digest of a download is ready when its last byte is read. Skipped bytes aren't digested, and
+ * mark/reset isn't supported, as bytes read twice would be digested twice.
+ */
+public class DigestingInputStream extends FilterInputStream {
+	private final ResumableDigest digest;
+
+	public DigestingInputStream(InputStream in, ResumableDigest digest) {
+		super(in);
+		this.digest = digest;
+	}
+
+	public ResumableDigest getDigest() {
+		return digest;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b != -1) {
+			digest.update((byte) b);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int offset, int length) throws IOException {
+		int readCount = in.read(b, offset, length);
+		if (readCount > 0) {
+			digest.update(b, offset, readCount);
+		}
+		return readCount;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit) {
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+}
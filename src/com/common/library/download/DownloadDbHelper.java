@@ -0,0 +1,48 @@
+package com.common.library.download;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.common.library.database.TableMapping;
+import com.common.library.database.sqlite.BaseDBHelper;
+import com.common.library.database.sqlite.EntityBean;
+
+/**
+ * Database of {@link DownloadManager}.
+ */
+class DownloadDbHelper extends BaseDBHelper {
+	private static final String DATABASE_NAME = "downloads.db";
+	private static final int DATABASE_VERSION = 1;
+
+	DownloadDbHelper(Context context) {
+		super(context, DATABASE_NAME, DATABASE_VERSION);
+	}
+
+	@Override
+	public void configTableClassMapping(TableMapping tableMapping) {
+		tableMapping.addTableClassMapping(DownloadEntity.class, DownloadEntity.TABLE_NAME);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + DownloadEntity.TABLE_NAME + " ("
+				+ EntityBean._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+				+ DownloadEntity.Columns.URL + " TEXT NOT NULL, "
+				+ DownloadEntity.Columns.PATH + " TEXT NOT NULL, "
+				+ DownloadEntity.Columns.PRIORITY + " INTEGER NOT NULL, "
+				+ DownloadEntity.Columns.STATUS + " INTEGER NOT NULL, "
+				+ DownloadEntity.Columns.TOTAL_SIZE + " INTEGER NOT NULL DEFAULT -1, "
+				+ DownloadEntity.Columns.VALIDATOR + " TEXT, "
+				+ DownloadEntity.Columns.RANGES + " TEXT, "
+				+ DownloadEntity.Columns.MD5 + " TEXT, "
+				+ DownloadEntity.Columns.ERROR + " TEXT, "
+				+ DownloadEntity.Columns.CREATED + " INTEGER NOT NULL)");
+		db.execSQL("CREATE INDEX downloads_queue ON " + DownloadEntity.TABLE_NAME + " ("
+				+ DownloadEntity.Columns.STATUS + ", " + DownloadEntity.Columns.PRIORITY + ", "
+				+ EntityBean._ID + ")");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+	}
+}
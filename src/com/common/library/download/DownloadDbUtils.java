@@ -0,0 +1,31 @@
+package com.common.library.download;
+
+import android.content.Context;
+
+import com.common.library.database.sqlite.BaseDBHelper;
+import com.common.library.database.sqlite.SqliteUtils;
+
+/**
+ * CRUD on the database of {@link DownloadManager}.
+ */
+class DownloadDbUtils extends SqliteUtils {
+	private static DownloadDbUtils singleton;
+
+	protected DownloadDbUtils(Context context) {
+		super(context);
+	}
+
+	public static DownloadDbUtils getDbUtils(Context context) {
+		synchronized (LOCK_OBJ) {
+			if (singleton == null) {
+				singleton = new DownloadDbUtils(context);
+			}
+		}
+		return singleton;
+	}
+
+	@Override
+	protected BaseDBHelper getDbHelper(Context context) {
+		return new DownloadDbHelper(context);
+	}
+}
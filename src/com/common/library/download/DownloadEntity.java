@@ -0,0 +1,128 @@
+package com.common.library.download;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.common.library.database.sqlite.EntityBean;
+
+/**
+ * A download of {@link DownloadManager} as persisted: what to fetch where, and how far it got.
+ */
+public class DownloadEntity extends EntityBean {
+	private static final long serialVersionUID = 4391503286736205617L;
+
+	public static final String TABLE_NAME = "downloads";
+
+	public interface Columns {
+		String URL = "url";
+		String PATH = "path";
+		String PRIORITY = "priority";
+		String STATUS = "status";
+		String TOTAL_SIZE = "total_size";
+		/** ETag or Last-Modified of the file, sent in If-Range when resuming */
+		String VALIDATOR = "validator";
+		/** Byte ranges left, see {@link SegmentedDownloader.ResumeState#getRanges()} */
+		String RANGES = "ranges";
+		/** Expected MD5 of the file, checked when it is complete */
+		String MD5 = "md5";
+		String ERROR = "error";
+		String CREATED = "created";
+	}
+
+	String url;
+	String path;
+	int priority;
+	int status;
+	long totalSize = -1;
+	String validator;
+	String ranges;
+	String md5;
+	String error;
+	long created;
+
+	public String getUrl() {
+		return url;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return One of the STATUS_ constants of {@link DownloadManager}.
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return The size of the file, or -1 until known.
+	 */
+	public long getTotalSize() {
+		return totalSize;
+	}
+
+	/**
+	 * @return The number of bytes downloaded, or -1 if unknown.
+	 */
+	public long getDownloadedSize() {
+		if (status == DownloadManager.STATUS_COMPLETED) {
+			return totalSize;
+		}
+		final long remaining = getResumeState().getRemaining();
+		return totalSize > 0 && remaining >= 0 ? totalSize - remaining : -1;
+	}
+
+	public String getMd5() {
+		return md5;
+	}
+
+	/**
+	 * @return Why the download failed, or null.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	SegmentedDownloader.ResumeState getResumeState() {
+		return new SegmentedDownloader.ResumeState(totalSize, validator, ranges);
+	}
+
+	@Override
+	public ContentValues toContentValues() {
+		final ContentValues values = new ContentValues();
+		values.put(Columns.URL, url);
+		values.put(Columns.PATH, path);
+		values.put(Columns.PRIORITY, priority);
+		values.put(Columns.STATUS, status);
+		values.put(Columns.TOTAL_SIZE, totalSize);
+		values.put(Columns.VALIDATOR, validator);
+		values.put(Columns.RANGES, ranges);
+		values.put(Columns.MD5, md5);
+		values.put(Columns.ERROR, error);
+		values.put(Columns.CREATED, created);
+		return values;
+	}
+
+	@Override
+	public void restore(Cursor cursor) {
+		url = cursor.getString(cursor.getColumnIndexOrThrow(Columns.URL));
+		path = cursor.getString(cursor.getColumnIndexOrThrow(Columns.PATH));
+		priority = cursor.getInt(cursor.getColumnIndexOrThrow(Columns.PRIORITY));
+		status = cursor.getInt(cursor.getColumnIndexOrThrow(Columns.STATUS));
+		totalSize = cursor.getLong(cursor.getColumnIndexOrThrow(Columns.TOTAL_SIZE));
+		validator = cursor.getString(cursor.getColumnIndexOrThrow(Columns.VALIDATOR));
+		ranges = cursor.getString(cursor.getColumnIndexOrThrow(Columns.RANGES));
+		md5 = cursor.getString(cursor.getColumnIndexOrThrow(Columns.MD5));
+		error = cursor.getString(cursor.getColumnIndexOrThrow(Columns.ERROR));
+		created = cursor.getLong(cursor.getColumnIndexOrThrow(Columns.CREATED));
+	}
+}
@@ -0,0 +1,328 @@
+package com.common.library.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.Log;
+
+import com.common.library.database.sqlite.EntityBean;
+import com.common.library.download.ProgressAwareInputStream.OnProgressListener;
+import com.common.library.utils.CancellationSignal;
+import com.common.library.utils.MD5;
+import com.common.library.utils.PriorityExecutor;
+
+/**
+ * Queue of file downloads persisted in SQLite, which survives the process.
+ * <ul>
+ * <li>Downloads run by priority, then in the order they were enqueued, at most
+ * {@link #setMaxConcurrent(int)} at a time, each over a {@link SegmentedDownloader}.</li>
+ * <li>The byte ranges left and the validator of the file are saved as a download goes, so a
+ * download paused, failed or interrupted by the process dying resumes where it stopped. The
+ * ranges are requested with If-Range, and the download starts over if the file changed.</li>
+ * <li>Downloads that were running when the process died are queued again by
+ * {@link #getInstance(Context)}.</li>
+ * <li>A download given an MD5 is only completed if the file matches it.</li>
+ * </ul>
+ * Listeners get the download id as tag. All methods include disk access so they should not be
+ * executed on the main/UI thread.
+ */
+public class DownloadManager {
+	private static final String TAG = DownloadManager.class.getSimpleName();
+
+	public static final int STATUS_PENDING = 0;
+	public static final int STATUS_RUNNING = 1;
+	public static final int STATUS_PAUSED = 2;
+	public static final int STATUS_COMPLETED = 3;
+	public static final int STATUS_FAILED = 4;
+
+	public static final int DEFAULT_MAX_CONCURRENT = 2;
+	private static final String QUEUE_ORDER = DownloadEntity.Columns.PRIORITY + ", " + EntityBean._ID;
+
+	private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+		private final AtomicInteger mCount = new AtomicInteger(1);
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "DownloadManager #" + mCount.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	private static final ExecutorService sExecutor = Executors.newCachedThreadPool(sThreadFactory);
+
+	private static DownloadManager sInstance;
+
+	private final DownloadDbUtils mDb;
+	private final SegmentedDownloader mDownloader;
+	private final List<OnProgressListener> mListeners = new CopyOnWriteArrayList<OnProgressListener>();
+
+	// Guarded by this
+	private final Map<Long, Job> mRunning = new HashMap<Long, Job>();
+	private int mMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+
+	private DownloadManager(Context context) {
+		mDb = DownloadDbUtils.getDbUtils(context.getApplicationContext());
+		mDownloader = new SegmentedDownloader(RequestPolicy.getDefault(), SegmentedDownloader.DEFAULT_SEGMENT_COUNT);
+	}
+
+	/**
+	 * @return The manager, which on first call opens its database and starts the downloads left
+	 *         pending or running by the last process.
+	 */
+	public static synchronized DownloadManager getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new DownloadManager(context);
+			sInstance.recover();
+		}
+		return sInstance;
+	}
+
+	private void recover() {
+		final int count = updateStatus(EntityBean.NOT_SAVED, STATUS_RUNNING, STATUS_PENDING);
+		if (count > 0) {
+			Log.d(TAG, "recover - " + count + " interrupted downloads queued again");
+		}
+		schedule();
+	}
+
+	public void addListener(OnProgressListener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeListener(OnProgressListener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * @param maxConcurrent the most downloads running at once
+	 */
+	public void setMaxConcurrent(int maxConcurrent) {
+		synchronized (this) {
+			mMaxConcurrent = Math.max(1, maxConcurrent);
+		}
+		schedule();
+	}
+
+	/**
+	 * Queue a download.
+	 * @param fileUrl file download URL
+	 * @param localFile file to save to, replaced if it exists
+	 * @param priority one of the PRIORITY_ constants of {@link PriorityExecutor}
+	 * @param md5 the MD5 the file must have, or null not to check it
+	 * @return id of the download
+	 */
+	public long enqueue(String fileUrl, File localFile, int priority, String md5) {
+		final DownloadEntity entity = new DownloadEntity();
+		entity.url = fileUrl;
+		entity.path = localFile.getPath();
+		entity.priority = priority;
+		entity.status = STATUS_PENDING;
+		entity.md5 = md5;
+		entity.created = System.currentTimeMillis();
+		final long id = mDb.save(DownloadEntity.class, entity);
+		schedule();
+		return id;
+	}
+
+	/**
+	 * Stop a download pending or running, keeping what was downloaded.
+	 */
+	public void pause(long id) {
+		if (updateStatus(id, STATUS_PENDING, STATUS_PAUSED) + updateStatus(id, STATUS_RUNNING, STATUS_PAUSED) > 0) {
+			cancelJob(id);
+		}
+	}
+
+	/**
+	 * Queue a download paused or failed again.
+	 */
+	public void resume(long id) {
+		if (updateStatus(id, STATUS_PAUSED, STATUS_PENDING) + updateStatus(id, STATUS_FAILED, STATUS_PENDING) > 0) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Stop a download and forget it.
+	 * @param deleteFile whether to delete what was downloaded too
+	 */
+	public void remove(long id, boolean deleteFile) {
+		final DownloadEntity entity = getDownload(id);
+		if (entity == null) {
+			return;
+		}
+		mDb.delete(DownloadEntity.class, id);
+		cancelJob(id);
+		if (deleteFile) {
+			new File(entity.path).delete();
+		}
+	}
+
+	public DownloadEntity getDownload(long id) {
+		return mDb.findById(DownloadEntity.class, id);
+	}
+
+	/**
+	 * @return All downloads in queue order.
+	 */
+	public List<DownloadEntity> getDownloads() {
+		return mDb.find(DownloadEntity.class, null, null, null, null, QUEUE_ORDER);
+	}
+
+	/**
+	 * Set the status of download id, or of all downloads if id is NOT_SAVED, from from to to.
+	 * @return the number of downloads changed
+	 */
+	private int updateStatus(long id, int from, int to) {
+		final ContentValues values = new ContentValues();
+		values.put(DownloadEntity.Columns.STATUS, to);
+		if (id == EntityBean.NOT_SAVED) {
+			return mDb.update(DownloadEntity.class, DownloadEntity.Columns.STATUS + "=?",
+					new String[] {String.valueOf(from)}, values);
+		}
+		return mDb.update(DownloadEntity.class, EntityBean._ID + "=? AND " + DownloadEntity.Columns.STATUS + "=?",
+				new String[] {String.valueOf(id), String.valueOf(from)}, values);
+	}
+
+	private void cancelJob(long id) {
+		final Job job;
+		synchronized (this) {
+			job = mRunning.get(id);
+		}
+		if (job != null) {
+			job.mSignal.cancel();
+		}
+	}
+
+	/**
+	 * Start the next pending downloads while there is room. A download resumed while its last
+	 * job is still stopping waits for that job, which schedules again when it is done.
+	 */
+	private synchronized void schedule() {
+		while (mRunning.size() < mMaxConcurrent) {
+			final StringBuilder selection = new StringBuilder(DownloadEntity.Columns.STATUS + "=?");
+			final String[] selectionArgs = new String[1 + mRunning.size()];
+			selectionArgs[0] = String.valueOf(STATUS_PENDING);
+			if (!mRunning.isEmpty()) {
+				selection.append(" AND ").append(EntityBean._ID).append(" NOT IN (");
+				int i = 1;
+				for (Long id : mRunning.keySet()) {
+					selection.append(i > 1 ? ",?" : "?");
+					selectionArgs[i++] = String.valueOf(id);
+				}
+				selection.append(')');
+			}
+			final DownloadEntity next = mDb.findFirst(DownloadEntity.class, selection.toString(),
+					selectionArgs, null, null, QUEUE_ORDER);
+			if (next == null) {
+				return;
+			}
+			next.status = STATUS_RUNNING;
+			updateStatus(next.mId, STATUS_PENDING, STATUS_RUNNING);
+			final Job job = new Job(next);
+			mRunning.put(next.mId, job);
+			sExecutor.execute(job);
+		}
+	}
+
+	private class Job implements Runnable, SegmentedDownloader.OnCheckpointListener, OnProgressListener {
+		final DownloadEntity mEntity;
+		final CancellationSignal mSignal = new CancellationSignal();
+		private String mError;
+
+		Job(DownloadEntity entity) {
+			mEntity = entity;
+		}
+
+		@Override
+		public void run() {
+			final CancellationSignal previous = CancellationSignal.bind(mSignal);
+			try {
+				final File file = new File(mEntity.path);
+				final SegmentedDownloader.ResumeState state = mEntity.getResumeState();
+				boolean success = mDownloader.download(mEntity.url, file, state, this, this);
+				if (success && mEntity.md5 != null && !checkMd5(file)) {
+					success = false;
+					mError = "MD5 mismatch";
+					// The ranges saved can't be trusted, start over next time
+					state.reset();
+					onCheckpoint(state);
+					file.delete();
+				}
+				if (mSignal.isCanceled()) {
+					// Paused or removed, which set the status already
+					return;
+				}
+				final ContentValues values = new ContentValues();
+				values.put(DownloadEntity.Columns.STATUS, success ? STATUS_COMPLETED : STATUS_FAILED);
+				values.put(DownloadEntity.Columns.ERROR, success ? null : mError);
+				mDb.update(DownloadEntity.class, mEntity.mId, values);
+				if (success) {
+					for (OnProgressListener listener : mListeners) {
+						listener.onCompleted(mEntity.mId);
+					}
+				} else {
+					for (OnProgressListener listener : mListeners) {
+						listener.onError(mError, mEntity.mId);
+					}
+				}
+			} catch (RuntimeException e) {
+				Log.e(TAG, "run - " + e);
+			} finally {
+				CancellationSignal.bind(previous);
+				synchronized (DownloadManager.this) {
+					// Not a job started for the same download since
+					if (mRunning.get(mEntity.mId) == this) {
+						mRunning.remove(mEntity.mId);
+					}
+				}
+				schedule();
+			}
+		}
+
+		private boolean checkMd5(File file) {
+			try {
+				return MD5.checkMD5(mEntity.md5, file);
+			} catch (IOException e) {
+				Log.e(TAG, "checkMd5 - " + e);
+				return false;
+			}
+		}
+
+		@Override
+		public void onCheckpoint(SegmentedDownloader.ResumeState state) {
+			final ContentValues values = new ContentValues();
+			values.put(DownloadEntity.Columns.TOTAL_SIZE, state.getTotal());
+			values.put(DownloadEntity.Columns.VALIDATOR, state.getValidator());
+			values.put(DownloadEntity.Columns.RANGES, state.getRanges());
+			mDb.update(DownloadEntity.class, mEntity.mId, values);
+		}
+
+		@Override
+		public void onError(String errorMsg, Object tag) {
+			// Reported with the final status
+			mError = errorMsg;
+		}
+
+		@Override
+		public void onProgress(int percentage, Object tag) {
+			for (OnProgressListener listener : mListeners) {
+				listener.onProgress(percentage, mEntity.mId);
+			}
+		}
+
+		@Override
+		public void onCompleted(Object tag) {
+			// Reported once the file is checked and the status saved
+		}
+	}
+}
@@ -2,22 +2,145 @@ package com.common.library.download;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 
 import com.common.library.download.ProgressAwareInputStream.OnProgressListener;
+import com.common.library.utils.CancellationSignal;
+import com.common.library.utils.DeviceUtils;
 
 public class DownloadUtils {
 	private static final int BUFFER_SIZE = 4096;
-	private static final int TIMEOUT_DURATION = 3000;
+	// How often the digest state of a breakpoint download is saved
+	private static final long DIGEST_STATE_INTERVAL = 1024 * 1024;
+	private static final String DIGEST_STATE_SUFFIX = ".digest";
+	private static final int FILE_READ_TIMEOUT = 60000;
+
+	private static RequestPolicy sRequestPolicy = RequestPolicy.getDefault();
+
+	private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+		private final AtomicInteger mCount = new AtomicInteger(1);
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "DownloadUtils disconnect #" + mCount.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	// Disconnects of cancelled downloads, kept apart from the pools the downloads run on so
+	// that busy pools can't hold up the disconnects that would free them. Two threads are enough
+	// for a burst of cancels, and when the queue is full the caller disconnects itself.
+	private static final ThreadPoolExecutor sDisconnectExecutor = new ThreadPoolExecutor(2, 2,
+			1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(64), sThreadFactory,
+			new ThreadPoolExecutor.CallerRunsPolicy());
+
+	static {
+		if (DeviceUtils.hasGingerbread()) {
+			sDisconnectExecutor.allowCoreThreadTimeOut(true);
+		}
+	}
+
+	/**
+	 * Plain GET request as sent by every download method.
+	 */
+	static final RequestPolicy.RequestConfigurator GET_REQUEST = new RequestPolicy.RequestConfigurator() {
+
+		@Override
+		public void configure(HttpURLConnection connection) throws IOException {
+			connection.setAllowUserInteraction(true);
+			connection.setRequestMethod("GET");
+			connection.setRequestProperty("User-Agent", "Android Client");
+		}
+	};
+
+	/**
+	 * {@link #GET_REQUEST} for a file, whose body may stall for a while on a slow link. The
+	 * adaptive read timeout of {@link RequestPolicy} is sized for small responses, and a read
+	 * failing mid-stream isn't retried.
+	 */
+	static final RequestPolicy.RequestConfigurator FILE_REQUEST = new RequestPolicy.RequestConfigurator() {
+
+		@Override
+		public void configure(HttpURLConnection connection) throws IOException {
+			GET_REQUEST.configure(connection);
+			connection.setReadTimeout(FILE_READ_TIMEOUT);
+		}
+	};
+
+	/**
+	 * Replace the {@link RequestPolicy} (retries, timeouts, hedging) used by all downloads,
+	 * by default {@link RequestPolicy#getDefault()}.
+	 */
+	public static void setRequestPolicy(RequestPolicy requestPolicy) {
+		sRequestPolicy = requestPolicy;
+	}
+
+	/**
+	 * Disconnect connection and stop the decode of options, either may be null, when the task
+	 * running on this thread is cancelled. A thread interrupt doesn't reach either. Cancelling is
+	 * often done on the main thread, so the disconnect, which may write to the network to close
+	 * a TLS session, runs in the background.
+	 *
+	 * @return The listener to pass to {@link #unwatchCancellation}, or null if the thread isn't
+	 *         running a cancellable task
+	 * @see CancellationSignal#current()
+	 */
+	private static CancellationSignal.OnCancelListener watchCancellation(final HttpURLConnection connection, final Options options) {
+		final CancellationSignal signal = CancellationSignal.current();
+		if (signal == null) {
+			return null;
+		}
+		final CancellationSignal.OnCancelListener listener = new CancellationSignal.OnCancelListener() {
+
+			@Override
+			public void onCancel() {
+				if (options != null) {
+					options.requestCancelDecode();
+				}
+				if (connection != null) {
+					disconnectInBackground(connection);
+				}
+			}
+		};
+		signal.addOnCancelListener(listener);
+		return listener;
+	}
+
+	/**
+	 * Disconnect connection off the calling thread, for cancel listeners that may be called on
+	 * the main thread. Only if many disconnects are already queued is it disconnected on the
+	 * calling thread.
+	 */
+	static void disconnectInBackground(final HttpURLConnection connection) {
+		sDisconnectExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				connection.disconnect();
+			}
+		});
+	}
+
+	private static void unwatchCancellation(CancellationSignal.OnCancelListener listener) {
+		final CancellationSignal signal = CancellationSignal.current();
+		if (listener != null && signal != null) {
+			signal.removeOnCancelListener(listener);
+		}
+	}
 
 	/**
 	 * Download bitmap of small size, if bitmap is very big you can use 
@@ -35,17 +158,35 @@ public class DownloadUtils {
 	 * @return bitmap downloaded from imagUrl
 	 */
 	public static Bitmap downloadBitmap(String imageUrl, Options options, OnProgressListener progressListener)  {
+		final byte[] data = downloadBytes(imageUrl, progressListener);
+		if (data == null) {
+			return null;
+		}
+		// Options of our own if none were given, so that a cancelled task can stop the decode
+		final Options decodeOptions = options != null ? options : new Options();
+		final CancellationSignal.OnCancelListener cancelListener = watchCancellation(null, decodeOptions);
+		try {
+			return BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+		} finally {
+			unwatchCancellation(cancelListener);
+		}
+	}
+
+	/**
+	 * Download an image, or any other small file, without decoding it, e.g. to store it as it is.
+	 * @param imageUrl
+	 * @param progressListener progress update callback {@link OnProgressListener}
+	 * @return the bytes downloaded from imageUrl, or null if the download failed
+	 */
+	public static byte[] downloadBytes(String imageUrl, OnProgressListener progressListener)  {
 		HttpURLConnection connection = null;
 		ProgressAwareInputStream inputStream = null;
 		ByteArrayOutputStream outputStream = null;
+		CancellationSignal.OnCancelListener cancelListener = null;
 
 		try {
-			URL url = new URL(imageUrl);
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setAllowUserInteraction(true);
-			connection.setConnectTimeout(TIMEOUT_DURATION);
-			connection.setRequestMethod("GET");
-			connection.setRequestProperty("User-Agent", "Android Client");
+			connection = sRequestPolicy.connect(imageUrl, GET_REQUEST);
+			cancelListener = watchCancellation(connection, null);
 			
 			// always check HTTP response code first
 			int responseCode = connection.getResponseCode();
@@ -74,7 +215,7 @@ public class DownloadUtils {
 				System.out.println("fileName = " + fileName);
 
 				// opens input stream from the HTTP connection
-				inputStream = new ProgressAwareInputStream(connection.getInputStream(), contentLength, 0l, imageUrl);
+				inputStream = new ProgressAwareInputStream(new MeteredInputStream(connection.getInputStream(), BandwidthEstimator.getDefault()), contentLength, 0l, imageUrl);
 				inputStream.setOnProgressListener(progressListener);
 
 				outputStream = new ByteArrayOutputStream();
@@ -83,11 +224,7 @@ public class DownloadUtils {
 				while ((bytesRead = inputStream.read(buffer)) != -1) {
 					outputStream.write(buffer, 0, bytesRead);
 				}
-				if(options != null){
-					return BitmapFactory.decodeByteArray(buffer, 0, outputStream.size(), options);
-				}else{
-					return BitmapFactory.decodeByteArray(buffer, 0, outputStream.size());
-				}
+				return outputStream.toByteArray();
 			} else{
 				if(progressListener != null){
 					progressListener.onError("Invalid http response code:" + responseCode, imageUrl);
@@ -118,6 +255,7 @@ public class DownloadUtils {
 					e.printStackTrace();
 				}
 			}
+			unwatchCancellation(cancelListener);
 			if(connection != null){
 				connection.disconnect();
 			}
@@ -133,17 +271,28 @@ public class DownloadUtils {
 	 * @throws IOException
 	 */
 	public static void downloadFileDirectly(String fileUrl, String saveDir, OnProgressListener progressListener){
+		downloadFileDirectly(fileUrl, saveDir, null, progressListener);
+	}
+
+	/**
+	 * Download file directly and digest it as it streams in, so that checking it doesn't read
+	 * the file again.
+	 * @param fileUrl file download URL
+	 * @param saveDir directory to save downloaded file 
+	 * @param digestAlgorithm {@link ResumableDigest#MD5}, {@link ResumableDigest#SHA_256}, or null
+	 * @param progressListener  progress update callback {@link OnProgressListener}
+	 * @return the digest of the file in lower case hex, or null if the download failed or
+	 *         digestAlgorithm is null
+	 */
+	public static String downloadFileDirectly(String fileUrl, String saveDir, String digestAlgorithm, OnProgressListener progressListener){
 		HttpURLConnection connection = null;
 		FileOutputStream outputStream = null;
 		ProgressAwareInputStream inputStream = null;
+		CancellationSignal.OnCancelListener cancelListener = null;
 
 		try {
-			URL url = new URL(fileUrl);
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setAllowUserInteraction(true);
-			connection.setConnectTimeout(TIMEOUT_DURATION);
-			connection.setRequestMethod("GET");
-			connection.setRequestProperty("User-Agent", "Android Client");
+			connection = sRequestPolicy.connect(fileUrl, FILE_REQUEST);
+			cancelListener = watchCancellation(connection, null);
 			
 			// always check HTTP response code first
 			int responseCode = connection.getResponseCode();
@@ -172,7 +321,8 @@ public class DownloadUtils {
 				System.out.println("fileName = " + fileName);
 
 				// opens input stream from the HTTP connection
-				inputStream = new ProgressAwareInputStream(connection.getInputStream(), contentLength, 0l, fileUrl);
+				final ResumableDigest digest = digestAlgorithm != null ? ResumableDigest.getInstance(digestAlgorithm) : null;
+				inputStream = new ProgressAwareInputStream(digesting(new MeteredInputStream(connection.getInputStream(), BandwidthEstimator.getDefault()), digest), contentLength, 0l, fileUrl);
 				inputStream.setOnProgressListener(progressListener);
 
 				String saveFilePath = saveDir + File.separator + fileName;
@@ -191,6 +341,7 @@ public class DownloadUtils {
 				while ((bytesRead = inputStream.read(buffer)) != -1) {
 					outputStream.write(buffer, 0, bytesRead);
 				}
+				return digest != null ? digest.digestHex() : null;
 			} else{
 				if(progressListener != null){
 					progressListener.onError("Invalid http response code:" + responseCode, fileUrl);
@@ -223,10 +374,12 @@ public class DownloadUtils {
 				}
 			}
 			
+			unwatchCancellation(cancelListener);
 			if(connection != null){
 				connection.disconnect();
 			}
 		}
+		return null;
 	}
 	
 	/**
@@ -238,9 +391,25 @@ public class DownloadUtils {
 	 * @throws IOException
 	 */
 	public static void downloadFileBreakpointly(String fileURL, File localFile, OnProgressListener progressListener) {
+		downloadFileBreakpointly(fileURL, localFile, null, progressListener);
+	}
+
+	/**
+	 * Download file in breakpoint mode and digest it as it streams in. The digest state is
+	 * saved next to localFile as the download goes, so a download resumed later, even in another
+	 * process, digests only the bytes it fetches instead of reading the part already downloaded.
+	 * @param fileURL file download URL
+	 * @param localFile the file which not download completed
+	 * @param digestAlgorithm {@link ResumableDigest#MD5}, {@link ResumableDigest#SHA_256}, or null
+	 * @param progressListener  progress update callback {@link OnProgressListener}
+	 * @return the digest of the whole file in lower case hex, or null if the download failed or
+	 *         digestAlgorithm is null
+	 */
+	public static String downloadFileBreakpointly(String fileURL, File localFile, String digestAlgorithm, OnProgressListener progressListener) {
 		HttpURLConnection connection = null;
 		ProgressAwareInputStream inputStream = null;
 		RandomAccessFile outputFile = null;
+		CancellationSignal.OnCancelListener cancelListener = null;
 		
 		if(!localFile.exists()){
 			try {
@@ -250,26 +419,43 @@ public class DownloadUtils {
 				if(progressListener != null){
 					progressListener.onError("Cannot create new file", fileURL);
 				}
-				return;
+				return null;
 			}
 		}
-		long localSize = localFile.length();
+
+		final File digestStateFile = new File(localFile.getPath() + DIGEST_STATE_SUFFIX);
+		ResumableDigest digest = null;
+		if(digestAlgorithm != null){
+			try {
+				digest = restoreDigest(localFile, digestStateFile, digestAlgorithm);
+			} catch (IOException e) {
+				e.printStackTrace();
+				if(progressListener != null){
+					progressListener.onError("IOException:" + e.getMessage(), fileURL);
+				}
+				return null;
+			}
+		}
+		final long localSize = localFile.length();
+		boolean completed = false;
 
 		try {
-			URL url = new URL(fileURL);
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setAllowUserInteraction(true);
-			connection.setConnectTimeout(TIMEOUT_DURATION);
-			connection.setRequestMethod("GET");
-			connection.setRequestProperty("User-Agent", "Android Client");
-			connection.setRequestProperty("Range", "bytes=" + localSize + "-");
+			connection = sRequestPolicy.connect(fileURL, new RequestPolicy.RequestConfigurator() {
+
+				@Override
+				public void configure(HttpURLConnection connection) throws IOException {
+					FILE_REQUEST.configure(connection);
+					connection.setRequestProperty("Range", "bytes=" + localSize + "-");
+				}
+			});
+			cancelListener = watchCancellation(connection, null);
 			
 			// always check HTTP response code first
 			int responseCode = connection.getResponseCode();
 			if(responseCode == HttpURLConnection.HTTP_PARTIAL) {
 				long remainSize = connection.getContentLength();
 				long fileTotalSize = localSize + remainSize;
-				inputStream = new ProgressAwareInputStream(connection.getInputStream(), fileTotalSize, localSize, fileURL);
+				inputStream = new ProgressAwareInputStream(digesting(new MeteredInputStream(connection.getInputStream(), BandwidthEstimator.getDefault()), digest), fileTotalSize, localSize, fileURL);
 				inputStream.setOnProgressListener(progressListener);
 				
 				// seek position the be the end of file
@@ -278,8 +464,19 @@ public class DownloadUtils {
 				
 				int bytesRead = -1;
 				byte[] buffer = new byte[BUFFER_SIZE];
+				long digestSaved = localSize;
 				while ((bytesRead = inputStream.read(buffer)) != -1) {
 					outputFile.write(buffer, 0, bytesRead);
+					// Saved only after the bytes digested were written, so it never covers more than the file
+					if(digest != null && digest.getCount() - digestSaved >= DIGEST_STATE_INTERVAL){
+						saveDigestState(digestStateFile, digest);
+						digestSaved = digest.getCount();
+					}
+				}
+				completed = true;
+				if(digest != null){
+					digestStateFile.delete();
+					return digest.digestHex();
 				}
 			} else{
 				if(progressListener != null){
@@ -304,6 +501,9 @@ public class DownloadUtils {
 					e.printStackTrace();
 				}
 			}
+			if(digest != null && !completed){
+				saveDigestState(digestStateFile, digest);
+			}
 			if(inputStream != null){
 				try {
 					inputStream.close();
@@ -311,9 +511,113 @@ public class DownloadUtils {
 					e.printStackTrace();
 				}
 			}
+			unwatchCancellation(cancelListener);
 			if(connection != null){
 				connection.disconnect();
 			}
 		}
+		return null;
+	}
+
+	private static InputStream digesting(InputStream in, ResumableDigest digest) {
+		return digest != null ? new DigestingInputStream(in, digest) : in;
+	}
+
+	/**
+	 * @return The digest of the bytes of localFile, restored from stateFile if it was saved there.
+	 *         If localFile is longer than the saved state covers, the rest is cut off to be
+	 *         downloaded again; without a usable state, localFile is read.
+	 */
+	private static ResumableDigest restoreDigest(File localFile, File stateFile, String algorithm) throws IOException {
+		ResumableDigest digest = null;
+		if(stateFile.exists()){
+			try {
+				digest = ResumableDigest.restore(readFully(stateFile));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if(digest != null && (!digest.getAlgorithm().equalsIgnoreCase(algorithm) || digest.getCount() > localFile.length())){
+				digest = null;
+			}
+		}
+		if(digest != null){
+			if(digest.getCount() < localFile.length()){
+				final RandomAccessFile file = new RandomAccessFile(localFile, "rw");
+				try {
+					file.setLength(digest.getCount());
+				} finally {
+					file.close();
+				}
+			}
+			return digest;
+		}
+
+		digest = ResumableDigest.getInstance(algorithm);
+		final InputStream in = new FileInputStream(localFile);
+		try {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int bytesRead;
+			while ((bytesRead = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, bytesRead);
+			}
+		} finally {
+			in.close();
+		}
+		return digest;
+	}
+
+	private static void saveDigestState(File stateFile, ResumableDigest digest) {
+		final File tempFile = new File(stateFile.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tempFile);
+			out.write(digest.saveState());
+			out.close();
+			out = null;
+			// Replace the last state at once, so that a crash leaves either
+			if(!tempFile.renameTo(stateFile)){
+				stateFile.delete();
+				tempFile.renameTo(stateFile);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if(out != null){
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int bytesRead;
+			while ((bytesRead = in.read(buffer)) != -1) {
+				out.write(buffer, 0, bytesRead);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Download file over up to segmentCount connections at once, each fetching a range of it,
+	 * if the server accepts ranges; if file exist it'll be replaced.
+	 * @param fileUrl file download URL
+	 * @param localFile file to save to
+	 * @param segmentCount the most connections used at once, e.g. {@link SegmentedDownloader#DEFAULT_SEGMENT_COUNT}
+	 * @param progressListener  progress update callback {@link OnProgressListener}
+	 * @return true if the whole file was downloaded
+	 * @see SegmentedDownloader
+	 */
+	public static boolean downloadFileSegmented(String fileUrl, File localFile, int segmentCount, OnProgressListener progressListener) {
+		return new SegmentedDownloader(sRequestPolicy, segmentCount).download(fileUrl, localFile, progressListener);
 	}
 }
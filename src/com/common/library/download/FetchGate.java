@@ -0,0 +1,57 @@
+package com.common.library.download;
+
+/**
+ * Limits how many downloads run at the same time. The limit follows
+ * {@link BandwidthEstimator#getRecommendedParallelism()}, so a slow link gets one download at
+ * a time while a fast one can fetch several images in parallel.
+ *
+ * <pre>
+ * gate.acquire();
+ * try {
+ * 	// download
+ * } finally {
+ * 	gate.release();
+ * }
+ * </pre>
+ */
+public class FetchGate {
+	private static FetchGate sDefault;
+
+	private final BandwidthEstimator mEstimator;
+	private int mActiveCount;
+
+	public FetchGate(BandwidthEstimator estimator) {
+		mEstimator = estimator;
+	}
+
+	/**
+	 * @return the gate shared by all image fetchers, driven by {@link BandwidthEstimator#getDefault()}.
+	 */
+	public static synchronized FetchGate getDefault() {
+		if (sDefault == null) {
+			sDefault = new FetchGate(BandwidthEstimator.getDefault());
+		}
+		return sDefault;
+	}
+
+	/**
+	 * Block until a download slot is free.
+	 * @throws InterruptedException if the waiting thread was interrupted, e.g. its task was cancelled.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (mActiveCount >= mEstimator.getRecommendedParallelism()) {
+			// The limit can grow as samples arrive, so re-check periodically
+			wait(500);
+		}
+		mActiveCount++;
+	}
+
+	public synchronized void release() {
+		mActiveCount--;
+		notifyAll();
+	}
+
+	public synchronized int getActiveCount() {
+		return mActiveCount;
+	}
+}
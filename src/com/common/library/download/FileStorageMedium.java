@@ -0,0 +1,255 @@
+package com.common.library.download;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.common.library.bitmap.DiskLruCache;
+import com.common.library.bitmap.ImageCache;
+
+/**
+ * {@link ImageDownloader.StorageMedium} keeping one file per image in a {@link DiskLruCache}, which
+ * evicts the least recently used images beyond its maximum size. Images are stored as downloaded
+ * and read through a memory mapping of their file, which spares copying them through a stream buffer.
+ *
+ * The cache is opened on first use; all methods include disk access so they should not be
+ * executed on the main/UI thread.
+ */
+public class FileStorageMedium extends ImageDownloader.StorageMedium {
+	private static final String TAG = FileStorageMedium.class.getSimpleName();
+	private static final int APP_VERSION = 1;
+	private static final int VALUE_COUNT = 1;
+	private static final int DISK_CACHE_INDEX = 0;
+	private static final int COMPRESS_QUALITY = 90;
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final File mDirectory;
+	private final long mMaxSize;
+	private DiskLruCache mDiskLruCache;
+
+	/**
+	 * @param context
+	 * @param uniqueName name of the directory in the app's cache directory
+	 * @param maxSize the maximum number of bytes stored
+	 */
+	public FileStorageMedium(Context context, String uniqueName, long maxSize) {
+		this(context, ImageCache.getDiskCacheDir(context, uniqueName), maxSize);
+	}
+
+	public FileStorageMedium(Context context, File directory, long maxSize) {
+		super(context);
+		mDirectory = directory;
+		mMaxSize = maxSize;
+	}
+
+	private synchronized DiskLruCache getCache() throws IOException {
+		if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+			if (!mDirectory.exists()) {
+				mDirectory.mkdirs();
+			}
+			mDiskLruCache = DiskLruCache.open(mDirectory, APP_VERSION, VALUE_COUNT, mMaxSize);
+		}
+		return mDiskLruCache;
+	}
+
+	@Override
+	public void saveBitmap(String key, Bitmap bitmap) {
+		try {
+			write(key, null, bitmap);
+			getCache().flush();
+		} catch (IOException e) {
+			Log.e(TAG, "saveBitmap - " + e);
+		}
+	}
+
+	@Override
+	public void saveEncoded(String key, byte[] data) {
+		try {
+			write(key, data, null);
+			getCache().flush();
+		} catch (IOException e) {
+			Log.e(TAG, "saveEncoded - " + e);
+		}
+	}
+
+	/**
+	 * Store all entries, then write the journal out once.
+	 */
+	@Override
+	public void saveEncoded(Map<String, byte[]> entries) {
+		try {
+			for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+				write(e.getKey(), e.getValue(), null);
+			}
+			getCache().flush();
+		} catch (IOException e) {
+			Log.e(TAG, "saveEncoded - " + e);
+		}
+	}
+
+	/**
+	 * Store all bitmaps, then write the journal out once.
+	 */
+	@Override
+	public void saveBitmaps(Map<String, Bitmap> bitmaps) {
+		try {
+			for (Map.Entry<String, Bitmap> e : bitmaps.entrySet()) {
+				write(e.getKey(), null, e.getValue());
+			}
+			getCache().flush();
+		} catch (IOException e) {
+			Log.e(TAG, "saveBitmaps - " + e);
+		}
+	}
+
+	/**
+	 * Write data if not null, else bitmap encoded, under key.
+	 */
+	private void write(String key, byte[] data, Bitmap bitmap) throws IOException {
+		final DiskLruCache.Editor editor = getCache().edit(key);
+		if (editor == null) {
+			// Being written by another thread
+			return;
+		}
+		OutputStream out = null;
+		try {
+			out = editor.newOutputStream(DISK_CACHE_INDEX);
+			if (data != null) {
+				out.write(data);
+			} else {
+				bitmap.compress(bitmap.hasAlpha() ? CompressFormat.PNG : CompressFormat.JPEG,
+						COMPRESS_QUALITY, out);
+			}
+			out.close();
+			out = null;
+			editor.commit();
+		} finally {
+			if (out != null) {
+				DiskLruCache.closeQuietly(out);
+				editor.abort();
+			}
+		}
+	}
+
+	@Override
+	public Bitmap getBitmap(String key) {
+		DiskLruCache.Snapshot snapshot = null;
+		try {
+			snapshot = getCache().get(key);
+			if (snapshot == null) {
+				return null;
+			}
+			final byte[] data = read(snapshot.getInputStream(DISK_CACHE_INDEX));
+			return BitmapFactory.decodeByteArray(data, 0, data.length);
+		} catch (IOException e) {
+			Log.e(TAG, "getBitmap - " + e);
+			return null;
+		} finally {
+			if (snapshot != null) {
+				snapshot.close();
+			}
+		}
+	}
+
+	/**
+	 * Read the whole of in. The snapshot streams are unbuffered FileInputStreams, whose file is
+	 * mapped rather than read, and keeps its content even if the entry is replaced meanwhile.
+	 */
+	private static byte[] read(InputStream in) throws IOException {
+		if (in instanceof FileInputStream) {
+			final FileChannel channel = ((FileInputStream) in).getChannel();
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			final byte[] data = new byte[buffer.remaining()];
+			buffer.get(data);
+			return data;
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public boolean isBitmapExist(String key) {
+		DiskLruCache.Snapshot snapshot = null;
+		try {
+			snapshot = getCache().get(key);
+			return snapshot != null;
+		} catch (IOException e) {
+			Log.e(TAG, "isBitmapExist - " + e);
+			return false;
+		} finally {
+			if (snapshot != null) {
+				snapshot.close();
+			}
+		}
+	}
+
+	@Override
+	public long getBitmapSize(String key) {
+		DiskLruCache.Snapshot snapshot = null;
+		try {
+			snapshot = getCache().get(key);
+			if (snapshot == null) {
+				return 0;
+			}
+			final InputStream in = snapshot.getInputStream(DISK_CACHE_INDEX);
+			return in instanceof FileInputStream ? ((FileInputStream) in).getChannel().size() : in.available();
+		} catch (IOException e) {
+			Log.e(TAG, "getBitmapSize - " + e);
+			return 0;
+		} finally {
+			if (snapshot != null) {
+				snapshot.close();
+			}
+		}
+	}
+
+	@Override
+	public boolean deleteBitmap(String key) {
+		try {
+			return getCache().remove(key);
+		} catch (IOException e) {
+			Log.e(TAG, "deleteBitmap - " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return the number of bytes stored.
+	 */
+	public long size() {
+		try {
+			return getCache().size();
+		} catch (IOException e) {
+			Log.e(TAG, "size - " + e);
+			return 0;
+		}
+	}
+
+	public synchronized void close() {
+		if (mDiskLruCache != null) {
+			try {
+				mDiskLruCache.close();
+			} catch (IOException e) {
+				Log.e(TAG, "close - " + e);
+			}
+			mDiskLruCache = null;
+		}
+	}
+}
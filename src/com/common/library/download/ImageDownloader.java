@@ -1,29 +1,61 @@
 package com.common.library.download;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.support.v4.util.LruCache;
 import android.util.Log;
 import android.widget.ImageView;
 
+import com.common.library.bitmap.ImageCache;
 import com.common.library.utils.ThreadWork;
 
+/**
+ * Two tier image cache in front of {@link DownloadUtils}: bitmaps in memory keyed by URL, and
+ * a {@link StorageMedium} keyed by the MD5 of the URL. URLs known to be missing from the storage
+ * medium are remembered, so they aren't probed again on every bind, and concurrent requests for
+ * the same URL share one load.
+ * 
+ * <p>Only the memory cache is used on the main thread: the storage medium is read by the load
+ * tasks, and downloaded images are written to it in batches on {@link ThreadWork#SERIAL_EXECUTOR},
+ * so the medium may block on disk. Bitmaps are delivered to the main thread.
+ */
 public class ImageDownloader {
 	private static final String TAG = ImageDownloader.class.getSimpleName();
+	// How many storage misses are remembered
+	private static final int STORAGE_MISS_CACHE_SIZE = 256;
 	private LruCache<String, Bitmap> mMemoryCache;
+	private LruCache<String, Boolean> mStorageMisses = new LruCache<String, Boolean>(STORAGE_MISS_CACHE_SIZE);
 	private StorageMedium mStorageMedium;
 	private ThreadWork.Tracker mTracker = new ThreadWork.Tracker();
+	// Loads in progress by URL, only used on the main thread
+	private final HashMap<String, PendingLoad> mPendingLoads = new HashMap<String, PendingLoad>();
+	// Downloaded images by storage key, until they are written; guarded by itself
+	private final Map<String, byte[]> mPendingWrites = new LinkedHashMap<String, byte[]>();
 	
 	private interface ImageLoaderListener{
 		void onImageLoader(Bitmap bitmap, String url);
 	}
 	
+	private static class PendingLoad {
+		final List<ImageLoaderListener> listeners = new ArrayList<ImageLoaderListener>(1);
+		// Whether to download the image if the storage medium doesn't have it, read in background
+		volatile boolean download;
+	}
+	
 	/**
 	 * Actions definition that can do on bitmap. 
-	 * StorageMedium can be implemented by file or database. 
+	 * StorageMedium can be implemented by file or database, its methods are only called
+	 * in background.
+	 * Keys are the 32 hex digit MD5 of the image URL, safe to use as file names.
+	 * {@link FileStorageMedium} and {@link SqliteStorageMedium} are built in.
 	 */
 	public static abstract class StorageMedium {
 		protected Context mContext;
@@ -33,10 +65,43 @@ public class ImageDownloader {
 		}
 
 		public abstract void saveBitmap(String key, Bitmap bitmap);
+		/**
+		 * @return The bitmap stored under key, or null if there is none
+		 */
 		public abstract Bitmap getBitmap(String key);
 		public abstract boolean isBitmapExist(String key);
 		public abstract long getBitmapSize(String key);
 		public abstract boolean deleteBitmap(String key);
+
+		/**
+		 * Store an image as downloaded, e.g. a JPEG, which is both smaller and cheaper than
+		 * encoding the decoded bitmap again. Mediums that store bitmaps encoded should override it,
+		 * by default data is decoded and given to {@link #saveBitmap(String, Bitmap)}.
+		 */
+		public void saveEncoded(String key, byte[] data) {
+			final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+			if (bitmap != null) {
+				saveBitmap(key, bitmap);
+			}
+		}
+
+		/**
+		 * Store several images at once, which mediums can do in one transaction or one flush.
+		 */
+		public void saveEncoded(Map<String, byte[]> entries) {
+			for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+				saveEncoded(e.getKey(), e.getValue());
+			}
+		}
+
+		/**
+		 * Store several bitmaps at once, which mediums can do in one transaction or one flush.
+		 */
+		public void saveBitmaps(Map<String, Bitmap> bitmaps) {
+			for (Map.Entry<String, Bitmap> e : bitmaps.entrySet()) {
+				saveBitmap(e.getKey(), e.getValue());
+			}
+		}
 	}
 
 	public ImageDownloader(StorageMedium storageMedium){
@@ -53,91 +118,181 @@ public class ImageDownloader {
 	}
 	
 	/**
-	 * Add bitmap instance into cache.
-	 * @param key string which can identity one bitmap
-	 * @param bitmap associated with key.
-	 */
-	private void addBitmapToCache(String key, Bitmap bitmap) {  
-	    if (getBitmapFromCache(key) == null && bitmap != null) {  
-	        mMemoryCache.put(key, bitmap);  
-	    }  
-	}  
-	 
-	/**
-	 * Retrieve bitmap with key from cache.
-	 * @param key string which can identity one bitmap
-	 * @return Bitmap associated with key.
+	 * @return The key of url in the storage medium.
 	 */
-	private Bitmap getBitmapFromCache(String key) {  
-	    return mMemoryCache.get(key);  
-	} 
+	private static String storageKey(String url) {
+		return ImageCache.hashKeyForDisk(url);
+	}
 	
 	/**
-	 * Retrieve bitmap from cache or storage medium, if not exist download it
-	 * then and you should set default image for its imageView, after downloaded
-	 * it will be replaced by downloaded bitmap in callback of {@code ImageLoaderListener}.
+	 * Retrieve bitmap from memory cache, if not there load it from the storage medium or
+	 * download it in background and you should set default image for its imageView, after
+	 * loaded it will be replaced by the bitmap in callback of {@code ImageLoaderListener}.
 	 * 
 	 * @param url
 	 *            download url
 	 * @param listener
-	 *            a callback to retrieve downloaded bitmap.
-	 * @return Bitmap or Null, if Null it means download task is triggered.
+	 *            a callback to retrieve downloaded bitmap, called on the main thread.
+	 * @return Bitmap or Null, if Null it means load task is triggered.
 	 */
 	public Bitmap downloadImage(final String url, final ImageLoaderListener listener){
-		final String subUrl = url.replaceAll("[^\\w]", "");
-		final Bitmap bitmap = getBitmapByKey(subUrl);
+		final Bitmap bitmap = mMemoryCache.get(url);
 		if(bitmap != null){
 			Log.d(TAG, "bitmap was found in cache.");
 			return bitmap;
-		}else{
-			new ThreadWork<String, Void, Bitmap>(mTracker) {
-				
-				@Override
-				protected Bitmap doInBackground(String... params) {
-					String downloadUrl = params[0];
-					return DownloadUtils.downloadBitmap(downloadUrl, null);
+		}
+		load(url, listener, true);
+		return null;
+	}
+	
+	/**
+	 * Load url from the storage medium in background, and download it too if download.
+	 * Requests for a URL already being loaded wait for that load.
+	 */
+	private void load(String url, ImageLoaderListener listener, boolean download){
+		PendingLoad pending = mPendingLoads.get(url);
+		if(pending == null){
+			pending = new PendingLoad();
+			mPendingLoads.put(url, pending);
+			pending.download = download;
+			if(listener != null){
+				pending.listeners.add(listener);
+			}
+			start(url, pending);
+			return;
+		}
+		if(listener != null){
+			pending.listeners.add(listener);
+		}
+		if(download){
+			pending.download = true;
+		}
+	}
+	
+	private void start(final String url, final PendingLoad pending){
+		new ThreadWork<String, Void, Bitmap>(mTracker) {
+			private boolean mDownloaded;
+			
+			@Override
+			protected Bitmap doInBackground(String... params) {
+				final String key = storageKey(url);
+				Bitmap bitmap = readStorage(url, key);
+				if(bitmap != null || !pending.download){
+					return bitmap;
 				}
-				
-				@Override
-				protected void onPostExecute(Bitmap result) {
-					if(result != null){
-						Log.d(TAG, "bitmap download successfully");
-						mStorageMedium.saveBitmap(subUrl, result);
-						addBitmapToCache(subUrl, result);
-						
-						if(listener != null){
-							listener.onImageLoader(result, url);
-						}
+				mDownloaded = true;
+				final byte[] data = DownloadUtils.downloadBytes(url, null);
+				if(data == null){
+					return null;
+				}
+				bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+				if(bitmap != null){
+					store(url, key, data);
+				}
+				return bitmap;
+			}
+			
+			@Override
+			protected void onPostExecute(Bitmap result) {
+				if(result == null && pending.download && !mDownloaded){
+					// A download was asked for while the storage medium was being read
+					start(url, pending);
+					return;
+				}
+				mPendingLoads.remove(url);
+				if(result != null){
+					Log.d(TAG, "bitmap loaded successfully");
+					mMemoryCache.put(url, result);
+					
+					for(ImageLoaderListener l : pending.listeners){
+						l.onImageLoader(result, url);
 					}
 				}
-			}.executeSerial(url);
-		}
-		return null;
+			}
+
+			@Override
+			protected void onCancelled() {
+				mPendingLoads.remove(url);
+			}
+		}.executeKeyedSerial(url, url);
 	}
 	
 	/**
-	 * Try load from memory(cache) first, if not have try load from other
-	 * storage medium like file or database.
+	 * Load from the images not written yet, then from the storage medium, unless url was
+	 * missing there the last time. Called in background only.
 	 * 
-	 * @param key
-	 *            string which can identity one bitmap
-	 * @return Bitmap associated with key or null.
+	 * @return Bitmap associated with url or null.
 	 */
-	private Bitmap getBitmapByKey(String key){
-		if(getBitmapFromCache(key) != null){
-			return getBitmapFromCache(key);
-		}else if(mStorageMedium.isBitmapExist(key) && mStorageMedium.getBitmapSize(key) != 0){
-			Bitmap bitmap = mStorageMedium.getBitmap(key);
-			// add into cache
-			addBitmapToCache(key, bitmap);
-			return bitmap;
+	private Bitmap readStorage(String url, String key){
+		if(mStorageMisses.get(url) != null){
+			return null;
 		}
-		return null;
+		final byte[] data;
+		synchronized (mPendingWrites) {
+			data = mPendingWrites.get(key);
+		}
+		if(data != null){
+			return BitmapFactory.decodeByteArray(data, 0, data.length);
+		}
+		final Bitmap bitmap = mStorageMedium.getBitmap(key);
+		if(bitmap == null){
+			mStorageMisses.put(url, Boolean.TRUE);
+		}
+		return bitmap;
+	}
+	
+	/**
+	 * Queue data to be written to the storage medium. Images downloaded while a write is in
+	 * progress are written together in the next batch.
+	 */
+	private void store(String url, String key, byte[] data){
+		mStorageMisses.remove(url);
+		synchronized (mPendingWrites) {
+			final boolean scheduled = !mPendingWrites.isEmpty();
+			mPendingWrites.put(key, data);
+			if(scheduled){
+				return;
+			}
+		}
+		ThreadWork.SERIAL_EXECUTOR.execute(mWriter);
 	}
 	
+	private final Runnable mWriter = new Runnable() {
+		
+		@Override
+		public void run() {
+			final Map<String, byte[]> batch;
+			synchronized (mPendingWrites) {
+				batch = new LinkedHashMap<String, byte[]>(mPendingWrites);
+			}
+			try {
+				mStorageMedium.saveEncoded(batch);
+			} catch (RuntimeException e) {
+				// The batch is dropped all the same, only the memory cache has it now
+				Log.e(TAG, "saveEncoded - " + e);
+			} finally {
+				final boolean more;
+				synchronized (mPendingWrites) {
+					// Keep what was queued again meanwhile, and schedule it: store() only
+					// schedules this when it finds nothing pending
+					for(Map.Entry<String, byte[]> e : batch.entrySet()){
+						if(mPendingWrites.get(e.getKey()) == e.getValue()){
+							mPendingWrites.remove(e.getKey());
+						}
+					}
+					more = !mPendingWrites.isEmpty();
+				}
+				if(more){
+					ThreadWork.SERIAL_EXECUTOR.execute(this);
+				}
+			}
+		}
+	};
+	
 	/**
 	 * Called in method getView() of adapter to load exist bitmap to imageView,
-	 * if not exist set loading icon for it.
+	 * if not exist set loading icon for it. A bitmap in the storage medium is
+	 * loaded in background, and set if imageView still shows downloadUrl then.
 	 * 
 	 * @param imageView
 	 *            should retrieved from viewHolder.
@@ -146,14 +301,25 @@ public class ImageDownloader {
 	 * @param loadingIcon
 	 *            loading default icon
 	 */
-	public void attachCachedBitmapToImageView(ImageView imageView, String downloadUrl, Drawable loadingIcon){
+	public void attachCachedBitmapToImageView(final ImageView imageView, String downloadUrl, Drawable loadingIcon){
 		imageView.setTag(downloadUrl);
 		
-		Bitmap bitmap = getBitmapByKey(downloadUrl.replaceAll("[^\\w]", ""));
+		Bitmap bitmap = mMemoryCache.get(downloadUrl);
 		if(bitmap != null){
 			imageView.setImageBitmap(bitmap);
-		}else{
-			imageView.setImageDrawable(loadingIcon);
+			return;
+		}
+		imageView.setImageDrawable(loadingIcon);
+		if(mStorageMisses.get(downloadUrl) == null){
+			load(downloadUrl, new ImageLoaderListener() {
+				
+				@Override
+				public void onImageLoader(Bitmap bitmap, String url) {
+					if(url.equals(imageView.getTag())){
+						imageView.setImageBitmap(bitmap);
+					}
+				}
+			}, false);
 		}
 	}
 	
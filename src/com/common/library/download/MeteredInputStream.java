@@ -0,0 +1,71 @@
+package com.common.library.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream that reports the bytes of a response body to a {@link BandwidthEstimator}, which
+ * adds them up with the other bodies read at the same time. It must be closed, or read to the
+ * end, for the estimator to know when the body is done.
+ */
+public class MeteredInputStream extends FilterInputStream {
+	private final BandwidthEstimator estimator;
+	private long byteCount;
+	private boolean reported;
+
+	public MeteredInputStream(InputStream in, BandwidthEstimator estimator) {
+		super(in);
+		this.estimator = estimator;
+		estimator.onStreamOpened();
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b == -1) {
+			report();
+		} else {
+			byteCount++;
+			estimator.onBytesRead(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int offset, int length) throws IOException {
+		int readCount = in.read(b, offset, length);
+		if (readCount == -1) {
+			report();
+		} else {
+			byteCount += readCount;
+			estimator.onBytesRead(readCount);
+		}
+		return readCount;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(n);
+		byteCount += skipped;
+		estimator.onBytesRead(skipped);
+		return skipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		report();
+		in.close();
+	}
+
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	private void report() {
+		if (!reported) {
+			reported = true;
+			estimator.onStreamClosed();
+		}
+	}
+}
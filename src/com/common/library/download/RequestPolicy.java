@@ -0,0 +1,465 @@
+package com.common.library.download;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+import com.common.library.BuildConfig;
+import com.common.library.utils.CancellationSignal;
+
+/**
+ * Opens HTTP connections with retries, adaptive timeouts and optional hedged requests.
+ * <ul>
+ * <li>Failed attempts (I/O errors, HTTP 408/429/5xx) are retried with exponential backoff and
+ * full jitter.</li>
+ * <li>Connect and read timeouts follow the observed time-to-first-byte percentiles instead of
+ * being fixed.</li>
+ * <li>With hedging enabled, a second request is started when the first has not answered after
+ * the p95 latency, and whichever responds first is used.</li>
+ * </ul>
+ * Only connection establishment is retried: once {@link #connect} has returned, failures while
+ * reading the body are left to the caller.
+ *
+ * <pre>
+ * HttpURLConnection connection = RequestPolicy.getDefault().connect(url, new RequestPolicy.RequestConfigurator() {
+ * 	public void configure(HttpURLConnection connection) throws IOException {
+ * 		connection.setRequestProperty("Range", "bytes=" + localSize + "-");
+ * 	}
+ * });
+ * </pre>
+ */
+public class RequestPolicy {
+	private static final String TAG = RequestPolicy.class.getSimpleName();
+
+	private static final int DEFAULT_MAX_RETRIES = 2;
+	private static final long DEFAULT_BASE_BACKOFF = 250;
+	private static final long DEFAULT_MAX_BACKOFF = 4000;
+
+	// Timeouts used until enough latency samples have been collected
+	private static final int DEFAULT_CONNECT_TIMEOUT = 3000;
+	private static final int DEFAULT_READ_TIMEOUT = 3000;
+	private static final int MIN_CONNECT_TIMEOUT = 1500;
+	private static final int MAX_CONNECT_TIMEOUT = 20000;
+	private static final int MIN_READ_TIMEOUT = 3000;
+	private static final int MAX_READ_TIMEOUT = 30000;
+	private static final int CONNECT_TIMEOUT_FACTOR = 2;
+	private static final int READ_TIMEOUT_FACTOR = 4;
+
+	private static final int LATENCY_WINDOW = 64;
+	private static final int MIN_SAMPLES = 8;
+
+	private static RequestPolicy sDefault;
+
+	private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+		private final AtomicInteger mCount = new AtomicInteger(1);
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "RequestPolicy #" + mCount.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	private static final ExecutorService sHedgeExecutor = Executors.newCachedThreadPool(sThreadFactory);
+
+	private int mMaxRetries = DEFAULT_MAX_RETRIES;
+	private long mBaseBackoff = DEFAULT_BASE_BACKOFF;
+	private long mMaxBackoff = DEFAULT_MAX_BACKOFF;
+	private boolean mHedgingEnabled = false;
+
+	private final LatencyTracker mLatencies = new LatencyTracker(LATENCY_WINDOW);
+	private final Random mRandom = new Random();
+
+	/**
+	 * Lets callers set request method and headers on every attempt. Timeouts set here replace
+	 * the adaptive ones.
+	 */
+	public interface RequestConfigurator {
+		void configure(HttpURLConnection connection) throws IOException;
+	}
+
+	/**
+	 * @return the process wide policy shared by {@link DownloadUtils} and the image fetchers,
+	 *         so that they learn from each other's latency samples.
+	 */
+	public static synchronized RequestPolicy getDefault() {
+		if (sDefault == null) {
+			sDefault = new RequestPolicy();
+		}
+		return sDefault;
+	}
+
+	/**
+	 * @param maxRetries attempts made after the first one failed, 0 disables retries.
+	 */
+	public void setMaxRetries(int maxRetries) {
+		mMaxRetries = Math.max(0, maxRetries);
+	}
+
+	/**
+	 * @param baseBackoff backoff before the first retry in milliseconds, doubled per retry.
+	 * @param maxBackoff upper bound of the backoff in milliseconds.
+	 */
+	public void setBackoff(long baseBackoff, long maxBackoff) {
+		mBaseBackoff = baseBackoff;
+		mMaxBackoff = maxBackoff;
+	}
+
+	/**
+	 * If set to true a second, hedged request is started when the first one has not responded
+	 * after the p95 of the observed latencies.
+	 */
+	public void setHedgingEnabled(boolean hedgingEnabled) {
+		mHedgingEnabled = hedgingEnabled;
+	}
+
+	/**
+	 * @return connect timeout in milliseconds derived from the observed p99 latency.
+	 */
+	public int getConnectTimeout() {
+		long p99 = mLatencies.percentile(99, MIN_SAMPLES);
+		if (p99 < 0) {
+			return DEFAULT_CONNECT_TIMEOUT;
+		}
+		return clamp(p99 * CONNECT_TIMEOUT_FACTOR, MIN_CONNECT_TIMEOUT, MAX_CONNECT_TIMEOUT);
+	}
+
+	/**
+	 * @return read timeout in milliseconds derived from the observed p99 latency.
+	 */
+	public int getReadTimeout() {
+		long p99 = mLatencies.percentile(99, MIN_SAMPLES);
+		if (p99 < 0) {
+			return DEFAULT_READ_TIMEOUT;
+		}
+		return clamp(p99 * READ_TIMEOUT_FACTOR, MIN_READ_TIMEOUT, MAX_READ_TIMEOUT);
+	}
+
+	/**
+	 * @return delay in milliseconds after which a hedged request is started, or -1 while there
+	 *         are not enough samples to estimate it.
+	 */
+	public long getHedgeDelay() {
+		return mLatencies.percentile(95, MIN_SAMPLES);
+	}
+
+	/**
+	 * Open a connection and wait for the response headers, retrying and hedging according to
+	 * this policy.
+	 *
+	 * @param urlString URL to request
+	 * @param configurator sets method and headers on each attempt, can be null
+	 * @return a connection whose response code is available, the caller must disconnect it
+	 * @throws IOException if every attempt failed, carrying the last failure, or an
+	 *         {@link InterruptedIOException} if the {@link CancellationSignal#current()} signal
+	 *         was cancelled meanwhile
+	 */
+	public HttpURLConnection connect(String urlString, RequestConfigurator configurator) throws IOException {
+		final URL url = new URL(urlString);
+		// Watch for cancellation from the start, so that it stops a connect or a backoff
+		final CancellationSignal signal = CancellationSignal.current();
+		final ConnectCancellation cancellation = new ConnectCancellation();
+		if (signal != null) {
+			signal.addOnCancelListener(cancellation);
+		}
+		try {
+			IOException lastError = null;
+			for (int attempt = 0; attempt <= mMaxRetries; attempt++) {
+				if (attempt > 0) {
+					backoff(attempt, cancellation);
+				}
+				final HedgeState state = cancellation.newAttempt();
+				try {
+					HttpURLConnection connection = mHedgingEnabled && getHedgeDelay() >= 0
+							? connectHedged(url, configurator, state) : connectOnce(url, configurator, state);
+					int responseCode = connection.getResponseCode();
+					if (!isRetryable(responseCode) || attempt == mMaxRetries) {
+						return connection;
+					}
+					connection.disconnect();
+					lastError = new IOException("HTTP " + responseCode);
+				} catch (InterruptedIOException e) {
+					if (Thread.currentThread().isInterrupted()) {
+						throw e;
+					}
+					// A timeout, worth another attempt
+					lastError = e;
+				} catch (IOException e) {
+					lastError = e;
+				}
+				// A cancelled attempt fails like any other, but mustn't be retried
+				cancellation.throwIfCanceled();
+				if (BuildConfig.DEBUG) {
+					Log.w(TAG, "attempt " + (attempt + 1) + " for " + urlString + " failed - " + lastError);
+				}
+			}
+			throw lastError;
+		} finally {
+			if (signal != null) {
+				signal.removeOnCancelListener(cancellation);
+			}
+		}
+	}
+
+	/**
+	 * Record a latency sample measured outside of {@link #connect}, e.g. by a caller that
+	 * manages its own connections.
+	 */
+	public void recordLatency(long millis) {
+		mLatencies.add(millis);
+	}
+
+	private HttpURLConnection connectOnce(URL url, RequestConfigurator configurator, HedgeState state) throws IOException {
+		final HttpURLConnection connection = openConnection(url, configurator);
+		if (!state.register(connection)) {
+			throw new InterruptedIOException("request cancelled");
+		}
+		return awaitResponse(connection);
+	}
+
+	private HttpURLConnection openConnection(URL url, RequestConfigurator configurator) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(getConnectTimeout());
+		connection.setReadTimeout(getReadTimeout());
+		if (configurator != null) {
+			configurator.configure(connection);
+		}
+		return connection;
+	}
+
+	private HttpURLConnection awaitResponse(HttpURLConnection connection) throws IOException {
+		long start = System.currentTimeMillis();
+		try {
+			// Blocks until the status line and headers have been received
+			connection.getResponseCode();
+		} catch (IOException e) {
+			connection.disconnect();
+			throw e;
+		}
+		mLatencies.add(System.currentTimeMillis() - start);
+		return connection;
+	}
+
+	/**
+	 * Start a request, and a second one if the first has not answered after the hedge delay.
+	 * The first successful response wins and the other connection is disconnected.
+	 */
+	private HttpURLConnection connectHedged(final URL url, final RequestConfigurator configurator,
+			final HedgeState state) throws IOException {
+		final CompletionService<HttpURLConnection> completion =
+				new ExecutorCompletionService<HttpURLConnection>(sHedgeExecutor);
+		final Callable<HttpURLConnection> request = new Callable<HttpURLConnection>() {
+			public HttpURLConnection call() throws Exception {
+				HttpURLConnection connection = openConnection(url, configurator);
+				if (!state.register(connection)) {
+					throw new InterruptedIOException("request already answered");
+				}
+				return awaitResponse(connection);
+			}
+		};
+
+		completion.submit(request);
+		int pending = 1;
+		IOException lastError = null;
+		try {
+			Future<HttpURLConnection> done = completion.poll(getHedgeDelay(), TimeUnit.MILLISECONDS);
+			if (done == null) {
+				if (BuildConfig.DEBUG) {
+					Log.d(TAG, "no response after " + getHedgeDelay() + "ms, hedging " + url);
+				}
+				completion.submit(request);
+				pending++;
+			}
+			while (pending > 0) {
+				if (done == null) {
+					done = completion.take();
+				}
+				pending--;
+				try {
+					HttpURLConnection connection = done.get();
+					// Abort the other request, disconnecting also unblocks a pending connect
+					state.decide(connection);
+					return connection;
+				} catch (ExecutionException e) {
+					lastError = e.getCause() instanceof IOException ? (IOException) e.getCause()
+							: new IOException(String.valueOf(e.getCause()));
+				}
+				done = null;
+			}
+		} catch (InterruptedException e) {
+			state.decide(null);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for " + url);
+		}
+		throw lastError;
+	}
+
+	/**
+	 * Connections opened for one attempt, two if it was hedged. Once a winner is decided, or the
+	 * attempt is cancelled, every other connection, including ones registered later, is
+	 * disconnected.
+	 */
+	private static class HedgeState {
+		private final ArrayList<HttpURLConnection> mConnections = new ArrayList<HttpURLConnection>(2);
+		private boolean mDecided;
+
+		/**
+		 * @return false if the request was already answered and connection was disconnected.
+		 */
+		synchronized boolean register(HttpURLConnection connection) {
+			if (mDecided) {
+				connection.disconnect();
+				return false;
+			}
+			mConnections.add(connection);
+			return true;
+		}
+
+		synchronized void decide(HttpURLConnection winner) {
+			mDecided = true;
+			for (HttpURLConnection connection : mConnections) {
+				if (connection != winner) {
+					connection.disconnect();
+				}
+			}
+			mConnections.clear();
+		}
+
+		/**
+		 * Disconnect every connection, in the background as this may be called on the main
+		 * thread.
+		 */
+		void cancel() {
+			final ArrayList<HttpURLConnection> connections;
+			synchronized (this) {
+				mDecided = true;
+				connections = new ArrayList<HttpURLConnection>(mConnections);
+				mConnections.clear();
+			}
+			for (HttpURLConnection connection : connections) {
+				DownloadUtils.disconnectInBackground(connection);
+			}
+		}
+	}
+
+	/**
+	 * Stops the attempt in progress and the backoff of one {@link #connect} when the
+	 * {@link CancellationSignal} of its thread is cancelled.
+	 */
+	private static class ConnectCancellation implements CancellationSignal.OnCancelListener {
+		// Guarded by this
+		private boolean mCanceled;
+		private HedgeState mAttempt;
+
+		@Override
+		public void onCancel() {
+			final HedgeState attempt;
+			synchronized (this) {
+				mCanceled = true;
+				attempt = mAttempt;
+				notifyAll();
+			}
+			if (attempt != null) {
+				attempt.cancel();
+			}
+		}
+
+		synchronized HedgeState newAttempt() throws InterruptedIOException {
+			throwIfCanceled();
+			mAttempt = new HedgeState();
+			return mAttempt;
+		}
+
+		synchronized void throwIfCanceled() throws InterruptedIOException {
+			if (mCanceled) {
+				throw new InterruptedIOException("request cancelled");
+			}
+		}
+
+		/**
+		 * Wait for millis, or until cancelled.
+		 */
+		synchronized void sleep(long millis) throws InterruptedIOException {
+			final long deadline = System.currentTimeMillis() + millis;
+			long left = millis;
+			while (!mCanceled && left > 0) {
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted during backoff");
+				}
+				left = deadline - System.currentTimeMillis();
+			}
+			throwIfCanceled();
+		}
+	}
+
+	private void backoff(int attempt, ConnectCancellation cancellation) throws InterruptedIOException {
+		long ceiling = Math.min(mMaxBackoff, mBaseBackoff << Math.min(attempt - 1, 16));
+		long delay;
+		synchronized (mRandom) {
+			delay = (long) (mRandom.nextDouble() * ceiling);
+		}
+		cancellation.sleep(delay);
+	}
+
+	private static boolean isRetryable(int responseCode) {
+		return responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || responseCode == 429
+				|| responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+	}
+
+	private static int clamp(long value, int min, int max) {
+		return (int) Math.max(min, Math.min(max, value));
+	}
+
+	/**
+	 * Fixed size ring of recent latency samples.
+	 */
+	private static class LatencyTracker {
+		private final long[] mSamples;
+		private int mNext;
+		private int mCount;
+
+		LatencyTracker(int capacity) {
+			mSamples = new long[capacity];
+		}
+
+		synchronized void add(long sample) {
+			mSamples[mNext] = sample;
+			mNext = (mNext + 1) % mSamples.length;
+			if (mCount < mSamples.length) {
+				mCount++;
+			}
+		}
+
+		/**
+		 * @return the given percentile, or -1 if fewer than minSamples were recorded.
+		 */
+		synchronized long percentile(int percent, int minSamples) {
+			if (mCount < minSamples) {
+				return -1;
+			}
+			long[] sorted = new long[mCount];
+			System.arraycopy(mSamples, 0, sorted, 0, mCount);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percent / 100.0 * mCount) - 1;
+			return sorted[Math.max(0, Math.min(mCount - 1, index))];
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package com.common.library.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * MD5 or SHA-256 whose intermediate state can be saved and restored, which
+ * {@link java.security.MessageDigest} can't do, so that a download resumed in another process
+ * goes on digesting where the last one stopped instead of reading the file downloaded so far again.
+ *
+ * <pre>
+ * byte[] state = digest.saveState();
+ * ...
+ * ResumableDigest digest = ResumableDigest.restore(state);
+ * digest.update(buffer, 0, count);
+ * String hex = digest.digestHex();
+ * </pre>
+ */
+public abstract class ResumableDigest {
+	public static final String MD5 = "MD5";
+	public static final String SHA_256 = "SHA-256";
+
+	private static final int BLOCK_SIZE = 64;
+	private static final int STATE_VERSION = 1;
+
+	private final String mAlgorithm;
+	// Chaining variables
+	protected final int[] mWords;
+	private final byte[] mBlock = new byte[BLOCK_SIZE];
+	private long mCount;
+
+	protected ResumableDigest(String algorithm, int[] initialWords) {
+		mAlgorithm = algorithm;
+		mWords = initialWords;
+	}
+
+	/**
+	 * @param algorithm {@link #MD5} or {@link #SHA_256}
+	 */
+	public static ResumableDigest getInstance(String algorithm) {
+		if (MD5.equalsIgnoreCase(algorithm)) {
+			return new Md5();
+		} else if (SHA_256.equalsIgnoreCase(algorithm)) {
+			return new Sha256();
+		}
+		throw new IllegalArgumentException("Unsupported digest algorithm " + algorithm);
+	}
+
+	/**
+	 * @param state as returned by {@link #saveState()}
+	 * @throws IOException if state is corrupt
+	 */
+	public static ResumableDigest restore(byte[] state) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+		if (in.readInt() != STATE_VERSION) {
+			throw new IOException("Unknown digest state version");
+		}
+		final ResumableDigest digest;
+		try {
+			digest = getInstance(in.readUTF());
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+		digest.mCount = in.readLong();
+		for (int i = 0; i < digest.mWords.length; i++) {
+			digest.mWords[i] = in.readInt();
+		}
+		in.readFully(digest.mBlock, 0, (int) (digest.mCount % BLOCK_SIZE));
+		return digest;
+	}
+
+	/**
+	 * @return The state of this digest, to {@link #restore(byte[])} it later.
+	 */
+	public byte[] saveState() {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(STATE_VERSION);
+			out.writeUTF(mAlgorithm);
+			out.writeLong(mCount);
+			for (int word : mWords) {
+				out.writeInt(word);
+			}
+			out.write(mBlock, 0, (int) (mCount % BLOCK_SIZE));
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public String getAlgorithm() {
+		return mAlgorithm;
+	}
+
+	/**
+	 * @return The number of bytes digested.
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	public void update(byte[] input, int offset, int length) {
+		int used = (int) (mCount % BLOCK_SIZE);
+		mCount += length;
+		if (used > 0) {
+			final int count = Math.min(length, BLOCK_SIZE - used);
+			System.arraycopy(input, offset, mBlock, used, count);
+			offset += count;
+			length -= count;
+			if (used + count < BLOCK_SIZE) {
+				return;
+			}
+			processBlock(mBlock, 0);
+		}
+		while (length >= BLOCK_SIZE) {
+			processBlock(input, offset);
+			offset += BLOCK_SIZE;
+			length -= BLOCK_SIZE;
+		}
+		System.arraycopy(input, offset, mBlock, 0, length);
+	}
+
+	public void update(byte input) {
+		update(new byte[] {input}, 0, 1);
+	}
+
+	/**
+	 * @return The digest of the bytes so far, which can be followed by more updates.
+	 */
+	public byte[] digest() {
+		final ResumableDigest copy = getInstance(mAlgorithm);
+		System.arraycopy(mWords, 0, copy.mWords, 0, mWords.length);
+		System.arraycopy(mBlock, 0, copy.mBlock, 0, BLOCK_SIZE);
+		copy.mCount = mCount;
+		return copy.finish();
+	}
+
+	/**
+	 * @return {@link #digest()} as lower case hex, as {@link com.common.library.utils.MD5} prints it.
+	 */
+	public String digestHex() {
+		final byte[] digest = digest();
+		final StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			final String hex = Integer.toHexString(0xFF & b);
+			if (hex.length() == 1) {
+				sb.append('0');
+			}
+			sb.append(hex);
+		}
+		return sb.toString();
+	}
+
+	private byte[] finish() {
+		final long bits = mCount * 8;
+		final int used = (int) (mCount % BLOCK_SIZE);
+		final int padding = (used < 56 ? 56 : 120) - used;
+		final byte[] tail = new byte[padding + 8];
+		tail[0] = (byte) 0x80;
+		for (int i = 0; i < 8; i++) {
+			// MD5 stores the length little endian, SHA big endian
+			final int shift = isBigEndian() ? 56 - i * 8 : i * 8;
+			tail[padding + i] = (byte) (bits >>> shift);
+		}
+		update(tail, 0, tail.length);
+
+		final byte[] out = new byte[mWords.length * 4];
+		for (int i = 0; i < mWords.length; i++) {
+			for (int j = 0; j < 4; j++) {
+				final int shift = isBigEndian() ? 24 - j * 8 : j * 8;
+				out[i * 4 + j] = (byte) (mWords[i] >>> shift);
+			}
+		}
+		return out;
+	}
+
+	protected abstract boolean isBigEndian();
+
+	protected abstract void processBlock(byte[] block, int offset);
+
+	private static class Md5 extends ResumableDigest {
+		private static final int[] S = {
+			7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+			5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+			4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+			6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21 };
+		private static final int[] K = new int[64];
+
+		static {
+			for (int i = 0; i < 64; i++) {
+				K[i] = (int) (long) Math.floor(Math.abs(Math.sin(i + 1)) * 4294967296.0);
+			}
+		}
+
+		private final int[] mX = new int[16];
+
+		Md5() {
+			super(MD5, new int[] {0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476});
+		}
+
+		@Override
+		protected boolean isBigEndian() {
+			return false;
+		}
+
+		@Override
+		protected void processBlock(byte[] block, int offset) {
+			final int[] x = mX;
+			for (int i = 0; i < 16; i++) {
+				final int p = offset + i * 4;
+				x[i] = (block[p] & 0xFF) | (block[p + 1] & 0xFF) << 8 | (block[p + 2] & 0xFF) << 16
+						| (block[p + 3] & 0xFF) << 24;
+			}
+			int a = mWords[0];
+			int b = mWords[1];
+			int c = mWords[2];
+			int d = mWords[3];
+			for (int i = 0; i < 64; i++) {
+				final int f;
+				final int g;
+				if (i < 16) {
+					f = (b & c) | (~b & d);
+					g = i;
+				} else if (i < 32) {
+					f = (d & b) | (~d & c);
+					g = (5 * i + 1) & 15;
+				} else if (i < 48) {
+					f = b ^ c ^ d;
+					g = (3 * i + 5) & 15;
+				} else {
+					f = c ^ (b | ~d);
+					g = (7 * i) & 15;
+				}
+				final int temp = d;
+				d = c;
+				c = b;
+				b = b + Integer.rotateLeft(a + f + K[i] + x[g], S[i]);
+				a = temp;
+			}
+			mWords[0] += a;
+			mWords[1] += b;
+			mWords[2] += c;
+			mWords[3] += d;
+		}
+	}
+
+	private static class Sha256 extends ResumableDigest {
+		private static final int[] K = {
+			0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+			0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+			0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+			0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+			0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+			0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+			0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+			0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 };
+
+		private final int[] mW = new int[64];
+
+		Sha256() {
+			super(SHA_256, new int[] {0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f,
+					0x9b05688c, 0x1f83d9ab, 0x5be0cd19});
+		}
+
+		@Override
+		protected boolean isBigEndian() {
+			return true;
+		}
+
+		@Override
+		protected void processBlock(byte[] block, int offset) {
+			final int[] w = mW;
+			for (int i = 0; i < 16; i++) {
+				final int p = offset + i * 4;
+				w[i] = (block[p] & 0xFF) << 24 | (block[p + 1] & 0xFF) << 16 | (block[p + 2] & 0xFF) << 8
+						| (block[p + 3] & 0xFF);
+			}
+			for (int i = 16; i < 64; i++) {
+				final int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+				final int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+				w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+			}
+			int a = mWords[0];
+			int b = mWords[1];
+			int c = mWords[2];
+			int d = mWords[3];
+			int e = mWords[4];
+			int f = mWords[5];
+			int g = mWords[6];
+			int h = mWords[7];
+			for (int i = 0; i < 64; i++) {
+				final int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+				final int ch = (e & f) ^ (~e & g);
+				final int t1 = h + s1 + ch + K[i] + w[i];
+				final int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+				final int maj = (a & b) ^ (a & c) ^ (b & c);
+				final int t2 = s0 + maj;
+				h = g;
+				g = f;
+				f = e;
+				e = d + t1;
+				d = c;
+				c = b;
+				b = a;
+				a = t1 + t2;
+			}
+			mWords[0] += a;
+			mWords[1] += b;
+			mWords[2] += c;
+			mWords[3] += d;
+			mWords[4] += e;
+			mWords[5] += f;
+			mWords[6] += g;
+			mWords[7] += h;
+		}
+	}
+}
@@ -0,0 +1,770 @@
+package com.common.library.download;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.common.library.download.ProgressAwareInputStream.OnProgressListener;
+import com.common.library.utils.CancellationSignal;
+
+/**
+ * Downloads a file over several connections at once, each fetching a byte range into its place
+ * of a file preallocated to the full size.
+ * <ul>
+ * <li>A request for the first byte probes whether the server accepts ranges and gives the size.
+ * A server that answers with the whole file is read over that one connection instead.</li>
+ * <li>Segment requests carry the ETag, or else the Last-Modified date, of the probe in
+ * If-Range, so that a file changing on the server meanwhile fails the download rather
+ * than mixing two versions.</li>
+ * <li>A connection that finishes its range takes over the second half of the largest range
+ * left, so fast connections help slow ones.</li>
+ * <li>A connection that received nothing for {@link #STALL_TIMEOUT} is dropped and its range
+ * requested again from where it stopped.</li>
+ * </ul>
+ * Progress of all segments together goes to the {@link OnProgressListener}, called on the
+ * segment threads. Given a {@link ResumeState}, the ranges left are recorded in it as the download
+ * goes, for a later call to pick up where this one stopped.
+ *
+ * <pre>
+ * boolean done = new SegmentedDownloader(RequestPolicy.getDefault(), 4).download(url, file, listener);
+ * </pre>
+ */
+public class SegmentedDownloader {
+	private static final String TAG = SegmentedDownloader.class.getSimpleName();
+
+	public static final int DEFAULT_SEGMENT_COUNT = 4;
+	private static final int BUFFER_SIZE = 16 * 1024;
+	// A range smaller than this isn't worth a connection of its own, must be far above BUFFER_SIZE
+	private static final long MIN_SEGMENT_SIZE = 512 * 1024;
+	/** Time without data after which a segment connection is dropped and opened again */
+	public static final long STALL_TIMEOUT = 5000;
+	private static final long MONITOR_INTERVAL = 500;
+	private static final int MAX_SEGMENT_RETRIES = 3;
+	private static final long CHECKPOINT_INTERVAL = 1000;
+
+	private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+		private final AtomicInteger mCount = new AtomicInteger(1);
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "SegmentedDownloader #" + mCount.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	private static final ExecutorService sExecutor = Executors.newCachedThreadPool(sThreadFactory);
+
+	private final RequestPolicy mRequestPolicy;
+	private final int mSegmentCount;
+
+	/**
+	 * @param requestPolicy policy every connection is opened with
+	 * @param segmentCount the most connections used at once
+	 */
+	public SegmentedDownloader(RequestPolicy requestPolicy, int segmentCount) {
+		mRequestPolicy = requestPolicy;
+		mSegmentCount = Math.max(1, segmentCount);
+	}
+
+	/**
+	 * Where a download stands: the size and validator of the file on the server, and the byte
+	 * ranges still to fetch. It is plain data, to be persisted from {@link #getTotal()},
+	 * {@link #getValidator()} and {@link #getRanges()}.
+	 */
+	public static class ResumeState {
+		private long mTotal = -1;
+		private String mValidator;
+		// Ranges left, as pairs of first byte and byte after the last, null until started
+		private long[] mRanges;
+
+		public ResumeState() {
+		}
+
+		/**
+		 * Restore a state persisted earlier.
+		 * @param ranges as returned by {@link #getRanges()}, may be null
+		 */
+		public ResumeState(long total, String validator, String ranges) {
+			mTotal = total;
+			mValidator = validator;
+			if (ranges != null) {
+				final String[] parts = ranges.length() == 0 ? new String[0] : ranges.split(",");
+				mRanges = new long[parts.length * 2];
+				try {
+					for (int i = 0; i < parts.length; i++) {
+						final int dash = parts[i].indexOf('-');
+						mRanges[i * 2] = Long.parseLong(parts[i].substring(0, dash));
+						mRanges[i * 2 + 1] = Long.parseLong(parts[i].substring(dash + 1));
+					}
+				} catch (RuntimeException e) {
+					Log.e(TAG, "ResumeState - " + e);
+					reset();
+				}
+			}
+		}
+
+		/**
+		 * @return The size of the file, or -1 if unknown.
+		 */
+		public long getTotal() {
+			return mTotal;
+		}
+
+		/**
+		 * @return The ETag or Last-Modified date of the file, or null.
+		 */
+		public String getValidator() {
+			return mValidator;
+		}
+
+		/**
+		 * @return The ranges left as "from-to,from-to", to exclusive, "" when done, or null if the
+		 *         download can't be resumed.
+		 */
+		public String getRanges() {
+			if (mRanges == null) {
+				return null;
+			}
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < mRanges.length; i += 2) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(mRanges[i]).append('-').append(mRanges[i + 1]);
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * @return The number of bytes left to download, or -1 if unknown.
+		 */
+		public long getRemaining() {
+			if (mRanges == null) {
+				return -1;
+			}
+			long remaining = 0;
+			for (int i = 0; i < mRanges.length; i += 2) {
+				remaining += mRanges[i + 1] - mRanges[i];
+			}
+			return remaining;
+		}
+
+		boolean isResumable() {
+			return mTotal > 0 && mRanges != null;
+		}
+
+		void reset() {
+			mTotal = -1;
+			mValidator = null;
+			mRanges = null;
+		}
+	}
+
+	/**
+	 * Receives the {@link ResumeState} about once a second and when the download stops, on the
+	 * thread that called download.
+	 */
+	public interface OnCheckpointListener {
+		void onCheckpoint(ResumeState state);
+	}
+
+	/**
+	 * The file isn't the one the ranges already downloaded came from.
+	 */
+	private static class FileChangedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		FileChangedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Download fileUrl to localFile, replacing it, and wait until it is done. It should not be
+	 * executed on the main/UI thread; a task running it is cancelled through its
+	 * {@link CancellationSignal}.
+	 *
+	 * @return true if the whole file was downloaded
+	 */
+	public boolean download(String fileUrl, File localFile, OnProgressListener progressListener) {
+		return download(fileUrl, localFile, null, null, progressListener);
+	}
+
+	/**
+	 * Download fileUrl to localFile, resuming from state if it was started, and wait until it is
+	 * done. The ranges downloaded are only trusted while the file on the server has the same
+	 * validator; if it changed the download starts over.
+	 *
+	 * @param state updated as the download goes, can be null
+	 * @param checkpointListener told when state was updated, can be null
+	 * @return true if the whole file was downloaded
+	 */
+	public boolean download(final String fileUrl, File localFile, ResumeState state,
+			OnCheckpointListener checkpointListener, OnProgressListener progressListener) {
+		if (state != null && state.isResumable() && localFile.length() == state.getTotal()) {
+			try {
+				return new Download(fileUrl, localFile, state, checkpointListener, progressListener).run();
+			} catch (FileChangedException e) {
+				Log.d(TAG, "changed on the server, starting over - " + fileUrl);
+				state.reset();
+			} catch (IOException e) {
+				Log.e(TAG, "download - " + e);
+				if (progressListener != null) {
+					progressListener.onError("IOException:" + e.getMessage(), fileUrl);
+				}
+				return false;
+			}
+		}
+		if (state == null) {
+			state = new ResumeState();
+		}
+
+		HttpURLConnection probe = null;
+		try {
+			probe = mRequestPolicy.connect(fileUrl, new RequestPolicy.RequestConfigurator() {
+
+				@Override
+				public void configure(HttpURLConnection connection) throws IOException {
+					DownloadUtils.FILE_REQUEST.configure(connection);
+					connection.setRequestProperty("Range", "bytes=0-0");
+				}
+			});
+			final int responseCode = probe.getResponseCode();
+			if (responseCode == HttpURLConnection.HTTP_OK) {
+				Log.d(TAG, "no range support, single stream - " + fileUrl);
+				state.reset();
+				return downloadSingle(probe, fileUrl, localFile, progressListener);
+			}
+			if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+				if (progressListener != null) {
+					progressListener.onError("Invalid http response code:" + responseCode, fileUrl);
+				}
+				return false;
+			}
+			final long total = parseTotal(probe.getHeaderField("Content-Range"));
+			String validator = probe.getHeaderField("ETag");
+			if (validator == null) {
+				validator = probe.getHeaderField("Last-Modified");
+			}
+			probe.disconnect();
+			probe = null;
+
+			if (total <= 0) {
+				// Ranges are accepted but the size is unknown, fetch it all at once
+				state.reset();
+				probe = mRequestPolicy.connect(fileUrl, DownloadUtils.FILE_REQUEST);
+				if (probe.getResponseCode() != HttpURLConnection.HTTP_OK) {
+					if (progressListener != null) {
+						progressListener.onError("Invalid http response code:" + probe.getResponseCode(), fileUrl);
+					}
+					return false;
+				}
+				return downloadSingle(probe, fileUrl, localFile, progressListener);
+			}
+			state.reset();
+			state.mTotal = total;
+			state.mValidator = validator;
+			return new Download(fileUrl, localFile, state, checkpointListener, progressListener).run();
+		} catch (IOException e) {
+			Log.e(TAG, "download - " + e);
+			if (progressListener != null) {
+				progressListener.onError("IOException:" + e.getMessage(), fileUrl);
+			}
+			return false;
+		} finally {
+			if (probe != null) {
+				probe.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * @return The total size in a "bytes 0-0/12345" Content-Range, or -1 if it isn't given.
+	 */
+	private static long parseTotal(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+		final int slash = contentRange.lastIndexOf('/');
+		try {
+			return slash < 0 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			// "*" for an unknown size
+			return -1;
+		}
+	}
+
+	/**
+	 * Write the body of connection, a whole file, to localFile.
+	 */
+	private static boolean downloadSingle(final HttpURLConnection connection, String fileUrl, File localFile,
+			OnProgressListener progressListener) throws IOException {
+		final CancellationSignal signal = CancellationSignal.current();
+		final CancellationSignal.OnCancelListener cancelListener = new CancellationSignal.OnCancelListener() {
+
+			@Override
+			public void onCancel() {
+				DownloadUtils.disconnectInBackground(connection);
+			}
+		};
+		if (signal != null) {
+			signal.addOnCancelListener(cancelListener);
+		}
+		InputStream inputStream = null;
+		OutputStream outputStream = null;
+		try {
+			inputStream = new MeteredInputStream(connection.getInputStream(), BandwidthEstimator.getDefault());
+			final int contentLength = connection.getContentLength();
+			if (contentLength > 0) {
+				final ProgressAwareInputStream progressStream =
+						new ProgressAwareInputStream(inputStream, contentLength, 0l, fileUrl);
+				progressStream.setOnProgressListener(progressListener);
+				inputStream = progressStream;
+			}
+			outputStream = new FileOutputStream(localFile);
+			int bytesRead;
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			while ((bytesRead = inputStream.read(buffer)) != -1) {
+				outputStream.write(buffer, 0, bytesRead);
+			}
+			return true;
+		} finally {
+			if (signal != null) {
+				signal.removeOnCancelListener(cancelListener);
+			}
+			if (outputStream != null) {
+				try {
+					outputStream.close();
+				} catch (IOException e) {}
+			}
+			if (inputStream != null) {
+				try {
+					inputStream.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * A byte range of the file, fetched by one worker at a time.
+	 */
+	private static class Segment {
+		// Guarded by the Download lock; end moves down when the segment is split
+		long position;
+		long end;
+		boolean owned;
+		int retries;
+		volatile HttpURLConnection connection;
+		volatile long lastProgress;
+
+		Segment(long start, long end) {
+			this.position = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * State of one segmented download.
+	 */
+	private class Download {
+		private final String mUrl;
+		private final File mFile;
+		private final long mTotal;
+		private final String mValidator;
+		private final ResumeState mState;
+		private final OnCheckpointListener mCheckpointListener;
+		private final OnProgressListener mListener;
+
+		// All guarded by mLock
+		private final Object mLock = new Object();
+		private final List<Segment> mSegments = new ArrayList<Segment>();
+		private int mActiveWorkers;
+		private IOException mError;
+		private boolean mCancelled;
+		private long mDownloaded;
+		private int mLastPercent;
+
+		private FileChannel mChannel;
+
+		Download(String url, File file, ResumeState state, OnCheckpointListener checkpointListener,
+				OnProgressListener listener) {
+			mUrl = url;
+			mFile = file;
+			mTotal = state.mTotal;
+			mValidator = state.mValidator;
+			mState = state;
+			mCheckpointListener = checkpointListener;
+			mListener = listener;
+		}
+
+		boolean run() throws IOException {
+			final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+			final CancellationSignal signal = CancellationSignal.current();
+			final CancellationSignal.OnCancelListener cancelListener = new CancellationSignal.OnCancelListener() {
+
+				@Override
+				public void onCancel() {
+					cancel();
+				}
+			};
+			try {
+				// Allocate the whole file up front, so that segments only ever overwrite
+				file.setLength(mTotal);
+				mChannel = file.getChannel();
+				if (signal != null) {
+					signal.addOnCancelListener(cancelListener);
+				}
+
+				synchronized (mLock) {
+					if (mState.mRanges != null) {
+						// Resume the ranges left, which are split further as workers become free
+						for (int i = 0; i < mState.mRanges.length; i += 2) {
+							mSegments.add(new Segment(mState.mRanges[i], mState.mRanges[i + 1]));
+						}
+						mDownloaded = mTotal - mState.getRemaining();
+						mLastPercent = (int) (mDownloaded * 100 / mTotal);
+					} else {
+						final int count = (int) Math.max(1, Math.min(mSegmentCount, mTotal / MIN_SEGMENT_SIZE));
+						final long size = mTotal / count;
+						for (int i = 0; i < count; i++) {
+							mSegments.add(new Segment(i * size, i == count - 1 ? mTotal : (i + 1) * size));
+						}
+					}
+					for (int i = 0; i < mSegmentCount; i++) {
+						final Segment segment = nextSegmentLocked();
+						if (segment == null) {
+							break;
+						}
+						mActiveWorkers++;
+						sExecutor.execute(new Worker(segment));
+					}
+				}
+				if (!awaitWorkers()) {
+					return false;
+				}
+			} finally {
+				if (signal != null) {
+					signal.removeOnCancelListener(cancelListener);
+				}
+				try {
+					file.close();
+				} catch (IOException e) {}
+			}
+
+			if (mListener != null) {
+				mListener.onCompleted(mUrl);
+			}
+			return true;
+		}
+
+		/**
+		 * Wait for the workers, dropping the connections that stall meanwhile.
+		 *
+		 * @return true if every segment was downloaded
+		 */
+		private boolean awaitWorkers() throws FileChangedException {
+			final List<HttpURLConnection> stalled = new ArrayList<HttpURLConnection>();
+			long lastCheckpoint = SystemClock.uptimeMillis();
+			while (true) {
+				boolean checkpoint = false;
+				synchronized (mLock) {
+					if (mActiveWorkers == 0) {
+						break;
+					}
+					try {
+						mLock.wait(MONITOR_INTERVAL);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						mCancelled = true;
+					}
+					final long now = SystemClock.uptimeMillis();
+					for (Segment segment : mSegments) {
+						final HttpURLConnection connection = segment.connection;
+						if (connection != null && (isStoppedLocked() || now - segment.lastProgress > STALL_TIMEOUT)) {
+							segment.lastProgress = now;
+							stalled.add(connection);
+						}
+					}
+					if (now - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+						lastCheckpoint = now;
+						saveStateLocked();
+						checkpoint = true;
+					}
+				}
+				if (checkpoint && mCheckpointListener != null) {
+					mCheckpointListener.onCheckpoint(mState);
+				}
+				// The blocked read fails, and unless stopped the worker opens its range again
+				for (HttpURLConnection connection : stalled) {
+					connection.disconnect();
+				}
+				stalled.clear();
+			}
+
+			final IOException error;
+			synchronized (mLock) {
+				saveStateLocked();
+				error = mError;
+			}
+			if (mCheckpointListener != null) {
+				mCheckpointListener.onCheckpoint(mState);
+			}
+			synchronized (mLock) {
+				if (mCancelled) {
+					Log.d(TAG, "cancelled - " + mUrl);
+					return false;
+				}
+			}
+			if (error instanceof FileChangedException) {
+				throw (FileChangedException) error;
+			}
+			if (error != null) {
+				Log.e(TAG, "awaitWorkers - " + error);
+				if (mListener != null) {
+					mListener.onError("IOException:" + error.getMessage(), mUrl);
+				}
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Record the ranges left in mState.
+		 */
+		private void saveStateLocked() {
+			int count = 0;
+			for (Segment segment : mSegments) {
+				if (segment.position < segment.end) {
+					count++;
+				}
+			}
+			final long[] ranges = new long[count * 2];
+			int i = 0;
+			for (Segment segment : mSegments) {
+				if (segment.position < segment.end) {
+					ranges[i++] = segment.position;
+					ranges[i++] = segment.end;
+				}
+			}
+			mState.mRanges = ranges;
+		}
+
+		void cancel() {
+			synchronized (mLock) {
+				mCancelled = true;
+				mLock.notifyAll();
+			}
+		}
+
+		/**
+		 * @return A segment for a free worker: one nobody fetches, as left by a resumed download,
+		 *         else half of the largest range left, or null if none is worth splitting
+		 */
+		private Segment nextSegmentLocked() {
+			for (Segment segment : mSegments) {
+				if (!segment.owned && segment.position < segment.end) {
+					segment.owned = true;
+					return segment;
+				}
+			}
+			return splitLocked();
+		}
+
+		private Segment splitLocked() {
+			Segment largest = null;
+			for (Segment segment : mSegments) {
+				if (largest == null || segment.end - segment.position > largest.end - largest.position) {
+					largest = segment;
+				}
+			}
+			if (largest == null || largest.end - largest.position < 2 * MIN_SEGMENT_SIZE) {
+				return null;
+			}
+			final long middle = largest.position + (largest.end - largest.position) / 2;
+			final Segment segment = new Segment(middle, largest.end);
+			segment.owned = true;
+			largest.end = middle;
+			mSegments.add(segment);
+			return segment;
+		}
+
+		private boolean isStoppedLocked() {
+			return mCancelled || mError != null;
+		}
+
+		/**
+		 * Fetch the range of segment, opening it again after a failure, until it is done.
+		 */
+		private void fetch(Segment segment) throws IOException {
+			while (true) {
+				final long from;
+				final long to;
+				synchronized (mLock) {
+					if (isStoppedLocked() || segment.position >= segment.end) {
+						return;
+					}
+					from = segment.position;
+					to = segment.end;
+				}
+				HttpURLConnection connection = null;
+				try {
+					connection = connect(from, to - 1);
+					segment.lastProgress = SystemClock.uptimeMillis();
+					segment.connection = connection;
+					synchronized (mLock) {
+						if (isStoppedLocked()) {
+							return;
+						}
+					}
+					read(segment, connection);
+					synchronized (mLock) {
+						if (segment.position < segment.end && !isStoppedLocked()) {
+							throw new IOException("range ended at " + segment.position + " before " + segment.end);
+						}
+					}
+				} catch (IOException e) {
+					synchronized (mLock) {
+						if (isStoppedLocked()) {
+							return;
+						}
+						if (e instanceof FileChangedException || ++segment.retries > MAX_SEGMENT_RETRIES) {
+							throw e;
+						}
+					}
+					Log.w(TAG, "segment at " + from + " failed, retrying - " + e);
+				} finally {
+					segment.connection = null;
+					if (connection != null) {
+						connection.disconnect();
+					}
+				}
+			}
+		}
+
+		private HttpURLConnection connect(final long from, final long to) throws IOException {
+			final HttpURLConnection connection = mRequestPolicy.connect(mUrl, new RequestPolicy.RequestConfigurator() {
+
+				@Override
+				public void configure(HttpURLConnection connection) throws IOException {
+					DownloadUtils.FILE_REQUEST.configure(connection);
+					connection.setRequestProperty("Range", "bytes=" + from + "-" + to);
+					if (mValidator != null) {
+						connection.setRequestProperty("If-Range", mValidator);
+					}
+				}
+			});
+			final int responseCode = connection.getResponseCode();
+			if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+				connection.disconnect();
+				if (responseCode == HttpURLConnection.HTTP_OK && mValidator != null) {
+					// If-Range didn't match, the whole file is sent instead
+					throw new FileChangedException(mValidator + " changed");
+				}
+				throw new IOException("Invalid http response code:" + responseCode);
+			}
+			return connection;
+		}
+
+		private void read(Segment segment, HttpURLConnection connection) throws IOException {
+			final InputStream in = new MeteredInputStream(connection.getInputStream(), BandwidthEstimator.getDefault());
+			try {
+				final byte[] buffer = new byte[BUFFER_SIZE];
+				int bytesRead;
+				while ((bytesRead = in.read(buffer)) != -1) {
+					final long position;
+					final int count;
+					synchronized (mLock) {
+						if (isStoppedLocked()) {
+							return;
+						}
+						position = segment.position;
+						// The end may have moved down since the request, when the segment was split
+						count = (int) Math.min(bytesRead, segment.end - position);
+					}
+					if (count > 0) {
+						write(buffer, count, position);
+						segment.lastProgress = SystemClock.uptimeMillis();
+						synchronized (mLock) {
+							segment.position += count;
+						}
+						progress(count);
+					}
+					if (count < bytesRead) {
+						return;
+					}
+				}
+			} finally {
+				try {
+					in.close();
+				} catch (IOException e) {}
+			}
+		}
+
+		private void write(byte[] buffer, int count, long position) throws IOException {
+			final ByteBuffer source = ByteBuffer.wrap(buffer, 0, count);
+			while (source.hasRemaining()) {
+				position += mChannel.write(source, position);
+			}
+		}
+
+		private void progress(int count) {
+			final int percent;
+			synchronized (mLock) {
+				mDownloaded += count;
+				percent = (int) (mDownloaded * 100 / mTotal);
+				if (percent <= mLastPercent) {
+					return;
+				}
+				mLastPercent = percent;
+			}
+			if (mListener != null) {
+				mListener.onProgress(percent, mUrl);
+			}
+		}
+
+		private class Worker implements Runnable {
+			private Segment mSegment;
+
+			Worker(Segment segment) {
+				mSegment = segment;
+			}
+
+			@Override
+			public void run() {
+				try {
+					while (mSegment != null) {
+						fetch(mSegment);
+						synchronized (mLock) {
+							mSegment = isStoppedLocked() ? null : nextSegmentLocked();
+						}
+					}
+				} catch (IOException e) {
+					synchronized (mLock) {
+						if (mError == null) {
+							mError = e;
+						}
+					}
+				} finally {
+					synchronized (mLock) {
+						mActiveWorkers--;
+						mLock.notifyAll();
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package com.common.library.download;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * {@link ImageDownloader.StorageMedium} keeping images in a database of their own, as downloaded.
+ *
+ * <p>An image is split into BLOBs of at most {@link #CHUNK_SIZE} bytes, one row each, as a row
+ * bigger than the cursor window couldn't be read back. The size of the database is bounded by a
+ * trigger: an insert that takes the images over the maximum size deletes the least recently read
+ * quarter of them, and deleting an image deletes its chunks, so eviction costs no round trip
+ * from Java.
+ *
+ * All methods include disk access so they should not be executed on the main/UI thread.
+ */
+public class SqliteStorageMedium extends ImageDownloader.StorageMedium {
+	private static final String TAG = SqliteStorageMedium.class.getSimpleName();
+	private static final int DATABASE_VERSION = 1;
+	/** The most bytes of an image stored in one row */
+	public static final int CHUNK_SIZE = 256 * 1024;
+	private static final int COMPRESS_QUALITY = 90;
+
+	private static final String TABLE_IMAGES = "images";
+	private static final String TABLE_CHUNKS = "image_chunks";
+
+	private final DatabaseHelper mHelper;
+
+	private static class DatabaseHelper extends SQLiteOpenHelper {
+		private final long mMaxSize;
+
+		DatabaseHelper(Context context, String name, long maxSize) {
+			super(context, name, null, DATABASE_VERSION);
+			mMaxSize = maxSize;
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + TABLE_IMAGES + " (key TEXT PRIMARY KEY,"
+					+ " size INTEGER NOT NULL, accessed INTEGER NOT NULL)");
+			db.execSQL("CREATE INDEX images_accessed ON " + TABLE_IMAGES + " (accessed)");
+			db.execSQL("CREATE TABLE " + TABLE_CHUNKS + " (key TEXT NOT NULL, seq INTEGER NOT NULL,"
+					+ " data BLOB NOT NULL, PRIMARY KEY (key, seq))");
+			db.execSQL("CREATE TRIGGER images_delete AFTER DELETE ON " + TABLE_IMAGES
+					+ " BEGIN DELETE FROM " + TABLE_CHUNKS + " WHERE key = OLD.key; END");
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		}
+
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			// The maximum size is part of the trigger, which is created again in case it changed
+			db.execSQL("DROP TRIGGER IF EXISTS images_evict");
+			db.execSQL("CREATE TRIGGER images_evict AFTER INSERT ON " + TABLE_IMAGES
+					+ " WHEN (SELECT SUM(size) FROM " + TABLE_IMAGES + ") > " + mMaxSize
+					+ " BEGIN DELETE FROM " + TABLE_IMAGES + " WHERE key IN (SELECT key FROM "
+					+ TABLE_IMAGES + " WHERE key != NEW.key ORDER BY accessed LIMIT (SELECT COUNT(*) FROM "
+					+ TABLE_IMAGES + ") / 4 + 1); END");
+		}
+	}
+
+	/**
+	 * @param context
+	 * @param databaseName name of the database file
+	 * @param maxSize the maximum number of image bytes stored
+	 */
+	public SqliteStorageMedium(Context context, String databaseName, long maxSize) {
+		super(context);
+		mHelper = new DatabaseHelper(context, databaseName, maxSize);
+	}
+
+	@Override
+	public void saveBitmap(String key, Bitmap bitmap) {
+		final byte[] data = encode(bitmap);
+		if (data != null) {
+			saveEncoded(key, data);
+		}
+	}
+
+	@Override
+	public void saveEncoded(String key, byte[] data) {
+		final SQLiteDatabase db = mHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			insert(db, key, data);
+			db.setTransactionSuccessful();
+		} catch (RuntimeException e) {
+			Log.e(TAG, "saveEncoded - " + e);
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Store all entries in one transaction.
+	 */
+	@Override
+	public void saveEncoded(Map<String, byte[]> entries) {
+		final SQLiteDatabase db = mHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+				insert(db, e.getKey(), e.getValue());
+			}
+			db.setTransactionSuccessful();
+		} catch (RuntimeException e) {
+			Log.e(TAG, "saveEncoded - " + e);
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Store all bitmaps in one transaction. They are encoded beforehand, so that the transaction
+	 * doesn't hold the database while they are.
+	 */
+	@Override
+	public void saveBitmaps(Map<String, Bitmap> bitmaps) {
+		final SQLiteDatabase db = mHelper.getWritableDatabase();
+		final byte[][] encoded = new byte[bitmaps.size()][];
+		int i = 0;
+		for (Bitmap bitmap : bitmaps.values()) {
+			encoded[i++] = encode(bitmap);
+		}
+		db.beginTransaction();
+		try {
+			i = 0;
+			for (String key : bitmaps.keySet()) {
+				final byte[] data = encoded[i++];
+				if (data != null) {
+					insert(db, key, data);
+				}
+			}
+			db.setTransactionSuccessful();
+		} catch (RuntimeException e) {
+			Log.e(TAG, "saveBitmaps - " + e);
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	private static byte[] encode(Bitmap bitmap) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (!bitmap.compress(bitmap.hasAlpha() ? CompressFormat.PNG : CompressFormat.JPEG,
+				COMPRESS_QUALITY, out)) {
+			Log.e(TAG, "encode - failed");
+			return null;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Replace the image stored under key with data, within a transaction. The image row is
+	 * inserted last, so that the eviction trigger sees its chunks.
+	 */
+	private static void insert(SQLiteDatabase db, String key, byte[] data) {
+		// REPLACE wouldn't fire the delete trigger, so the old chunks are deleted here
+		db.delete(TABLE_IMAGES, "key = ?", new String[] {key});
+		db.delete(TABLE_CHUNKS, "key = ?", new String[] {key});
+
+		final SQLiteStatement chunk = db.compileStatement(
+				"INSERT INTO " + TABLE_CHUNKS + " (key, seq, data) VALUES (?, ?, ?)");
+		try {
+			final byte[] buffer = new byte[Math.min(CHUNK_SIZE, data.length)];
+			int seq = 0;
+			for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+				final int length = Math.min(CHUNK_SIZE, data.length - offset);
+				final byte[] blob = length == buffer.length ? buffer : new byte[length];
+				System.arraycopy(data, offset, blob, 0, length);
+				chunk.bindString(1, key);
+				chunk.bindLong(2, seq++);
+				chunk.bindBlob(3, blob);
+				chunk.executeInsert();
+			}
+		} finally {
+			chunk.close();
+		}
+
+		final SQLiteStatement image = db.compileStatement(
+				"INSERT INTO " + TABLE_IMAGES + " (key, size, accessed) VALUES (?, ?, ?)");
+		try {
+			image.bindString(1, key);
+			image.bindLong(2, data.length);
+			image.bindLong(3, System.currentTimeMillis());
+			image.executeInsert();
+		} finally {
+			image.close();
+		}
+	}
+
+	@Override
+	public Bitmap getBitmap(String key) {
+		final byte[] data = read(key);
+		return data != null ? BitmapFactory.decodeByteArray(data, 0, data.length) : null;
+	}
+
+	/**
+	 * @return The image stored under key as it was saved, or null if there is none.
+	 */
+	public byte[] read(String key) {
+		final long size = getBitmapSize(key);
+		if (size <= 0) {
+			return null;
+		}
+		final SQLiteDatabase db = mHelper.getWritableDatabase();
+		final byte[] data = new byte[(int) size];
+		int offset = 0;
+		Cursor cursor = null;
+		try {
+			cursor = db.rawQuery("SELECT data FROM " + TABLE_CHUNKS + " WHERE key = ? ORDER BY seq",
+					new String[] {key});
+			while (cursor.moveToNext()) {
+				final byte[] blob = cursor.getBlob(0);
+				if (offset + blob.length > data.length) {
+					// Replaced while being read
+					return null;
+				}
+				System.arraycopy(blob, 0, data, offset, blob.length);
+				offset += blob.length;
+			}
+		} catch (RuntimeException e) {
+			Log.e(TAG, "read - " + e);
+			return null;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		if (offset != data.length) {
+			return null;
+		}
+
+		final SQLiteStatement touch = db.compileStatement(
+				"UPDATE " + TABLE_IMAGES + " SET accessed = ? WHERE key = ?");
+		try {
+			touch.bindLong(1, System.currentTimeMillis());
+			touch.bindString(2, key);
+			touch.execute();
+		} catch (RuntimeException e) {
+			Log.e(TAG, "read - " + e);
+		} finally {
+			touch.close();
+		}
+		return data;
+	}
+
+	@Override
+	public boolean isBitmapExist(String key) {
+		return getBitmapSize(key) > 0;
+	}
+
+	@Override
+	public long getBitmapSize(String key) {
+		Cursor cursor = null;
+		try {
+			cursor = mHelper.getReadableDatabase().rawQuery(
+					"SELECT size FROM " + TABLE_IMAGES + " WHERE key = ?", new String[] {key});
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} catch (RuntimeException e) {
+			Log.e(TAG, "getBitmapSize - " + e);
+			return 0;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+	}
+
+	@Override
+	public boolean deleteBitmap(String key) {
+		try {
+			return mHelper.getWritableDatabase().delete(TABLE_IMAGES, "key = ?", new String[] {key}) > 0;
+		} catch (RuntimeException e) {
+			Log.e(TAG, "deleteBitmap - " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return the number of image bytes stored.
+	 */
+	public long size() {
+		Cursor cursor = null;
+		try {
+			cursor = mHelper.getReadableDatabase().rawQuery(
+					"SELECT SUM(size) FROM " + TABLE_IMAGES, null);
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} catch (RuntimeException e) {
+			Log.e(TAG, "size - " + e);
+			return 0;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+	}
+
+	public void close() {
+		mHelper.close();
+	}
+}
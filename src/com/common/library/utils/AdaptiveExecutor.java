@@ -0,0 +1,280 @@
+package com.common.library.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.common.library.BuildConfig;
+
+/**
+ * A thread pool that sizes itself from how much its tasks block. Every task is timed on both the
+ * wall clock and the thread's CPU clock; a task that spent most of its time waiting for the network
+ * leaves its CPU idle, so a mix of downloads and decodes is best served by
+ * {@code cores * (1 + wait / compute)} threads rather than by a fixed count. While more tasks run
+ * than there are cores, part of their wall time is spent waiting for a core, which isn't counted
+ * as waiting, or CPU-bound tasks would keep the pool large.
+ *
+ * <p>The ratio is tracked per task type, as given to {@link #forType(Object)}, and the pool is
+ * sized for the mix of types waiting in the queue. It is resized at most once per
+ * {@link #RESIZE_INTERVAL_MS}, within the bounds given to the constructor. It only grows while
+ * tasks are waiting in the queue, and with none waiting it shrinks to the threads that are busy,
+ * so an idle app doesn't keep threads around for a burst that is over.
+ */
+public class AdaptiveExecutor implements Executor {
+    private static final String TAG = AdaptiveExecutor.class.getSimpleName();
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /** Minimum time between two resizes */
+    public static final long RESIZE_INTERVAL_MS = 1000;
+    private static final Object DEFAULT_TYPE = "default";
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMinSize;
+    private final int mMaxSize;
+
+    // Tasks running now, to tell waiting for a core from blocking
+    private final AtomicInteger mRunning = new AtomicInteger();
+
+    // Guarded by mStats
+    private final Map<Object, TypeStats> mStats = new HashMap<Object, TypeStats>();
+    private long mLastResize = SystemClock.uptimeMillis();
+    private int mResizeCount;
+    private String mLastDecision = "none";
+
+    // Doubles, so that halving the history doesn't round a rare type's count down to 0
+    private static class TypeStats {
+        double count;
+        double blockedMs;
+        double cpuMs;
+
+        float blockingRatio() {
+            return (float) (blockedMs / Math.max(1, cpuMs));
+        }
+    }
+
+    private class TypedTask implements Runnable {
+        final Runnable mCommand;
+        final Object mType;
+
+        TypedTask(Runnable command, Object type) {
+            mCommand = command;
+            mType = type;
+        }
+
+        @Override
+        public void run() {
+            final int runningAtStart = mRunning.incrementAndGet();
+            final long wallStart = SystemClock.uptimeMillis();
+            final long cpuStart = SystemClock.currentThreadTimeMillis();
+            try {
+                mCommand.run();
+            } finally {
+                final float running = (runningAtStart + mRunning.getAndDecrement()) / 2f;
+                record(mType, SystemClock.uptimeMillis() - wallStart,
+                        SystemClock.currentThreadTimeMillis() - cpuStart, running);
+            }
+        }
+    }
+
+    /**
+     * @param minSize The fewest threads the pool shrinks to, also the initial size
+     * @param maxSize The most threads the pool grows to
+     * @param name Prefix of the thread names
+     */
+    public AdaptiveExecutor(int minSize, int maxSize, final String name) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("bad bounds " + minSize + ".." + maxSize);
+        }
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        // With an unbounded queue the pool never goes above its core size, which is what resize() sets
+        mExecutor = new ThreadPoolExecutor(minSize, maxSize, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, name + " #" + mCount.getAndIncrement());
+                    }
+                });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(command, DEFAULT_TYPE);
+    }
+
+    /**
+     * @param type Tasks of one type are assumed to block alike, e.g. the task class
+     */
+    public void execute(Runnable command, Object type) {
+        mExecutor.execute(new TypedTask(command, type));
+    }
+
+    /**
+     * @return An executor that runs everything given to it through
+     *         {@link #execute(Runnable, Object)} with type.
+     */
+    public Executor forType(final Object type) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                AdaptiveExecutor.this.execute(command, type);
+            }
+        };
+    }
+
+    /**
+     * @param running The number of tasks running alongside this one, on average
+     */
+    private void record(Object type, long wallMs, long cpuMs, float running) {
+        cpuMs = Math.min(cpuMs, wallMs);
+        // With more tasks running than cores, the task only had a core for part of its wall time
+        final double runnableMs = wallMs * Math.min(1f, CPU_COUNT / Math.max(1f, running));
+        synchronized (mStats) {
+            TypeStats stats = mStats.get(type);
+            if (stats == null) {
+                stats = new TypeStats();
+                mStats.put(type, stats);
+            }
+            stats.count++;
+            stats.blockedMs += Math.max(0, runnableMs - cpuMs);
+            stats.cpuMs += cpuMs;
+
+            final long now = SystemClock.uptimeMillis();
+            if (now - mLastResize >= RESIZE_INTERVAL_MS) {
+                mLastResize = now;
+                resizeLocked();
+            }
+        }
+    }
+
+    private void resizeLocked() {
+        final Map<Object, Integer> queued = new HashMap<Object, Integer>();
+        int queuedCount = 0;
+        for (Runnable task : mExecutor.getQueue()) {
+            final Object type = ((TypedTask) task).mType;
+            final Integer count = queued.get(type);
+            queued.put(type, count != null ? count + 1 : 1);
+            queuedCount++;
+        }
+        // The queued tasks run next, so size for their types; when none are queued, or none of
+        // their types ran yet, for the recent mix
+        float ratio = queuedCount > 0 ? blockingRatioLocked(queued) : -1;
+        if (ratio < 0) {
+            ratio = blockingRatioLocked(null);
+        }
+        for (TypeStats stats : mStats.values()) {
+            // Halve the history so that the ratio follows the current tasks
+            stats.count /= 2;
+            stats.blockedMs /= 2;
+            stats.cpuMs /= 2;
+        }
+        if (ratio < 0) {
+            return;
+        }
+        final int current = mExecutor.getCorePoolSize();
+        int target = Math.round(CPU_COUNT * (1 + ratio));
+        if (queuedCount == 0) {
+            // Nothing is waiting for a thread: more wouldn't help, and the idle ones can go
+            target = Math.min(target, mExecutor.getActiveCount());
+        }
+        target = Math.max(mMinSize, Math.min(mMaxSize, target));
+        if (target == current) {
+            return;
+        }
+        mExecutor.setCorePoolSize(target);
+        mResizeCount++;
+        mLastDecision = current + " -> " + target + " threads, wait/compute " + ratio + ", "
+                + queuedCount + " queued";
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "resize - " + mLastDecision);
+        }
+    }
+
+    /**
+     * @param weights Tasks of each type to size for, or null for the types' recent task counts
+     * @return Time the tasks would wait over time they would compute, or -1 if none of the types
+     *         ran yet.
+     */
+    private float blockingRatioLocked(Map<Object, Integer> weights) {
+        double blockedMs = 0;
+        double cpuMs = 0;
+        for (Map.Entry<Object, TypeStats> e : mStats.entrySet()) {
+            final TypeStats stats = e.getValue();
+            if (stats.count <= 0) {
+                continue;
+            }
+            final double weight;
+            if (weights == null) {
+                weight = stats.count;
+            } else {
+                final Integer count = weights.get(e.getKey());
+                if (count == null) {
+                    continue;
+                }
+                weight = count;
+            }
+            blockedMs += weight * stats.blockedMs / stats.count;
+            cpuMs += weight * stats.cpuMs / stats.count;
+        }
+        if (blockedMs + cpuMs <= 0) {
+            return -1;
+        }
+        return (float) (blockedMs / Math.max(1, cpuMs));
+    }
+
+    /**
+     * @return The number of threads the pool is sized for now.
+     */
+    public int getPoolSize() {
+        return mExecutor.getCorePoolSize();
+    }
+
+    /**
+     * @return Time spent waiting over time spent computing for tasks of type, weighted towards the
+     *         recent ones, or 0 if none ran.
+     */
+    public float getBlockingRatio(Object type) {
+        synchronized (mStats) {
+            final TypeStats stats = mStats.get(type);
+            return stats != null ? stats.blockingRatio() : 0;
+        }
+    }
+
+    public int getResizeCount() {
+        synchronized (mStats) {
+            return mResizeCount;
+        }
+    }
+
+    /**
+     * @return A description of the last resize: old and new size, and what it was based on.
+     */
+    public String getLastDecision() {
+        synchronized (mStats) {
+            return mLastDecision;
+        }
+    }
+
+    public void logStats() {
+        if (BuildConfig.DEBUG) {
+            synchronized (mStats) {
+                for (Map.Entry<Object, TypeStats> e : mStats.entrySet()) {
+                    Log.d(TAG, "logStats - " + e.getKey() + ": wait/compute "
+                            + e.getValue().blockingRatio());
+                }
+                Log.d(TAG, "logStats - " + getPoolSize() + " threads, " + mResizeCount
+                        + " resizes, last " + mLastDecision);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.common.library.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tells the blocking work of a task that the task was cancelled, so that it can stop at once rather
+ * than when its next blocking call returns: a listener can disconnect an HTTP connection or call
+ * {@link android.graphics.BitmapFactory.Options#requestCancelDecode()}, neither of which a thread
+ * interrupt reaches.
+ *
+ * <p>Like android.os.CancellationSignal, which needs Jelly Bean, but with any number of listeners.
+ * {@link ThreadWork} binds its signal to the worker thread for the length of
+ * {@link ThreadWork#doInBackground}, so code that doesn't know about the task can find it with
+ * {@link #current()}.
+ */
+public class CancellationSignal {
+    private static final ThreadLocal<CancellationSignal> sCurrent = new ThreadLocal<CancellationSignal>();
+
+    private final List<OnCancelListener> mListeners = new ArrayList<OnCancelListener>(2);
+    private boolean mCanceled;
+
+    public interface OnCancelListener {
+        /**
+         * Called once, on the thread that cancelled the task.
+         */
+        void onCancel();
+    }
+
+    /**
+     * @return The signal of the task running on this thread, or null if there is none.
+     */
+    public static CancellationSignal current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Make signal the one {@link #current()} returns on this thread.
+     *
+     * @return The signal bound before, to restore when the work is done
+     */
+    public static CancellationSignal bind(CancellationSignal signal) {
+        final CancellationSignal previous = sCurrent.get();
+        sCurrent.set(signal);
+        return previous;
+    }
+
+    public synchronized boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Cancel and run the listeners. Does nothing if already cancelled.
+     */
+    public void cancel() {
+        final OnCancelListener[] listeners;
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+            mCanceled = true;
+            listeners = mListeners.toArray(new OnCancelListener[mListeners.size()]);
+            mListeners.clear();
+        }
+        for (OnCancelListener listener : listeners) {
+            listener.onCancel();
+        }
+    }
+
+    /**
+     * Add a listener, which runs at once if the signal is already cancelled. Remove it when the
+     * operation it stops has finished.
+     */
+    public void addOnCancelListener(OnCancelListener listener) {
+        synchronized (this) {
+            if (!mCanceled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onCancel();
+    }
+
+    public synchronized void removeOnCancelListener(OnCancelListener listener) {
+        mListeners.remove(listener);
+    }
+}
@@ -27,6 +27,10 @@ public class DeviceUtils {
         return Build.VERSION.SDK_INT >= VERSION_CODES.GINGERBREAD;
     }
 
+    public static boolean hasGingerbreadMR1() {
+        return Build.VERSION.SDK_INT >= VERSION_CODES.GINGERBREAD_MR1;
+    }
+
     public static boolean hasHoneycomb() {
         return Build.VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB;
     }
@@ -0,0 +1,360 @@
+package com.common.library.utils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.common.library.BuildConfig;
+
+/**
+ * Registry of the executors of {@link ThreadWork} and the bitmap AsyncTask, recording for every
+ * task class how long its tasks waited in the queue and ran, how many were rejected or cancelled,
+ * and which ran for longer than {@link #setLongTaskThreshold(long) the long task threshold}.
+ *
+ * <p>Executors are registered with {@link #instrument(String, Executor)}, which returns a wrapper.
+ * Recording is on in debug builds and can be switched with {@link #setEnabled(boolean)}; while it
+ * is off the wrappers hand tasks straight through.
+ *
+ * <p>Times go into power of two histograms, bucket i counting the tasks that took less than 2^i
+ * milliseconds. {@link #dump()} returns a snapshot as text, {@link #dumpToFile(File)} writes it
+ * out for offline analysis.
+ */
+public class ExecutorMetrics {
+    private static final String TAG = ExecutorMetrics.class.getSimpleName();
+
+    private static final int BUCKET_COUNT = 18; // up to 2^17ms, about two minutes
+
+    private static volatile boolean sEnabled = BuildConfig.DEBUG;
+    private static volatile long sLongTaskThresholdMs = 2000;
+
+    // Guarded by itself
+    private static final Map<String, InstrumentedExecutor> sExecutors =
+            new LinkedHashMap<String, InstrumentedExecutor>();
+
+    // Class of the task an AsyncTask or ThreadWork is submitting on this thread
+    private static final ThreadLocal<Class<?>> sSubmitting = new ThreadLocal<Class<?>>();
+
+    private ExecutorMetrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * @param thresholdMs Tasks running longer than this are counted and listed by {@link #dump()},
+     *            and logged in debug builds
+     */
+    public static void setLongTaskThreshold(long thresholdMs) {
+        sLongTaskThresholdMs = thresholdMs;
+    }
+
+    /**
+     * Wrap executor so that the tasks run on it are recorded under name. If executor is a
+     * ThreadPoolExecutor, its rejection handler is wrapped too, so that tasks dropped by a discard
+     * policy are counted as well.
+     */
+    public static Executor instrument(String name, Executor executor) {
+        final InstrumentedExecutor instrumented = new InstrumentedExecutor(name, executor);
+        if (executor instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            pool.setRejectedExecutionHandler(
+                    new CountingRejectionHandler(instrumented, pool.getRejectedExecutionHandler()));
+        }
+        synchronized (sExecutors) {
+            sExecutors.put(name, instrumented);
+        }
+        return instrumented;
+    }
+
+    /**
+     * Attribute the tasks executed on this thread to taskClass until {@link #endSubmit(Class)}.
+     * Used around {@code executor.execute()} by task classes whose runnable, e.g. a FutureTask,
+     * doesn't tell what it runs.
+     *
+     * @return The class to pass to endSubmit
+     */
+    public static Class<?> beginSubmit(Class<?> taskClass) {
+        final Class<?> previous = sSubmitting.get();
+        sSubmitting.set(taskClass);
+        return previous;
+    }
+
+    public static void endSubmit(Class<?> previous) {
+        sSubmitting.set(previous);
+    }
+
+    /**
+     * @return A snapshot of all executors and task classes as text.
+     */
+    public static String dump() {
+        final List<InstrumentedExecutor> executors;
+        synchronized (sExecutors) {
+            executors = new ArrayList<InstrumentedExecutor>(sExecutors.values());
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append("uptime ").append(SystemClock.uptimeMillis()).append("ms\n");
+        for (InstrumentedExecutor executor : executors) {
+            executor.dump(sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write {@link #dump()} to file. This includes disk access so it should not be executed on the
+     * main/UI thread.
+     */
+    public static boolean dumpToFile(File file) {
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file);
+            writer.write(dump());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "dumpToFile - " + e);
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public static void reset() {
+        synchronized (sExecutors) {
+            for (InstrumentedExecutor executor : sExecutors.values()) {
+                executor.reset();
+            }
+        }
+    }
+
+    private static int bucket(long ms) {
+        int bucket = 0;
+        while (bucket < BUCKET_COUNT - 1 && ms >= (1L << bucket)) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private static class TaskStats {
+        final int[] waitHistogram = new int[BUCKET_COUNT];
+        final int[] runHistogram = new int[BUCKET_COUNT];
+        long count;
+        long waitTotal;
+        long runTotal;
+        long runMax;
+        int rejected;
+        int cancelled;
+        int longRunning;
+
+        void dump(StringBuilder sb) {
+            sb.append(" count=").append(count)
+                    .append(" wait avg=").append(count == 0 ? 0 : waitTotal / count).append("ms")
+                    .append(" run avg=").append(count == 0 ? 0 : runTotal / count).append("ms")
+                    .append(" max=").append(runMax).append("ms")
+                    .append(" rejected=").append(rejected)
+                    .append(" cancelled=").append(cancelled)
+                    .append(" long=").append(longRunning).append('\n');
+            appendHistogram(sb, "    wait", waitHistogram);
+            appendHistogram(sb, "    run ", runHistogram);
+        }
+
+        private static void appendHistogram(StringBuilder sb, String label, int[] histogram) {
+            sb.append(label);
+            for (int count : histogram) {
+                sb.append(' ').append(count);
+            }
+            sb.append('\n');
+        }
+    }
+
+    private static class InstrumentedExecutor implements Executor {
+        final String mName;
+        final Executor mExecutor;
+
+        // Guarded by this
+        final Map<String, TaskStats> mStats = new HashMap<String, TaskStats>();
+        final HashSet<Task> mRunning = new HashSet<Task>();
+        int mQueued;
+
+        InstrumentedExecutor(String name, Executor executor) {
+            mName = name;
+            mExecutor = executor;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (!sEnabled) {
+                mExecutor.execute(command);
+                return;
+            }
+            final Class<?> submitting = sSubmitting.get();
+            final Task task = new Task(this, command,
+                    (submitting != null ? submitting : command.getClass()).getName());
+            synchronized (this) {
+                mQueued++;
+            }
+            try {
+                mExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    mQueued--;
+                    stats(task.mTaskClass).rejected++;
+                }
+                throw e;
+            }
+        }
+
+        TaskStats stats(String taskClass) {
+            TaskStats stats = mStats.get(taskClass);
+            if (stats == null) {
+                stats = new TaskStats();
+                mStats.put(taskClass, stats);
+            }
+            return stats;
+        }
+
+        synchronized void started(Task task) {
+            mQueued--;
+            mRunning.add(task);
+        }
+
+        void finished(Task task, long waitMs, long runMs) {
+            final boolean cancelled = task.mCommand instanceof Future
+                    && ((Future<?>) task.mCommand).isCancelled();
+            final boolean longRunning = runMs >= sLongTaskThresholdMs;
+            synchronized (this) {
+                mRunning.remove(task);
+                final TaskStats stats = stats(task.mTaskClass);
+                stats.count++;
+                stats.waitTotal += waitMs;
+                stats.runTotal += runMs;
+                stats.runMax = Math.max(stats.runMax, runMs);
+                stats.waitHistogram[bucket(waitMs)]++;
+                stats.runHistogram[bucket(runMs)]++;
+                if (cancelled) {
+                    stats.cancelled++;
+                }
+                if (longRunning) {
+                    stats.longRunning++;
+                }
+            }
+            if (longRunning && BuildConfig.DEBUG) {
+                Log.w(TAG, mName + " - " + task.mTaskClass + " ran for " + runMs + "ms");
+            }
+        }
+
+        // Only called for ThreadPoolExecutors, whose queue size is taken from the pool rather than mQueued
+        synchronized void rejected(Runnable runnable) {
+            if (runnable instanceof Task) {
+                stats(((Task) runnable).mTaskClass).rejected++;
+            }
+        }
+
+        synchronized void reset() {
+            mStats.clear();
+        }
+
+        synchronized void dump(StringBuilder sb) {
+            sb.append(mName).append(": queued=");
+            if (mExecutor instanceof ThreadPoolExecutor) {
+                final ThreadPoolExecutor pool = (ThreadPoolExecutor) mExecutor;
+                sb.append(pool.getQueue().size())
+                        .append(" active=").append(pool.getActiveCount())
+                        .append(" threads=").append(pool.getPoolSize());
+            } else {
+                sb.append(mQueued).append(" active=").append(mRunning.size());
+            }
+            sb.append('\n');
+            final long now = SystemClock.uptimeMillis();
+            for (Task task : mRunning) {
+                final long runMs = now - task.mStartTime;
+                if (runMs >= sLongTaskThresholdMs) {
+                    sb.append("  running for ").append(runMs).append("ms: ")
+                            .append(task.mTaskClass).append('\n');
+                }
+            }
+            for (Map.Entry<String, TaskStats> e : mStats.entrySet()) {
+                sb.append("  ").append(e.getKey());
+                e.getValue().dump(sb);
+            }
+        }
+    }
+
+    private static class Task implements Runnable {
+        final InstrumentedExecutor mExecutor;
+        final Runnable mCommand;
+        final String mTaskClass;
+        final long mSubmitTime = SystemClock.uptimeMillis();
+        volatile long mStartTime;
+
+        Task(InstrumentedExecutor executor, Runnable command, String taskClass) {
+            mExecutor = executor;
+            mCommand = command;
+            mTaskClass = taskClass;
+        }
+
+        @Override
+        public void run() {
+            mStartTime = SystemClock.uptimeMillis();
+            mExecutor.started(this);
+            try {
+                mCommand.run();
+            } finally {
+                final long end = SystemClock.uptimeMillis();
+                mExecutor.finished(this, mStartTime - mSubmitTime, end - mStartTime);
+            }
+        }
+    }
+
+    /**
+     * Counts the tasks a ThreadPoolExecutor rejects or discards, then applies its original policy.
+     */
+    private static class CountingRejectionHandler implements RejectedExecutionHandler {
+        private final InstrumentedExecutor mInstrumented;
+        private final RejectedExecutionHandler mHandler;
+
+        CountingRejectionHandler(InstrumentedExecutor instrumented, RejectedExecutionHandler handler) {
+            mInstrumented = instrumented;
+            mHandler = handler;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (mHandler instanceof ThreadPoolExecutor.DiscardOldestPolicy) {
+                // The task dropped is the one at the head of the queue, not r
+                final Runnable oldest = executor.getQueue().peek();
+                if (oldest != null) {
+                    mInstrumented.rejected(oldest);
+                }
+                mHandler.rejectedExecution(r, executor);
+            } else {
+                // AbortPolicy throws, and InstrumentedExecutor.execute() counts the exception
+                if (!(mHandler instanceof ThreadPoolExecutor.AbortPolicy)) {
+                    mInstrumented.rejected(r);
+                }
+                mHandler.rejectedExecution(r, executor);
+            }
+        }
+    }
+}
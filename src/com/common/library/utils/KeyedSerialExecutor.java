@@ -0,0 +1,128 @@
+package com.common.library.utils;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks that share a key one at a time, in the order they were submitted, while tasks with
+ * different keys run in parallel on a shared executor. Use it where only work on the same resource
+ * (a URL, a file, a database row) needs ordering, instead of a process wide serial executor.
+ *
+ * <p>A key only has state while it has tasks queued or running; the queue is dropped as soon as
+ * its last task finishes.
+ *
+ * <pre>
+ * executor.forKey(url).execute(runnable);
+ * </pre>
+ */
+public class KeyedSerialExecutor {
+    private final Executor mExecutor;
+    // Queues of the keys with a task running, guarded by itself
+    private final Map<Object, KeyQueue> mQueues = new HashMap<Object, KeyQueue>();
+
+    /**
+     * @param executor The executor the tasks run on. Each task is handed to it separately, so a
+     *            busy key doesn't keep a thread to itself.
+     */
+    public KeyedSerialExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor == null");
+        }
+        mExecutor = executor;
+    }
+
+    /**
+     * Run command after all tasks submitted earlier with an equal key.
+     *
+     * @param key Compared with {@link Object#equals(Object)}, not null
+     * @throws RejectedExecutionException if the underlying executor rejects the task
+     */
+    public void execute(Object key, Runnable command) {
+        if (key == null || command == null) {
+            throw new NullPointerException();
+        }
+        final KeyQueue queue;
+        synchronized (mQueues) {
+            final KeyQueue existing = mQueues.get(key);
+            if (existing != null) {
+                existing.mTasks.add(command);
+                return;
+            }
+            queue = new KeyQueue(key, command);
+            mQueues.put(key, queue);
+        }
+        schedule(queue);
+    }
+
+    /**
+     * @return An executor that runs everything given to it through {@link #execute(Object, Runnable)}
+     *         with key.
+     */
+    public Executor forKey(final Object key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                KeyedSerialExecutor.this.execute(key, command);
+            }
+        };
+    }
+
+    /**
+     * @return The number of keys with tasks queued or running.
+     */
+    public int getActiveKeyCount() {
+        synchronized (mQueues) {
+            return mQueues.size();
+        }
+    }
+
+    private void schedule(KeyQueue queue) {
+        try {
+            mExecutor.execute(queue);
+        } catch (RejectedExecutionException e) {
+            // Drop the key's queue so that the next task for it starts over
+            synchronized (mQueues) {
+                mQueues.remove(queue.mKey);
+            }
+            throw e;
+        }
+    }
+
+    private class KeyQueue implements Runnable {
+        final Object mKey;
+        final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+        Runnable mActive;
+
+        KeyQueue(Object key, Runnable first) {
+            mKey = key;
+            mActive = first;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mActive.run();
+            } finally {
+                scheduleNext();
+            }
+        }
+
+        private void scheduleNext() {
+            synchronized (mQueues) {
+                if (mTasks.isEmpty()) {
+                    mActive = null;
+                    mQueues.remove(mKey);
+                    return;
+                }
+                mActive = mTasks.removeFirst();
+            }
+            schedule(this);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.common.library.utils;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.common.library.BuildConfig;
+
+/**
+ * Delivers callbacks from background threads to the main thread in one batch per frame, instead of
+ * one message each. Used by {@link ThreadWork} and the bitmap AsyncTask for results and progress
+ * updates, so that hundreds of tasks finishing during a fling don't each wake the main looper.
+ *
+ * <ul>
+ * <li>Batches run on a Choreographer frame callback on Jelly Bean and later, and on a 16ms handler
+ * tick before.</li>
+ * <li>Callbacks posted with {@link #postLatest(Object, Runnable)} replace a pending callback of
+ * the same token, e.g. only the latest progress of a task is delivered. The replacement keeps the
+ * queue position of the original, so a task's progress still comes before its result.</li>
+ * <li>A batch stops once it has run for the frame budget; what is left runs on the next frame.
+ * At least one callback runs per frame whatever the budget.</li>
+ * </ul>
+ */
+public class MainThreadCoalescer {
+    private static final String TAG = MainThreadCoalescer.class.getSimpleName();
+
+    private static final long FRAME_INTERVAL_MS = 16;
+    private static final long DEFAULT_FRAME_BUDGET_MS = 4;
+
+    private static MainThreadCoalescer sDefault;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final FrameScheduler mScheduler;
+
+    // Pending callbacks in posting order, and the ones posted with a token by token, guarded by mQueue
+    private final LinkedList<Entry> mQueue = new LinkedList<Entry>();
+    private final Map<Object, Entry> mLatest = new HashMap<Object, Entry>();
+    private boolean mFrameScheduled;
+
+    private volatile long mFrameBudgetMs = DEFAULT_FRAME_BUDGET_MS;
+
+    private static class Entry {
+        final Object token;
+        Runnable callback;
+
+        Entry(Object token, Runnable callback) {
+            this.token = token;
+            this.callback = callback;
+        }
+    }
+
+    public static synchronized MainThreadCoalescer getDefault() {
+        if (sDefault == null) {
+            sDefault = new MainThreadCoalescer();
+        }
+        return sDefault;
+    }
+
+    public MainThreadCoalescer() {
+        mScheduler = DeviceUtils.hasJellyBean() ? new ChoreographerScheduler() : new HandlerScheduler();
+    }
+
+    /**
+     * @param budgetMs How long the callbacks of one frame may run before the rest waits for the
+     *            next frame
+     */
+    public void setFrameBudget(long budgetMs) {
+        mFrameBudgetMs = budgetMs;
+    }
+
+    /**
+     * Run callback on the main thread with the next batch.
+     */
+    public void post(Runnable callback) {
+        synchronized (mQueue) {
+            mQueue.add(new Entry(null, callback));
+            scheduleFrameLocked();
+        }
+    }
+
+    /**
+     * Run callback on the main thread with the next batch, in place of the callback still pending
+     * for token if there is one.
+     */
+    public void postLatest(Object token, Runnable callback) {
+        synchronized (mQueue) {
+            final Entry pending = mLatest.get(token);
+            if (pending != null) {
+                pending.callback = callback;
+                return;
+            }
+            final Entry entry = new Entry(token, callback);
+            mLatest.put(token, entry);
+            mQueue.add(entry);
+            scheduleFrameLocked();
+        }
+    }
+
+    private void scheduleFrameLocked() {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            mScheduler.scheduleFrame();
+        }
+    }
+
+    private void doFrame() {
+        final long start = SystemClock.uptimeMillis();
+        final long budget = mFrameBudgetMs;
+        int count = 0;
+        while (true) {
+            final Entry entry;
+            synchronized (mQueue) {
+                if (mQueue.isEmpty()) {
+                    mFrameScheduled = false;
+                    break;
+                }
+                if (count > 0 && SystemClock.uptimeMillis() - start >= budget) {
+                    // Over budget, leave mFrameScheduled set
+                    mScheduler.scheduleFrame();
+                    break;
+                }
+                entry = mQueue.removeFirst();
+                if (entry.token != null) {
+                    mLatest.remove(entry.token);
+                }
+            }
+            boolean completed = false;
+            try {
+                entry.callback.run();
+                completed = true;
+            } finally {
+                count++;
+                if (!completed) {
+                    // Don't strand the rest of the queue behind a callback that threw
+                    synchronized (mQueue) {
+                        if (mQueue.isEmpty()) {
+                            mFrameScheduled = false;
+                        } else {
+                            mScheduler.scheduleFrame();
+                        }
+                    }
+                }
+            }
+        }
+        if (BuildConfig.DEBUG && count > 1) {
+            Log.d(TAG, "doFrame - " + count + " callbacks in "
+                    + (SystemClock.uptimeMillis() - start) + "ms");
+        }
+    }
+
+    private interface FrameScheduler {
+        void scheduleFrame();
+    }
+
+    private class HandlerScheduler implements FrameScheduler, Runnable {
+        @Override
+        public void scheduleFrame() {
+            // Line the ticks up on the uptime clock, like frames
+            final long now = SystemClock.uptimeMillis();
+            mHandler.postDelayed(this, FRAME_INTERVAL_MS - now % FRAME_INTERVAL_MS);
+        }
+
+        @Override
+        public void run() {
+            doFrame();
+        }
+    }
+
+    // Only loaded on Jelly Bean and later
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class ChoreographerScheduler implements FrameScheduler, Runnable,
+            Choreographer.FrameCallback {
+        @Override
+        public void scheduleFrame() {
+            // Choreographer.getInstance() is per looper, so post to the main thread first
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                mHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            MainThreadCoalescer.this.doFrame();
+        }
+    }
+}
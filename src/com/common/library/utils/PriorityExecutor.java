@@ -0,0 +1,335 @@
+package com.common.library.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.common.library.BuildConfig;
+
+/**
+ * A fixed pool of threads running tasks by priority class, first in first out within a class, with
+ * an optional deadline per task and a bounded queue.
+ *
+ * <ul>
+ * <li>A task still queued when its deadline passes is dropped instead of run.</li>
+ * <li>When the queue is full, the {@link Backpressure} policy decides what happens to a new task;
+ * it is never answered with a RejectedExecutionException.</li>
+ * <li>A dropped task that is a {@link Future}, like the tasks {@link ThreadWork} and AsyncTask
+ * submit, is cancelled, so its onCancelled callback still runs.</li>
+ * </ul>
+ *
+ * <pre>
+ * executor.forPriority(PriorityExecutor.PRIORITY_USER, 2000).execute(runnable);
+ * </pre>
+ */
+public class PriorityExecutor implements Executor {
+    private static final String TAG = PriorityExecutor.class.getSimpleName();
+
+    /** For what the user is waiting for right now, e.g. the images on screen */
+    public static final int PRIORITY_IMMEDIATE = 0;
+    /** For work started by the user, the default */
+    public static final int PRIORITY_USER = 1;
+    /** For prefetching, syncs and other work nobody is waiting for */
+    public static final int PRIORITY_BACKGROUND = 2;
+    private static final int PRIORITY_COUNT = 3;
+
+    /** What to do with a task submitted while the queue is full */
+    public enum Backpressure {
+        /** Run the task on the submitting thread. Don't use it where tasks are executed from the main thread. */
+        CALLER_RUNS,
+        /**
+         * Drop the oldest task of the lowest priority queued, or the new task if its priority is
+         * lower than that of all the queued ones.
+         */
+        DISCARD_OLDEST,
+        /** Wait for room up to the block timeout, then fall back to {@link #DISCARD_OLDEST} */
+        BLOCK,
+    }
+
+    private final int mPoolSize;
+    private final int mCapacity;
+    private final Backpressure mBackpressure;
+    private final long mBlockTimeoutMs;
+    private final String mName;
+
+    // Queued tasks per priority class, all guarded by mLock
+    private final Object mLock = new Object();
+    @SuppressWarnings("unchecked")
+    private final LinkedList<Job>[] mQueues = new LinkedList[PRIORITY_COUNT];
+    private int mQueuedCount;
+    private boolean mStarted;
+
+    // Stats per priority class, guarded by mLock
+    private final long[] mWaitTotal = new long[PRIORITY_COUNT];
+    private final long[] mWaitMax = new long[PRIORITY_COUNT];
+    private final int[] mRunCount = new int[PRIORITY_COUNT];
+    private final int[] mExpiredCount = new int[PRIORITY_COUNT];
+    private final int[] mDiscardedCount = new int[PRIORITY_COUNT];
+
+    private static class Job {
+        final Runnable runnable;
+        final int priority;
+        final long enqueueTime;
+        // uptimeMillis after which the job is dropped, 0 for none
+        final long deadline;
+
+        Job(Runnable runnable, int priority, long enqueueTime, long deadline) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.enqueueTime = enqueueTime;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * @param poolSize The number of threads, started with the first task
+     * @param capacity The maximum number of tasks queued
+     * @param backpressure What to do when a task comes in while the queue is full
+     * @param blockTimeoutMs How long {@link Backpressure#BLOCK} waits for room
+     * @param name Prefix of the thread names
+     */
+    public PriorityExecutor(int poolSize, int capacity, Backpressure backpressure,
+            long blockTimeoutMs, String name) {
+        if (poolSize <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("poolSize and capacity must be positive");
+        }
+        mPoolSize = poolSize;
+        mCapacity = capacity;
+        mBackpressure = backpressure;
+        mBlockTimeoutMs = blockTimeoutMs;
+        mName = name;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues[i] = new LinkedList<Job>();
+        }
+    }
+
+    /**
+     * Run command with {@link #PRIORITY_USER} and no deadline.
+     */
+    @Override
+    public void execute(Runnable command) {
+        execute(command, PRIORITY_USER, 0);
+    }
+
+    /**
+     * @param priority One of the PRIORITY_ constants
+     * @param timeoutMs Drop the task if it hasn't started this many milliseconds from now, 0 to
+     *            wait as long as it takes
+     */
+    public void execute(Runnable command, int priority, long timeoutMs) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("priority " + priority);
+        }
+        ensureStarted();
+        final long now = SystemClock.uptimeMillis();
+        final Job job = new Job(command, priority, now, timeoutMs > 0 ? now + timeoutMs : 0);
+
+        Job discarded = null;
+        boolean runHere = false;
+        synchronized (mLock) {
+            if (mQueuedCount >= mCapacity && mBackpressure == Backpressure.BLOCK) {
+                final long end = now + mBlockTimeoutMs;
+                long remaining = mBlockTimeoutMs;
+                try {
+                    while (mQueuedCount >= mCapacity && remaining > 0) {
+                        mLock.wait(remaining);
+                        remaining = end - SystemClock.uptimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (mQueuedCount < mCapacity) {
+                enqueueLocked(job);
+            } else if (mBackpressure == Backpressure.CALLER_RUNS) {
+                runHere = true;
+            } else {
+                discarded = discardLowestLocked(job);
+            }
+        }
+
+        if (runHere) {
+            command.run();
+        } else if (discarded != null) {
+            drop(discarded);
+        }
+    }
+
+    /**
+     * @return An executor that runs everything given to it through
+     *         {@link #execute(Runnable, int, long)} with priority and timeoutMs.
+     */
+    public Executor forPriority(final int priority, final long timeoutMs) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                PriorityExecutor.this.execute(command, priority, timeoutMs);
+            }
+        };
+    }
+
+    private void enqueueLocked(Job job) {
+        mQueues[job.priority].addLast(job);
+        mQueuedCount++;
+        // Submitters blocked on a full queue wait on mLock too
+        mLock.notifyAll();
+    }
+
+    /**
+     * Make room for job by dropping the oldest task of the lowest priority.
+     *
+     * @return The job dropped, possibly job itself
+     */
+    private Job discardLowestLocked(Job job) {
+        for (int priority = PRIORITY_COUNT - 1; priority >= 0; priority--) {
+            if (priority < job.priority) {
+                // Everything queued ranks above the new task
+                break;
+            }
+            final LinkedList<Job> queue = mQueues[priority];
+            if (!queue.isEmpty()) {
+                final Job oldest = queue.removeFirst();
+                mQueuedCount--;
+                mDiscardedCount[priority]++;
+                enqueueLocked(job);
+                return oldest;
+            }
+        }
+        mDiscardedCount[job.priority]++;
+        return job;
+    }
+
+    private void drop(Job job) {
+        if (job.runnable instanceof Future) {
+            ((Future<?>) job.runnable).cancel(false);
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "drop - priority " + job.priority + " task after "
+                    + (SystemClock.uptimeMillis() - job.enqueueTime) + "ms");
+        }
+    }
+
+    private Runnable take() throws InterruptedException {
+        final List<Job> expired = new ArrayList<Job>(0);
+        try {
+            synchronized (mLock) {
+                while (true) {
+                    final long now = SystemClock.uptimeMillis();
+                    for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+                        final LinkedList<Job> queue = mQueues[priority];
+                        while (!queue.isEmpty()) {
+                            final Job job = queue.removeFirst();
+                            mQueuedCount--;
+                            mLock.notifyAll();
+                            if (job.deadline != 0 && now > job.deadline) {
+                                mExpiredCount[priority]++;
+                                expired.add(job);
+                                continue;
+                            }
+                            final long wait = now - job.enqueueTime;
+                            mWaitTotal[priority] += wait;
+                            mWaitMax[priority] = Math.max(mWaitMax[priority], wait);
+                            mRunCount[priority]++;
+                            return job.runnable;
+                        }
+                    }
+                    mLock.wait();
+                }
+            }
+        } finally {
+            for (Job job : expired) {
+                drop(job);
+            }
+        }
+    }
+
+    private void ensureStarted() {
+        synchronized (mLock) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+        }
+        for (int i = 0; i < mPoolSize; i++) {
+            new Thread(mName + " #" + (i + 1)) {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            take().run();
+                        } catch (InterruptedException e) {
+                            // Only the task being run is meant to see an interrupt
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, getName() + " - " + e);
+                        }
+                        Thread.interrupted();
+                    }
+                }
+            }.start();
+        }
+    }
+
+    /**
+     * @return The number of tasks waiting for a thread.
+     */
+    public int getQueuedCount() {
+        synchronized (mLock) {
+            return mQueuedCount;
+        }
+    }
+
+    /**
+     * @return The average time the tasks of a priority class waited in the queue before they
+     *         started, in milliseconds.
+     */
+    public long getAverageWaitMillis(int priority) {
+        synchronized (mLock) {
+            return mRunCount[priority] == 0 ? 0 : mWaitTotal[priority] / mRunCount[priority];
+        }
+    }
+
+    public long getMaxWaitMillis(int priority) {
+        synchronized (mLock) {
+            return mWaitMax[priority];
+        }
+    }
+
+    /**
+     * @return The number of tasks of a priority class dropped because their deadline passed.
+     */
+    public int getExpiredCount(int priority) {
+        synchronized (mLock) {
+            return mExpiredCount[priority];
+        }
+    }
+
+    /**
+     * @return The number of tasks of a priority class dropped because the queue was full.
+     */
+    public int getDiscardedCount(int priority) {
+        synchronized (mLock) {
+            return mDiscardedCount[priority];
+        }
+    }
+
+    public void logStats() {
+        if (BuildConfig.DEBUG) {
+            synchronized (mLock) {
+                for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+                    Log.d(TAG, mName + " priority " + priority + " - " + mRunCount[priority]
+                            + " run, wait avg " + getAverageWaitMillis(priority) + "ms max "
+                            + mWaitMax[priority] + "ms, " + mExpiredCount[priority] + " expired, "
+                            + mDiscardedCount[priority] + " discarded");
+                }
+            }
+        }
+    }
+}
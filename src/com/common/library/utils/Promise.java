@@ -0,0 +1,422 @@
+package com.common.library.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * The result of a chain of steps run in the background, for multi-step work such as query the
+ * database, download, decode and save, without a ThreadWork per step.
+ *
+ * <pre>
+ * Promise.call(queryUrl)
+ *         .then(download)
+ *         .then(decode)
+ *         .thenOnMain(show)
+ *         .timeout(10000)
+ *         .track(tracker);
+ * </pre>
+ *
+ * <ul>
+ * <li>A {@link #then} step runs on the thread that finished the step before it, so consecutive
+ * background steps cost no executor hop. Only a step that follows one on the main thread, or that
+ * is added after its input is ready, goes back through the executor.</li>
+ * <li>{@link #thenOnMain} steps run on the main thread, in the per-frame batches of
+ * {@link MainThreadCoalescer}.</li>
+ * <li>A failure skips the remaining steps and reaches {@link Callback#onFailure}.</li>
+ * <li>The steps of a chain share one {@link CancellationSignal}: it is
+ * {@link CancellationSignal#current()} while a background step runs, so a download in progress is
+ * disconnected when the chain is cancelled, by {@link #cancel()}, a {@link #timeout} or the
+ * {@link ThreadWork.Tracker} it is tracked by.</li>
+ * </ul>
+ */
+public class Promise<T> {
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * One step of a chain, from the result of the previous step to its own.
+     */
+    public interface Step<T, R> {
+        R run(T value) throws Exception;
+    }
+
+    public interface Combiner<A, B, R> {
+        R combine(A a, B b) throws Exception;
+    }
+
+    /**
+     * Receives the outcome of a chain on the main thread.
+     */
+    public interface Callback<T> {
+        void onSuccess(T value);
+
+        /**
+         * @param error What a step threw, a {@link CancellationException} if the chain was
+         *            cancelled, or a {@link TimeoutException}
+         */
+        void onFailure(Throwable error);
+    }
+
+    private final Executor mExecutor;
+    private final CancellationSignal mSignal;
+
+    // Guarded by this
+    private boolean mDone;
+    private T mValue;
+    private Throwable mError;
+    private List<Runnable> mListeners = new ArrayList<Runnable>(1);
+
+    private final CancellationSignal.OnCancelListener mCancelListener =
+            new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    fail(new CancellationException());
+                }
+            };
+
+    private Promise(Executor executor, CancellationSignal signal) {
+        mExecutor = executor;
+        mSignal = signal;
+        // Fail at once when cancelled, without waiting for the step running upstream to return
+        mSignal.addOnCancelListener(mCancelListener);
+    }
+
+    /**
+     * Start a chain with callable, run on {@link ThreadWork#WORK_STEALING_EXECUTOR}.
+     */
+    public static <T> Promise<T> call(Callable<T> callable) {
+        return call(callable, ThreadWork.WORK_STEALING_EXECUTOR);
+    }
+
+    /**
+     * Start a chain with callable, run on executor. The following background steps run on the same
+     * executor when they have to be queued.
+     */
+    public static <T> Promise<T> call(final Callable<T> callable, Executor executor) {
+        final Promise<T> promise = new Promise<T>(executor, new CancellationSignal());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                promise.runStep(new Step<Void, T>() {
+                    @Override
+                    public T run(Void value) throws Exception {
+                        return callable.call();
+                    }
+                }, null);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * @return A chain that starts with value, e.g. a cache hit, continued on
+     *         {@link ThreadWork#WORK_STEALING_EXECUTOR}.
+     */
+    public static <T> Promise<T> resolved(T value) {
+        final Promise<T> promise =
+                new Promise<T>(ThreadWork.WORK_STEALING_EXECUTOR, new CancellationSignal());
+        promise.complete(value);
+        return promise;
+    }
+
+    /**
+     * Run step in the background with the result of this promise.
+     */
+    public <R> Promise<R> then(final Step<? super T, R> step) {
+        final Promise<R> next = new Promise<R>(mExecutor, mSignal);
+        addBackgroundListener(new Runnable() {
+            @Override
+            public void run() {
+                if (mError != null) {
+                    next.fail(mError);
+                    return;
+                }
+                runInBackground(new Runnable() {
+                    @Override
+                    public void run() {
+                        next.runStep(step, mValue);
+                    }
+                });
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Run step on the main thread with the result of this promise.
+     */
+    public <R> Promise<R> thenOnMain(final Step<? super T, R> step) {
+        final Promise<R> next = new Promise<R>(mExecutor, mSignal);
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (mError != null) {
+                    next.fail(mError);
+                    return;
+                }
+                MainThreadCoalescer.getDefault().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        next.runStep(step, mValue);
+                    }
+                });
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Deliver the outcome to callback on the main thread.
+     *
+     * @return This promise
+     */
+    public Promise<T> done(final Callback<? super T> callback) {
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                MainThreadCoalescer.getDefault().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mError != null) {
+                            callback.onFailure(mError);
+                        } else {
+                            callback.onSuccess(mValue);
+                        }
+                    }
+                });
+            }
+        });
+        return this;
+    }
+
+    /**
+     * @return A promise with the result of this one, or a {@link TimeoutException} if it takes
+     *         more than timeoutMs. A timeout cancels the chain.
+     */
+    public Promise<T> timeout(final long timeoutMs) {
+        final Promise<T> next = new Promise<T>(mExecutor, mSignal);
+        final Runnable timer = new Runnable() {
+            @Override
+            public void run() {
+                if (next.fail(new TimeoutException("timed out after " + timeoutMs + "ms"))) {
+                    mSignal.cancel();
+                }
+            }
+        };
+        sHandler.postDelayed(timer, timeoutMs);
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                sHandler.removeCallbacks(timer);
+                if (mError != null) {
+                    next.fail(mError);
+                } else {
+                    next.complete(mValue);
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Cancel the chain when tracker is cancelled, until this promise is done.
+     *
+     * @return This promise
+     */
+    public Promise<T> track(final ThreadWork.Tracker tracker) {
+        tracker.addSignal(mSignal);
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                tracker.removeSignal(mSignal);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Cancel the chain: the steps not started yet don't run, and a download in a running step is
+     * disconnected.
+     */
+    public void cancel() {
+        mSignal.cancel();
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mError instanceof CancellationException;
+    }
+
+    /**
+     * @return A promise of the results of a and b combined, which fails as soon as either fails.
+     *         Cancelling it cancels both.
+     */
+    public static <A, B, R> Promise<R> zip(final Promise<A> a, final Promise<B> b,
+            final Combiner<? super A, ? super B, R> combiner) {
+        final Promise<R> result = new Promise<R>(a.mExecutor, new CancellationSignal());
+        result.cancelWith(a);
+        result.cancelWith(b);
+        final AtomicInteger remaining = new AtomicInteger(2);
+        final Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                final Throwable error = a.isDone() && a.mError != null ? a.mError
+                        : b.isDone() && b.mError != null ? b.mError : null;
+                if (error != null) {
+                    result.fail(error);
+                } else if (remaining.decrementAndGet() == 0) {
+                    result.runInBackground(new Runnable() {
+                        @Override
+                        public void run() {
+                            result.runStep(new Step<Void, R>() {
+                                @Override
+                                public R run(Void value) throws Exception {
+                                    return combiner.combine(a.mValue, b.mValue);
+                                }
+                            }, null);
+                        }
+                    });
+                }
+            }
+        };
+        a.addBackgroundListener(listener);
+        b.addBackgroundListener(listener);
+        return result;
+    }
+
+    /**
+     * @return A promise of the results of all promises in order, which fails as soon as one fails.
+     *         Cancelling it cancels them all.
+     */
+    public static <T> Promise<List<T>> allOf(final List<Promise<T>> promises) {
+        if (promises.isEmpty()) {
+            return resolved(Collections.<T>emptyList());
+        }
+        final Promise<List<T>> result =
+                new Promise<List<T>>(promises.get(0).mExecutor, new CancellationSignal());
+        final AtomicInteger remaining = new AtomicInteger(promises.size());
+        for (final Promise<T> promise : promises) {
+            result.cancelWith(promise);
+            promise.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (promise.mError != null) {
+                        result.fail(promise.mError);
+                    } else if (remaining.decrementAndGet() == 0) {
+                        final List<T> values = new ArrayList<T>(promises.size());
+                        for (Promise<T> p : promises) {
+                            values.add(p.mValue);
+                        }
+                        result.complete(values);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Cancel other's chain when this one is cancelled.
+     */
+    private void cancelWith(final Promise<?> other) {
+        mSignal.addOnCancelListener(new CancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                other.cancel();
+            }
+        });
+    }
+
+    /**
+     * Run runnable on the calling thread unless it is the main thread. Only for listeners added
+     * with {@link #addBackgroundListener}, which are called on the main thread or on the thread
+     * that finished the previous step.
+     */
+    private void runInBackground(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mExecutor.execute(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    private <S> void runStep(Step<S, ? extends T> step, S input) {
+        if (mSignal.isCanceled()) {
+            fail(new CancellationException());
+            return;
+        }
+        final CancellationSignal previous = CancellationSignal.bind(mSignal);
+        try {
+            complete(step.run(input));
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            CancellationSignal.bind(previous);
+        }
+    }
+
+    private boolean complete(T value) {
+        return finish(value, null);
+    }
+
+    private boolean fail(Throwable error) {
+        return finish(null, error);
+    }
+
+    private boolean finish(T value, Throwable error) {
+        final List<Runnable> listeners;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mValue = value;
+            mError = error;
+            listeners = mListeners;
+            mListeners = null;
+        }
+        mSignal.removeOnCancelListener(mCancelListener);
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+        return true;
+    }
+
+    /**
+     * Run listener on the thread that finishes this promise, or right away if it is done.
+     */
+    private void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Run listener on the thread that finishes this promise, or on the executor if it is done:
+     * the thread adding a step to a finished promise may be any thread, and mustn't run the step.
+     */
+    private void addBackgroundListener(Runnable listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        mExecutor.execute(listener);
+    }
+}
@@ -17,25 +17,29 @@ package com.common.library.utils;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.TargetApi;
 import android.os.AsyncTask;
 import android.os.Build;
-import android.os.Handler;
-import android.os.Message;
+import android.os.Process;
+import android.util.Log;
 
 /**
  * Modeled after {@link AsyncTask}; the basic usage is the same, with extra features:
@@ -44,13 +48,15 @@ import android.os.Message;
  * - Instead of {@link AsyncTask#onPostExecute}, it has {@link #onPostExecute(Object)}, as the
  *   regular {@link AsyncTask#onPostExecute} is a bit hard to predict when it'll be called and
  *   when it won't.
+ * - Results, cancellations and progress updates reach the main thread through
+ *   {@link MainThreadCoalescer}, in one batch per frame, and only the latest progress of a task
+ *   is delivered. Tasks run as a plain {@link FutureTask}, so a finished task costs one main
+ *   thread delivery rather than one for AsyncTask's own handler as well.
  *
  */
 public abstract class ThreadWork<Params, Progress, Result> {
-	// inner messages and handler
-    private static final int MESSAGE_POST_PROGRESS = 0x1;
-    private static final InternalHandler sHandler = new InternalHandler();
-    
+    private static final String TAG = "ThreadWork";
+
 	private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
     private static final int CORE_POOL_SIZE = CPU_COUNT + 1;
     private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
@@ -71,14 +77,57 @@ public abstract class ThreadWork<Params, Progress, Result> {
      * This serialization is global to a particular process.
      */
     
-    public static final Executor SERIAL_EXECUTOR = DeviceUtils.hasHoneycomb() ? new SerialExecutor() :
-        Executors.newSingleThreadExecutor(sThreadFactory);
+    public static final Executor SERIAL_EXECUTOR = ExecutorMetrics.instrument("ThreadWork.SERIAL_EXECUTOR",
+        DeviceUtils.hasHoneycomb() ? new SerialExecutor() : Executors.newSingleThreadExecutor(sThreadFactory));
     
+    // The pool behind PARALLEL_EXECUTOR. SerialExecutor hands its tasks to the pool itself, as
+    // they are already recorded under SERIAL_EXECUTOR.
+    private static final ThreadPoolExecutor sThreadPool = new ThreadPoolExecutor(CORE_POOL_SIZE,
+            MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory);
+
     /**
      * An {@link Executor} that can be used to execute tasks in parallel.
      */
-    public static final Executor PARALLEL_EXECUTOR  = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
-                    TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory);
+    public static final Executor PARALLEL_EXECUTOR  = ExecutorMetrics.instrument("ThreadWork.PARALLEL_EXECUTOR",
+            sThreadPool);
+
+    /**
+     * An {@link Executor} with one task deque per worker thread, where idle workers steal queued
+     * tasks from busy ones. Unlike {@link #PARALLEL_EXECUTOR} it never rejects a task when many are
+     * queued at once.
+     *
+     * @see #setDefaultExecutor(Executor)
+     */
+    public static final Executor WORK_STEALING_EXECUTOR = WorkStealingExecutor.getDefault();
+
+    /**
+     * Runs tasks with the same key one at a time and tasks with different keys in parallel, on
+     * {@link #WORK_STEALING_EXECUTOR}.
+     *
+     * @see #executeKeyedSerial(Object, Object...)
+     */
+    public static final KeyedSerialExecutor KEYED_SERIAL_EXECUTOR =
+            new KeyedSerialExecutor(WORK_STEALING_EXECUTOR);
+
+    /**
+     * Runs tasks by priority class, drops those whose deadline passed before they started, and
+     * makes room for new tasks by dropping the oldest of the lowest priority when 128 are queued.
+     *
+     * @see #executePrioritized(int, long, Object...)
+     */
+    public static final PriorityExecutor PRIORITY_EXECUTOR = new PriorityExecutor(CORE_POOL_SIZE, 128,
+            PriorityExecutor.Backpressure.DISCARD_OLDEST, 0, "ThreadWork priority");
+
+    /**
+     * A pool between CPU count + 1 and four threads per CPU, sized from how much its tasks
+     * wait on I/O compared to how much they compute.
+     *
+     * @see #executeAdaptive(Object...)
+     */
+    public static final AdaptiveExecutor ADAPTIVE_EXECUTOR = new AdaptiveExecutor(CORE_POOL_SIZE,
+            Math.max(CORE_POOL_SIZE, CPU_COUNT * 4), "ThreadWork adaptive");
+
+    private static volatile Executor sDefaultExecutor = SERIAL_EXECUTOR;
     
     @TargetApi(Build.VERSION_CODES.GINGERBREAD) 
     private static class SerialExecutor implements Executor {
@@ -103,7 +152,7 @@ public abstract class ThreadWork<Params, Progress, Result> {
 
         protected synchronized void scheduleNext() {
             if ((mActive = mTasks.poll()) != null) {
-            	PARALLEL_EXECUTOR.execute(mActive);
+            	sThreadPool.execute(mActive);
             }
         }
     }
@@ -111,32 +160,113 @@ public abstract class ThreadWork<Params, Progress, Result> {
     /**
      * Tracks {@link ThreadWork}.
      *
-     * Call {@link #cancellAllInterrupt()} to cancel all tasks registered.
+     * Call {@link #cancellAll()} to cancel all tasks registered.
+     *
+     * Trackers can be nested, e.g. one per screen with a child per list and a grandchild per row;
+     * cancelling a tracker cancels the tasks of its children too. Adding and removing a task takes
+     * constant time, and {@link #cancelOthers} only looks at the tasks of the same class.
      */
     public static class Tracker {
-        private final LinkedList<ThreadWork<?, ?, ?>> mTasks = new LinkedList<ThreadWork<?, ?, ?>>();
+        private final Tracker mParent;
+        // Tasks by class and child trackers, guarded by this
+        private final HashMap<Class<?>, HashSet<ThreadWork<?, ?, ?>>> mTasks =
+                new HashMap<Class<?>, HashSet<ThreadWork<?, ?, ?>>>();
+        private final HashSet<Tracker> mChildren = new HashSet<Tracker>();
+        // Signals of other cancellable work, e.g. Promise chains
+        private final HashSet<CancellationSignal> mSignals = new HashSet<CancellationSignal>();
+        private int mTaskCount;
+
+        public Tracker() {
+            this(null);
+        }
 
-        private void add(ThreadWork<?, ?, ?> task) {
-            synchronized (mTasks) {
-                mTasks.add(task);
+        /**
+         * @param parent A tracker whose {@link #cancellAll()} cancels this one's tasks too, or null
+         */
+        public Tracker(Tracker parent) {
+            mParent = parent;
+            if (parent != null) {
+                synchronized (parent) {
+                    parent.mChildren.add(this);
+                }
             }
         }
 
-        private void remove(ThreadWork<?, ?, ?> task) {
-            synchronized (mTasks) {
-                mTasks.remove(task);
+        private synchronized void add(ThreadWork<?, ?, ?> task) {
+            HashSet<ThreadWork<?, ?, ?>> tasks = mTasks.get(task.getClass());
+            if (tasks == null) {
+                tasks = new HashSet<ThreadWork<?, ?, ?>>();
+                mTasks.put(task.getClass(), tasks);
+            }
+            if (tasks.add(task)) {
+                mTaskCount++;
             }
         }
 
+        private synchronized void remove(ThreadWork<?, ?, ?> task) {
+            final HashSet<ThreadWork<?, ?, ?>> tasks = mTasks.get(task.getClass());
+            if (tasks != null && tasks.remove(task)) {
+                mTaskCount--;
+                if (tasks.isEmpty()) {
+                    mTasks.remove(task.getClass());
+                }
+            }
+        }
+
+        /**
+         * Cancel signal along with the tasks, until it is removed.
+         *
+         * @see Promise#track(Tracker)
+         */
+        public synchronized void addSignal(CancellationSignal signal) {
+            mSignals.add(signal);
+        }
+
+        public synchronized void removeSignal(CancellationSignal signal) {
+            mSignals.remove(signal);
+        }
+
         /**
-         * Cancel all registered tasks.
+         * Cancel all registered tasks and signals, and those of the child trackers. Running tasks are
+         * interrupted and their {@link CancellationSignal} is cancelled, which stops blocking
+         * downloads and decodes.
          */
         public void cancellAll() {
-            synchronized (mTasks) {
-                for (ThreadWork<?, ?, ?> task : mTasks) {
-                    task.cancel(true);
+            final ArrayList<ThreadWork<?, ?, ?>> tasks = new ArrayList<ThreadWork<?, ?, ?>>();
+            final ArrayList<Tracker> children;
+            final ArrayList<CancellationSignal> signals;
+            synchronized (this) {
+                for (HashSet<ThreadWork<?, ?, ?>> set : mTasks.values()) {
+                    tasks.addAll(set);
                 }
                 mTasks.clear();
+                mTaskCount = 0;
+                children = new ArrayList<Tracker>(mChildren);
+                signals = new ArrayList<CancellationSignal>(mSignals);
+                mSignals.clear();
+            }
+            // Outside the lock, cancelling runs the tasks' cancel listeners
+            for (ThreadWork<?, ?, ?> task : tasks) {
+                task.cancel(true);
+            }
+            for (CancellationSignal signal : signals) {
+                signal.cancel();
+            }
+            for (Tracker child : children) {
+                child.cancellAll();
+            }
+        }
+
+        /**
+         * Cancel all tasks, as {@link #cancellAll()}, and detach from the parent tracker, e.g. when
+         * the list row this tracker belongs to is recycled.
+         */
+        public void release() {
+            cancellAll();
+            if (mParent != null) {
+                synchronized (mParent) {
+                    mParent.mChildren.remove(this);
+                }
             }
         }
 
@@ -145,68 +275,90 @@ public abstract class ThreadWork<Params, Progress, Result> {
          * {@code current} itself.
          */
         public void cancelOthers(ThreadWork<?, ?, ?> current) {
-            final Class<?> clazz = current.getClass();
-            synchronized (mTasks) {
-                final ArrayList<ThreadWork<?, ?, ?>> toRemove = new ArrayList<ThreadWork<?, ?, ?>>();
-                for (ThreadWork<?, ?, ?> task : mTasks) {
-                    if ((task != current) && task.getClass().equals(clazz)) {
-                        task.cancel(true);
-                        toRemove.add(task);
-                    }
+            final ArrayList<ThreadWork<?, ?, ?>> toCancel = new ArrayList<ThreadWork<?, ?, ?>>();
+            synchronized (this) {
+                final HashSet<ThreadWork<?, ?, ?>> tasks = mTasks.get(current.getClass());
+                if (tasks == null) {
+                    return;
                 }
-                for (ThreadWork<?, ?, ?> task : toRemove) {
-                    mTasks.remove(task);
+                for (ThreadWork<?, ?, ?> task : tasks) {
+                    if (task != current) {
+                        toCancel.add(task);
+                    }
                 }
+                tasks.removeAll(toCancel);
+                mTaskCount -= toCancel.size();
+            }
+            for (ThreadWork<?, ?, ?> task : toCancel) {
+                task.cancel(true);
             }
         }
 
-        public int getTaskCount() {
-            return mTasks.size();
+        /**
+         * @return The number of tasks registered with this tracker, not counting its children.
+         */
+        public synchronized int getTaskCount() {
+            return mTaskCount;
         }
 
-        public boolean containsTask(ThreadWork<?, ?, ?> task) {
-            return mTasks.contains(task);
+        public synchronized boolean containsTask(ThreadWork<?, ?, ?> task) {
+            final HashSet<ThreadWork<?, ?, ?>> tasks = mTasks.get(task.getClass());
+            return tasks != null && tasks.contains(task);
         }
     }
 
     private final Tracker mTracker;
 
-    private static class InnerTask<Params2, Progress2, Result2> extends AsyncTask<Params2, Progress2, Result2> {
+    private static class InnerTask<Params2, Progress2, Result2> extends FutureTask<Result2> {
         private final ThreadWork<Params2, Progress2, Result2> mOwner;
 
-        public InnerTask(ThreadWork<Params2, Progress2, Result2> owner) {
+        public InnerTask(final ThreadWork<Params2, Progress2, Result2> owner) {
+            super(new Callable<Result2>() {
+                public Result2 call() throws Exception {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    final CancellationSignal previous = CancellationSignal.bind(owner.mSignal);
+                    try {
+                        return owner.doInBackground(owner.mParams);
+                    } finally {
+                        CancellationSignal.bind(previous);
+                    }
+                }
+            });
             mOwner = owner;
         }
 
+        /**
+         * Called once, when doInBackground returns or throws, or when the task is cancelled,
+         * including by an executor dropping it before it ran.
+         */
         @Override
-        protected Result2 doInBackground(Params2... params) {
-            return mOwner.doInBackground(params);
-        }
-
-        @Override
-        protected void onProgressUpdate(Progress2... values) {
-        	mOwner.onProgressUpdate(values);
-        }
-        
-        @Override
-        public void onCancelled(Result2 result) {
-            mOwner.unregisterSelf();
-            mOwner.onCancelled();
-        }
-        
-        @Override
-        public void onPostExecute(Result2 result) {
-            mOwner.unregisterSelf();
-            if (mOwner.mCancelled) {
-                mOwner.onCancelled();
-            } else {
-                mOwner.onPostExecute(result);
+        protected void done() {
+            Result2 result = null;
+            try {
+                result = get();
+            } catch (InterruptedException e) {
+                Log.w(TAG, e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("An error occured while executing doInBackground()",
+                        e.getCause());
+            } catch (CancellationException e) {
+                // Reported as cancelled by deliverResult
             }
+            final Result2 finalResult = result;
+            MainThreadCoalescer.getDefault().post(new Runnable() {
+                @Override
+                public void run() {
+                    mOwner.deliverResult(finalResult);
+                }
+            });
         }
     }
 
     private final InnerTask<Params, Progress, Result> mInnerTask;
+    private final AtomicBoolean mExecuted = new AtomicBoolean();
+    private volatile Params[] mParams;
     private volatile boolean mCancelled;
+    private final CancellationSignal mSignal = new CancellationSignal();
 
 	/**
 	 * Construction with what create new instances can be canceled by Tracker.
@@ -240,22 +392,57 @@ public abstract class ThreadWork<Params, Progress, Result> {
     /** @see AsyncTask#doInBackground */
     protected abstract Result doInBackground(Params... params);
 
-    /** @see AsyncTask#cancel(boolean) */
+    /**
+     * With mayInterruptIfRunning, the task's {@link CancellationSignal} is cancelled too.
+     *
+     * @see AsyncTask#cancel(boolean)
+     */
     public final void cancel(boolean mayInterruptIfRunning) {
         mCancelled = true;
+        if (mayInterruptIfRunning) {
+            mSignal.cancel();
+        }
         mInnerTask.cancel(mayInterruptIfRunning);
     }
 
+    /**
+     * @return The signal that tells blocking work in {@link #doInBackground} to stop. It is also
+     *         {@link CancellationSignal#current()} while doInBackground runs.
+     */
+    protected final CancellationSignal getCancellationSignal() {
+        return mSignal;
+    }
+
     /** @see AsyncTask#onCancelled */
     protected void onCancelled() {}
     
     /** @see AsyncTask#onProgressUpdate */
     protected void onProgressUpdate(Progress... values){}
     
-    /** @see AsyncTask#publishProgress */
-    protected final void publishProgress(Progress... values) {
+    /**
+     * Calls made before the main thread gets to the previous values replace them.
+     *
+     * @see AsyncTask#publishProgress
+     */
+    protected final void publishProgress(final Progress... values) {
         if (!mCancelled) {
-            sHandler.obtainMessage(MESSAGE_POST_PROGRESS,  new AsyncTaskResult<Progress>(this, values)).sendToTarget();
+            MainThreadCoalescer.getDefault().postLatest(this, new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        onProgressUpdate(values);
+                    }
+                }
+            });
+        }
+    }
+
+    private void deliverResult(Result result) {
+        unregisterSelf();
+        if (mCancelled || mInnerTask.isCancelled()) {
+            onCancelled();
+        } else {
+            onPostExecute(result);
         }
     }
 
@@ -285,12 +472,54 @@ public abstract class ThreadWork<Params, Progress, Result> {
     public final ThreadWork<Params, Progress, Result> executeSerial(Params... params) {
         return executeInternal(SERIAL_EXECUTOR, false, params);
     }
+
+    /**
+     * execute on {@link #KEYED_SERIAL_EXECUTOR}: after the tasks executed earlier with an equal
+     * key, but in parallel with tasks of other keys.
+     *
+     * @param key e.g. the URL or path the task works on
+     */
+    public final ThreadWork<Params, Progress, Result> executeKeyedSerial(Object key, Params... params) {
+        return executeInternal(KEYED_SERIAL_EXECUTOR.forKey(key), false, params);
+    }
+
+    /**
+     * execute on {@link #PRIORITY_EXECUTOR}. A task dropped before it started, because its
+     * deadline passed or the queue overflowed, gets {@link #onCancelled()}.
+     *
+     * @param priority One of the PRIORITY_ constants of {@link PriorityExecutor}
+     * @param timeoutMs Drop the task if it hasn't started this many milliseconds from now, 0 for
+     *            no deadline
+     */
+    public final ThreadWork<Params, Progress, Result> executePrioritized(int priority, long timeoutMs,
+            Params... params) {
+        return executeInternal(PRIORITY_EXECUTOR.forPriority(priority, timeoutMs), false, params);
+    }
+
+    /**
+     * execute on {@link #ADAPTIVE_EXECUTOR}, measured as a task of this task's class.
+     */
+    public final ThreadWork<Params, Progress, Result> executeAdaptive(Params... params) {
+        return executeInternal(ADAPTIVE_EXECUTOR.forType(getClass()), false, params);
+    }
     
     /**
-     * default execute on {@link #SERIAL_EXECUTOR}
+     * default execute on {@link #SERIAL_EXECUTOR}, or the executor set with
+     * {@link #setDefaultExecutor(Executor)}
      */
     public final ThreadWork<Params, Progress, Result> executeDefault(Params... params) {
-    	return executeSerial(params);
+    	return executeInternal(sDefaultExecutor, false, params);
+    }
+
+    /**
+     * Change the executor used by {@link #executeDefault}, e.g. to {@link #WORK_STEALING_EXECUTOR}.
+     * Tasks already queued stay on the executor they were given to.
+     */
+    public static void setDefaultExecutor(Executor exec) {
+        if (exec == null) {
+            throw new NullPointerException("exec == null");
+        }
+        sDefaultExecutor = exec;
     }
 
     /**
@@ -311,6 +540,10 @@ public abstract class ThreadWork<Params, Progress, Result> {
 
     private final ThreadWork<Params, Progress, Result> executeInternal(Executor executor,
     		boolean cancelPrevious, Params... params) {
+        if (!mExecuted.compareAndSet(false, true)) {
+            throw new IllegalStateException("Cannot execute task:"
+                    + " the task has already been executed (a task can be executed only once)");
+        }
         if (cancelPrevious) {
             if (mTracker == null) {
                 throw new IllegalStateException();
@@ -318,10 +551,12 @@ public abstract class ThreadWork<Params, Progress, Result> {
                 mTracker.cancelOthers(this);
             }
         }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-        	mInnerTask.executeOnExecutor(executor, params);
-        }else{
-        	mInnerTask.execute(params);
+        mParams = params;
+        final Class<?> previous = ExecutorMetrics.beginSubmit(getClass());
+        try {
+            executor.execute(mInnerTask);
+        } finally {
+            ExecutorMetrics.endSubmit(previous);
         }
         return this;
     }
@@ -381,28 +616,4 @@ public abstract class ThreadWork<Params, Progress, Result> {
     public final Result get() throws InterruptedException, ExecutionException {
         return mInnerTask.get();
     }
-    
-    @SuppressWarnings("rawtypes")
-    private static class AsyncTaskResult<Data> {
-		final ThreadWork mTask;
-        final Data[] mData;
-
-        AsyncTaskResult(ThreadWork task, Data... data) {
-            mTask = task;
-            mData = data;
-        }
-    }
-    
-    private static class InternalHandler extends Handler {
-        @SuppressWarnings({"unchecked", "rawtypes"})
-        @Override
-        public void handleMessage(Message msg) {
-			AsyncTaskResult result = (AsyncTaskResult) msg.obj;
-            switch (msg.what) {
-                case MESSAGE_POST_PROGRESS:
-                    result.mTask.onProgressUpdate(result.mData);
-                    break;
-            }
-        }
-    }
 }
\ No newline at end of file
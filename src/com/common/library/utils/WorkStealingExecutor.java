@@ -0,0 +1,229 @@
+package com.common.library.utils;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * An {@link Executor} where every worker thread has its own task deque, in the manner of a
+ * fork/join pool (ForkJoinPool itself isn't available on the Android versions this library
+ * supports).
+ *
+ * <ul>
+ * <li>Tasks submitted from outside the pool are spread round-robin over the workers' submission
+ * queues, so submitters don't all contend on one queue lock. They run oldest first, so that the
+ * oldest requests aren't starved under sustained load.</li>
+ * <li>Tasks submitted from a worker go to that worker's own deque and are run newest first,
+ * ahead of its submissions, which keeps related work on the same thread.</li>
+ * <li>A worker with nothing queued steals the oldest task of another worker before going idle,
+ * submissions first.</li>
+ * <li>The queues are unbounded: unlike a ThreadPoolExecutor with a bounded queue, a burst of tasks
+ * is never rejected or discarded.</li>
+ * </ul>
+ *
+ * Select it with {@link ThreadWork#setDefaultExecutor(Executor)} or
+ * {@link com.common.library.bitmap.AsyncTask#setDefaultExecutor(Executor)}.
+ */
+public class WorkStealingExecutor implements Executor {
+    private static final String TAG = WorkStealingExecutor.class.getSimpleName();
+
+    // Idle workers re-check the deques at least this often
+    private static final long IDLE_WAIT_MS = 1000;
+
+    private static WorkStealingExecutor sDefault;
+
+    private final Worker[] mWorkers;
+    private final String mName;
+    private final AtomicInteger mNextWorker = new AtomicInteger();
+    private final AtomicInteger mIdleCount = new AtomicInteger();
+    private final Object mIdleLock = new Object();
+    private final AtomicLong mStealCount = new AtomicLong();
+    private boolean mStarted;
+
+    /**
+     * @return The pool shared by {@link ThreadWork} and the bitmap AsyncTask, one worker per CPU
+     *         core plus one.
+     */
+    public static synchronized WorkStealingExecutor getDefault() {
+        if (sDefault == null) {
+            sDefault = new WorkStealingExecutor(Runtime.getRuntime().availableProcessors() + 1,
+                    "WorkStealing");
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param parallelism The number of worker threads, started with the first task
+     * @param name Prefix of the worker thread names
+     */
+    public WorkStealingExecutor(int parallelism, String name) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        mName = name;
+        mWorkers = new Worker[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        ensureStarted();
+
+        final Thread current = Thread.currentThread();
+        if (current instanceof Worker && ((Worker) current).mPool == this) {
+            ((Worker) current).fork(command);
+        } else {
+            final int index = (mNextWorker.getAndIncrement() & Integer.MAX_VALUE) % mWorkers.length;
+            mWorkers[index].submit(command);
+        }
+
+        if (mIdleCount.get() > 0) {
+            synchronized (mIdleLock) {
+                mIdleLock.notify();
+            }
+        }
+    }
+
+    private synchronized void ensureStarted() {
+        if (!mStarted) {
+            mStarted = true;
+            for (Worker worker : mWorkers) {
+                worker.start();
+            }
+        }
+    }
+
+    public int getParallelism() {
+        return mWorkers.length;
+    }
+
+    /**
+     * @return The number of tasks waiting in all queues.
+     */
+    public int getQueuedTaskCount() {
+        int count = 0;
+        for (Worker worker : mWorkers) {
+            count += worker.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of tasks run by a worker other than the one they were queued on.
+     */
+    public long getStealCount() {
+        return mStealCount.get();
+    }
+
+    private Runnable steal(Worker thief) {
+        final int n = mWorkers.length;
+        for (int i = 1; i < n; i++) {
+            final Runnable task = mWorkers[(thief.mIndex + i) % n].pollForThief();
+            if (task != null) {
+                mStealCount.incrementAndGet();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private Runnable awaitWork(Worker worker) {
+        synchronized (mIdleLock) {
+            mIdleCount.incrementAndGet();
+            try {
+                // Check again now that submitters can see this worker is idle
+                Runnable task = worker.poll();
+                if (task == null) {
+                    task = steal(worker);
+                }
+                if (task == null) {
+                    mIdleLock.wait(IDLE_WAIT_MS);
+                }
+                return task;
+            } catch (InterruptedException e) {
+                return null;
+            } finally {
+                mIdleCount.decrementAndGet();
+            }
+        }
+    }
+
+    private class Worker extends Thread {
+        final WorkStealingExecutor mPool = WorkStealingExecutor.this;
+        final int mIndex;
+        // LinkedList rather than ArrayDeque, which needs API 9
+        // Tasks submitted from outside the pool, run oldest first
+        private final LinkedList<Runnable> mSubmissions = new LinkedList<Runnable>();
+        // Tasks submitted by this worker, run newest first
+        private final LinkedList<Runnable> mDeque = new LinkedList<Runnable>();
+
+        Worker(int index) {
+            super(mName + " #" + (index + 1));
+            mIndex = index;
+        }
+
+        synchronized void submit(Runnable task) {
+            mSubmissions.addLast(task);
+        }
+
+        synchronized void fork(Runnable task) {
+            mDeque.addLast(task);
+        }
+
+        /**
+         * @return The next task for this worker: the newest it forked, else the oldest submission.
+         */
+        synchronized Runnable poll() {
+            if (!mDeque.isEmpty()) {
+                return mDeque.removeLast();
+            }
+            return mSubmissions.isEmpty() ? null : mSubmissions.removeFirst();
+        }
+
+        /**
+         * @return The oldest submission, else the oldest forked task, for another worker.
+         */
+        synchronized Runnable pollForThief() {
+            if (!mSubmissions.isEmpty()) {
+                return mSubmissions.removeFirst();
+            }
+            return mDeque.isEmpty() ? null : mDeque.removeFirst();
+        }
+
+        synchronized int size() {
+            return mSubmissions.size() + mDeque.size();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = poll();
+                if (task == null) {
+                    task = steal(this);
+                }
+                if (task == null) {
+                    task = awaitWork(this);
+                }
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        // Keep the worker alive, even past an Error, or its queues would never
+                        // be drained. The task's own Future reports the failure.
+                        Log.e(TAG, getName() + " - " + e);
+                    }
+                    // Clear an interrupt aimed at the finished task
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+}